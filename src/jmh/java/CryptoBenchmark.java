@@ -0,0 +1,62 @@
+import java.security.KeyPair;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Time of one {@link Crypto#verifySignature} for each key size and signature provider */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CryptoBenchmark {
+
+    @Param({ "1024", "2048", "4096" })
+    public int keyBits;
+
+    @Param({ "SUN_RSA_SIGN", "BOUNCY_CASTLE" })
+    public String provider;
+
+    /** Size of the signed message in bytes */
+    @Param({ "256" })
+    public int messageSize;
+
+    private KeyPair key;
+    private byte[] message;
+    private byte[] signature;
+    private SignatureCache cache;
+
+    @Setup
+    public void setUp() {
+        Crypto.setDefaultProvider(Crypto.SignatureProvider.valueOf(provider));
+        key = Workload.keys(keyBits, 1, 42)[0];
+        message = new byte[messageSize];
+        new Random(42).nextBytes(message);
+        signature = Workload.sign(message, key);
+        cache = new SignatureCache(SignatureCache.DEFAULT_CAPACITY);
+    }
+
+    @Benchmark
+    public boolean verifySignature() {
+        return Crypto.verifySignature(key.getPublic(), message, signature);
+    }
+
+    /** A verification already remembered by a {@link SignatureCache} */
+    @Benchmark
+    public boolean verifyCached() {
+        return new SignatureVerifier(null, cache).verifySignature(key.getPublic(), message,
+                signature);
+    }
+}
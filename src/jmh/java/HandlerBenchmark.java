@@ -0,0 +1,88 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time of one epoch of {@link TxHandler#handleTxs} and {@link MaxFeeTxHandler#handleTxs} on a
+ * {@link Workload}. Every invocation starts from the same pool, and signature caching is
+ * disabled so that every epoch verifies its signatures.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandlerBenchmark {
+
+    @Param({ "100000" })
+    public int poolSize;
+
+    @Param({ "100", "1000" })
+    public int batchSize;
+
+    @Param({ "2" })
+    public int inputsPerTx;
+
+    @Param({ "2" })
+    public int outputsPerTx;
+
+    @Param({ "0", "0.2" })
+    public double conflictRatio;
+
+    @Param({ "2048" })
+    public int keyBits;
+
+    /** Number of threads of the handler's executor, 0 for none */
+    @Param({ "0", "4" })
+    public int threads;
+
+    private Workload workload;
+    private ExecutorService executor;
+
+    @Setup
+    public void setUp() {
+        workload = Workload.generate(42, poolSize, batchSize, inputsPerTx, outputsPerTx,
+                conflictRatio, keyBits, 16);
+        executor = threads > 0 ? Executors.newFixedThreadPool(threads) : null;
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    @Benchmark
+    public Transaction[] txHandler() {
+        // Handlers copy the pool in O(1), so each epoch starts from the unchanged workload
+        TxHandler handler = new TxHandler(workload.getPool(), executor, null);
+        return handler.handleTxs(workload.getTxs());
+    }
+
+    @Benchmark
+    public Transaction[] maxFeeTxHandler() {
+        MaxFeeTxHandler handler = new MaxFeeTxHandler(workload.getPool(), executor, null);
+        return handler.handleTxs(workload.getTxs());
+    }
+
+    @Benchmark
+    public byte[] validateTxs() {
+        TxHandler handler = new TxHandler(workload.getPool(), executor, null);
+        return handler.validateTxs(workload.getTxs());
+    }
+}
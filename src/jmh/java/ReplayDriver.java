@@ -0,0 +1,131 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Streams the epochs of a {@link WorkloadFile} through {@link TxHandler} or {@link
+ * MaxFeeTxHandler} and reports the sustained throughput and the latency of the epochs:
+ *
+ * <pre>
+ * ReplayDriver &lt;file&gt; [tx|maxfee] [threads] [warmupEpochs]
+ * </pre>
+ *
+ * Only {@code handleTxs} is timed, not reading the file. The first {@code warmupEpochs} epochs
+ * are handled but left out of the report, and signature caching is disabled so that every epoch
+ * verifies its signatures.
+ */
+public class ReplayDriver {
+
+    /** The handler being replayed */
+    private interface Handler {
+        Transaction[] handleTxs(Transaction[] txs);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: ReplayDriver <file> [tx|maxfee] [threads] [warmupEpochs]");
+            System.exit(2);
+        }
+        String kind = args.length > 1 ? args[1] : "tx";
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+        int warmupEpochs = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+
+        ExecutorService executor = threads > 0 ? Executors.newFixedThreadPool(threads) : null;
+        WorkloadFile.Reader reader = new WorkloadFile.Reader(new FileInputStream(args[0]));
+        try {
+            Handler handler = newHandler(kind, reader.genesisPool(), executor);
+            Report report = replay(reader, handler, warmupEpochs);
+            System.out.println(kind + " handler, "
+                    + (threads > 0 ? threads + " threads" : "sequential"));
+            System.out.println(report);
+        } finally {
+            reader.close();
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+    }
+
+    private static Handler newHandler(String kind, UTXOPool pool, ExecutorService executor) {
+        if (kind.equals("tx")) {
+            final TxHandler handler = new TxHandler(pool, executor, null);
+            return new Handler() {
+                @Override
+                public Transaction[] handleTxs(Transaction[] txs) {
+                    return handler.handleTxs(txs);
+                }
+            };
+        } else if (kind.equals("maxfee")) {
+            final MaxFeeTxHandler handler = new MaxFeeTxHandler(pool, executor, null);
+            return new Handler() {
+                @Override
+                public Transaction[] handleTxs(Transaction[] txs) {
+                    return handler.handleTxs(txs);
+                }
+            };
+        }
+        throw new IllegalArgumentException("Unknown handler " + kind + ", expected tx or maxfee");
+    }
+
+    /** Handles every remaining epoch of {@code reader}, measuring all but the first ones */
+    static Report replay(WorkloadFile.Reader reader, Handler handler, int warmupEpochs)
+            throws IOException {
+        Report report = new Report();
+        int epoch = 0;
+        for (Transaction[] txs = reader.nextEpoch(); txs != null; txs = reader.nextEpoch()) {
+            long start = System.nanoTime();
+            Transaction[] accepted = handler.handleTxs(txs);
+            long nanos = System.nanoTime() - start;
+            if (epoch++ >= warmupEpochs) {
+                report.add(txs.length, accepted.length, nanos);
+            }
+        }
+        return report;
+    }
+
+    /** Throughput and epoch latencies of a replay */
+    static final class Report {
+        private long[] latencies = new long[64];
+        private int epochs;
+        private long proposed;
+        private long accepted;
+        private long totalNanos;
+
+        void add(int proposedTxs, int acceptedTxs, long nanos) {
+            if (epochs == latencies.length) {
+                latencies = Arrays.copyOf(latencies, epochs * 2);
+            }
+            latencies[epochs++] = nanos;
+            proposed += proposedTxs;
+            accepted += acceptedTxs;
+            totalNanos += nanos;
+        }
+
+        /** @return the latency below which a share {@code p} of the epochs stay, nearest rank */
+        long percentile(double p) {
+            if (epochs == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(latencies, epochs);
+            Arrays.sort(sorted);
+            int rank = (int) Math.ceil(p * epochs);
+            return sorted[Math.max(rank, 1) - 1];
+        }
+
+        @Override
+        public String toString() {
+            double seconds = totalNanos / 1e9;
+            return String.format(Locale.ROOT,
+                    "%d epochs, %d transactions proposed, %d accepted in %.3f s%n"
+                    + "throughput: %.1f tx/s proposed, %.1f tx/s accepted%n"
+                    + "epoch latency ms: p50 %.3f, p90 %.3f, p99 %.3f, max %.3f",
+                    epochs, proposed, accepted, seconds,
+                    seconds > 0 ? proposed / seconds : 0, seconds > 0 ? accepted / seconds : 0,
+                    percentile(0.5) / 1e6, percentile(0.9) / 1e6, percentile(0.99) / 1e6,
+                    percentile(1) / 1e6);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serialization and hashing of a transaction of a {@link Workload}. Each invocation works on a
+ * fresh copy, which has none of the cached forms of the original, or on a fresh {@link
+ * TransactionView} of its wire format.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransactionBenchmark {
+
+    @Param({ "1", "8" })
+    public int inputsPerTx;
+
+    @Param({ "2", "16" })
+    public int outputsPerTx;
+
+    @Param({ "2048" })
+    public int keyBits;
+
+    private Transaction tx;
+    private ByteBuffer wire;
+
+    @Setup
+    public void setUp() {
+        tx = Workload.generate(42, Math.max(inputsPerTx, 1), 1, inputsPerTx, outputsPerTx, 0,
+                keyBits, 4).getTxs()[0];
+        wire = ByteBuffer.allocateDirect(tx.wireSize());
+        tx.writeWire(wire);
+        wire.flip();
+    }
+
+    @Benchmark
+    public byte[] getRawTx() {
+        return new Transaction(tx).getRawTx();
+    }
+
+    @Benchmark
+    public byte[] getRawDataToSign() {
+        return new Transaction(tx).getRawDataToSign(0);
+    }
+
+    @Benchmark
+    public byte[] finalizeHash() {
+        Transaction copy = new Transaction(tx);
+        copy.setHash(null);
+        copy.finalize();
+        return copy.getHash();
+    }
+
+    @Benchmark
+    public byte[] viewHash() {
+        return TransactionView.read(wire.duplicate()).getHash();
+    }
+
+    @Benchmark
+    public byte[] viewToTransaction() {
+        return TransactionView.read(wire.duplicate()).toTransaction().getHash();
+    }
+}
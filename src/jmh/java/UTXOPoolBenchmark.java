@@ -0,0 +1,108 @@
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Lookups and updates of a {@link UTXOPool} filled with the pool of a {@link Workload}, for each
+ * {@link UTXOStore} implementation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UTXOPoolBenchmark {
+
+    /** Number of UTXOs looked up per invocation */
+    private static final int LOOKUPS = 1024;
+
+    @Param({ "10000", "1000000" })
+    public int poolSize;
+
+    @Param({ "hashmap", "openaddressing", "concurrent" })
+    public String store;
+
+    private UTXOPool pool;
+    private UTXO[] hits;
+    private UTXO[] misses;
+    private Transaction.Output output;
+
+    @Setup
+    public void setUp() {
+        Workload workload = Workload.generate(42, poolSize, 0, 0, 0, 0, 512, 16);
+        pool = new UTXOPool(newStore(store, poolSize));
+        UTXO[] utxos = workload.getUTXOs();
+        for (UTXO utxo : utxos) {
+            pool.addUTXO(utxo, workload.getPool().getTxOutput(utxo));
+        }
+        output = workload.getPool().getTxOutput(utxos[0]);
+
+        Random random = new Random(42);
+        hits = new UTXO[LOOKUPS];
+        misses = new UTXO[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; ++i) {
+            UTXO hit = utxos[random.nextInt(utxos.length)];
+            hits[i] = new UTXO(hit.getTxHash(), hit.getIndex());
+            misses[i] = new UTXO(hit.getTxHash(), hit.getIndex() + 1000);
+        }
+    }
+
+    static UTXOStore newStore(String name, int expectedSize) {
+        if (name.equals("hashmap")) {
+            return new HashMapUTXOStore();
+        } else if (name.equals("openaddressing")) {
+            return new OpenAddressingUTXOStore(expectedSize);
+        } else if (name.equals("concurrent")) {
+            return new ConcurrentUTXOStore();
+        }
+        throw new IllegalArgumentException("Unknown store " + name);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public void getHit(Blackhole bh) {
+        for (UTXO utxo : hits) {
+            bh.consume(pool.getTxOutput(utxo));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public void containsMiss(Blackhole bh) {
+        for (UTXO utxo : misses) {
+            bh.consume(pool.contains(utxo));
+        }
+    }
+
+    /** Spends and restores each UTXO, leaving the pool as it was */
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public void removeAndAdd() {
+        for (UTXO utxo : hits) {
+            pool.removeUTXO(utxo);
+            pool.addUTXO(utxo, output);
+        }
+    }
+
+    /** Copy of the pool followed by a change, which is what each epoch of a handler costs */
+    @Benchmark
+    public UTXOPool copyAndChange() {
+        UTXOPool copy = new UTXOPool(pool);
+        copy.removeUTXO(hits[0]);
+        return copy;
+    }
+}
@@ -0,0 +1,190 @@
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A synthetic epoch: a UTXO pool and a batch of signed transactions spending its outputs. The
+ * same parameters and seed always produce the same workload, keys included, so that runs of
+ * different versions or implementations measure the same work.
+ *
+ * The pool holds {@code poolSize} outputs of coinbase transactions, owned by {@code numKeys}
+ * keys in turn. Each transaction of the batch claims {@code inputsPerTx} outputs of the pool
+ * picked at random, creates {@code outputsPerTx} outputs and leaves a random fee. A share {@code
+ * conflictRatio} of the transactions claims one output that an earlier transaction of the batch
+ * already claims, so that handlers have conflicts to resolve.
+ */
+public final class Workload {
+
+    /** Outputs per coinbase transaction of the pool */
+    private static final int OUTPUTS_PER_COINBASE = 100;
+
+    /** Keys by size, count and seed, generating RSA keys being slow */
+    private static final HashMap<List<Long>, KeyPair[]> KEYS = new HashMap<List<Long>, KeyPair[]>();
+
+    private final PublicKey[] publicKeys;
+    private final PrivateKey[] privateKeys;
+    private final UTXOPool pool;
+    private final UTXO[] utxos;
+    private final Transaction[] txs;
+
+    private Workload(KeyPair[] keys, UTXOPool pool, UTXO[] utxos, Transaction[] txs) {
+        publicKeys = new PublicKey[keys.length];
+        privateKeys = new PrivateKey[keys.length];
+        for (int k = 0; k < keys.length; ++k) {
+            publicKeys[k] = keys[k].getPublic();
+            privateKeys[k] = keys[k].getPrivate();
+        }
+        this.pool = pool;
+        this.utxos = utxos;
+        this.txs = txs;
+    }
+
+    /**
+     * Generates a workload.
+     *
+     * @param seed          seed of every random choice
+     * @param poolSize      number of outputs in the pool
+     * @param batchSize     number of transactions in the batch
+     * @param inputsPerTx   number of inputs of each transaction
+     * @param outputsPerTx  number of outputs of each transaction
+     * @param conflictRatio share of the transactions claiming an output already claimed in the
+     *                      batch, between 0 and 1
+     * @param keyBits       size of the RSA keys
+     * @param numKeys       number of distinct keys owning the outputs
+     */
+    public static Workload generate(long seed, int poolSize, int batchSize, int inputsPerTx,
+                                    int outputsPerTx, double conflictRatio, int keyBits,
+                                    int numKeys) {
+        if (batchSize * inputsPerTx > poolSize) {
+            throw new IllegalArgumentException("The pool is too small for " + batchSize
+                    + " transactions of " + inputsPerTx + " inputs");
+        }
+        Random random = new Random(seed);
+        KeyPair[] keys = keys(keyBits, numKeys, seed);
+
+        UTXOPool pool = new UTXOPool();
+        UTXO[] utxos = new UTXO[poolSize];
+        int[] owners = new int[poolSize];
+        for (int from = 0; from < poolSize; from += OUTPUTS_PER_COINBASE) {
+            Transaction coinbase = new Transaction();
+            coinbase.addInput(null, from);
+            int to = Math.min(from + OUTPUTS_PER_COINBASE, poolSize);
+            for (int u = from; u < to; ++u) {
+                owners[u] = u % numKeys;
+                coinbase.addOutput(1 + random.nextInt(100), keys[owners[u]].getPublic());
+            }
+            coinbase.finalize();
+            for (int u = from; u < to; ++u) {
+                utxos[u] = new UTXO(coinbase.getHash(), u - from);
+                pool.addUTXO(utxos[u], coinbase.getOutput(u - from));
+            }
+        }
+
+        // Each transaction claims outputs of a shuffled pool in turn, conflicting transactions
+        // swapping their first claim for one of an earlier transaction
+        ArrayList<Integer> order = new ArrayList<Integer>(poolSize);
+        for (int u = 0; u < poolSize; ++u) {
+            order.add(u);
+        }
+        Collections.shuffle(order, random);
+        int[][] claims = new int[batchSize][inputsPerTx];
+        for (int t = 0; t < batchSize; ++t) {
+            for (int j = 0; j < inputsPerTx; ++j) {
+                claims[t][j] = order.get(t * inputsPerTx + j);
+            }
+            if (t > 0 && inputsPerTx > 0 && random.nextDouble() < conflictRatio) {
+                int[] earlier = claims[random.nextInt(t)];
+                claims[t][0] = earlier[random.nextInt(inputsPerTx)];
+            }
+        }
+
+        Transaction[] txs = new Transaction[batchSize];
+        for (int t = 0; t < batchSize; ++t) {
+            Transaction tx = new Transaction();
+            double inputSum = 0;
+            for (int u : claims[t]) {
+                tx.addInput(utxos[u].getTxHash(), utxos[u].getIndex());
+                inputSum += pool.getTxOutput(utxos[u]).value;
+            }
+            double spent = inputSum * (0.5 + random.nextDouble() / 2);
+            for (int k = 0; k < outputsPerTx; ++k) {
+                tx.addOutput(Math.floor(spent / outputsPerTx),
+                        keys[random.nextInt(numKeys)].getPublic());
+            }
+            for (int j = 0; j < inputsPerTx; ++j) {
+                tx.addSignature(sign(tx.getRawDataToSign(j), keys[owners[claims[t][j]]]), j);
+            }
+            tx.finalize();
+            txs[t] = tx;
+        }
+        return new Workload(keys, pool, utxos, txs);
+    }
+
+    public PublicKey[] getPublicKeys() {
+        return publicKeys;
+    }
+
+    public PrivateKey[] getPrivateKeys() {
+        return privateKeys;
+    }
+
+    /** @return the pool the batch spends, which must not be changed */
+    public UTXOPool getPool() {
+        return pool;
+    }
+
+    /** @return the UTXOs of the pool */
+    public UTXO[] getUTXOs() {
+        return utxos;
+    }
+
+    /** @return the batch of transactions */
+    public Transaction[] getTxs() {
+        return txs;
+    }
+
+    /** @return {@code numKeys} RSA keys of {@code keyBits} bits, the same for the same seed */
+    static synchronized KeyPair[] keys(int keyBits, int numKeys, long seed) {
+        List<Long> id = Arrays.asList((long) keyBits, (long) numKeys, seed);
+        KeyPair[] keys = KEYS.get(id);
+        if (keys == null) {
+            try {
+                // Seeding SHA1PRNG before its first use makes it deterministic
+                SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
+                random.setSeed(seed);
+                KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+                generator.initialize(keyBits, random);
+                keys = new KeyPair[numKeys];
+                for (int k = 0; k < numKeys; ++k) {
+                    keys[k] = generator.generateKeyPair();
+                }
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Can not generate RSA keys", e);
+            }
+            KEYS.put(id, keys);
+        }
+        return keys;
+    }
+
+    /** @return the {@link Crypto#ALGORITHM} signature of {@code message} by {@code key} */
+    static byte[] sign(byte[] message, KeyPair key) {
+        try {
+            Signature signature = Signature.getInstance(Crypto.ALGORITHM);
+            signature.initSign(key.getPrivate());
+            signature.update(message);
+            return signature.sign();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Can not sign with " + Crypto.ALGORITHM, e);
+        }
+    }
+}
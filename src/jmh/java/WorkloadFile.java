@@ -0,0 +1,244 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.HashMap;
+
+/**
+ * A compact file of epochs of transactions, written by {@link WorkloadGenerator} and streamed
+ * epoch by epoch by {@link ReplayDriver}.
+ *
+ * The file starts with the magic number {@code SCWL}, a version, and the encoded public keys the
+ * outputs pay to. Epochs follow, the first one being the coinbase transactions of the genesis
+ * pool, and a count of 0 ends the file. Addresses are written as indexes into the keys, amounts
+ * as exact units, and all counts, indexes and amounts as variable-length integers of 7 bits per
+ * byte. Hashes are not written, since readers compute them again.
+ *
+ * <pre>
+ * file   = "SCWL" version:u8 numKeys:var (length:var key)* epoch* 0:var
+ * epoch  = (numTxs + 1):var tx*
+ * tx     = numInputs:var input* numOutputs:var output*
+ * input  = hashLength:var hash index:var signatureLength:var signature
+ * output = units:var keyIndex:var
+ * </pre>
+ */
+public final class WorkloadFile {
+
+    private static final int MAGIC = 0x5343574c;
+    private static final int VERSION = 1;
+
+    private WorkloadFile() {
+    }
+
+    /** Writes a file, epoch by epoch */
+    public static final class Writer implements Closeable {
+        private final DataOutputStream out;
+        private final HashMap<PublicKey, Integer> keyIndexes = new HashMap<PublicKey, Integer>();
+
+        /**
+         * Writes the header of a file of outputs paying to {@code keys} to {@code out}, followed
+         * by the {@code genesis} coinbase transactions.
+         */
+        public Writer(OutputStream out, PublicKey[] keys, Transaction[] genesis)
+                throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+            this.out.writeInt(MAGIC);
+            this.out.writeByte(VERSION);
+            writeVarLong(keys.length);
+            for (int k = 0; k < keys.length; ++k) {
+                keyIndexes.put(keys[k], k);
+                writeBytes(keys[k].getEncoded());
+            }
+            writeEpoch(genesis);
+        }
+
+        public void writeEpoch(Transaction[] txs) throws IOException {
+            writeVarLong(txs.length + 1);
+            for (Transaction tx : txs) {
+                writeVarLong(tx.numInputs());
+                for (int j = 0; j < tx.numInputs(); ++j) {
+                    Transaction.Input in = tx.getInput(j);
+                    writeBytes(in.prevTxHash);
+                    writeVarLong(in.outputIndex);
+                    writeBytes(in.signature);
+                }
+                writeVarLong(tx.numOutputs());
+                for (int k = 0; k < tx.numOutputs(); ++k) {
+                    Transaction.Output output = tx.getOutput(k);
+                    Integer key = keyIndexes.get(output.address);
+                    if (key == null) {
+                        throw new IllegalArgumentException("Output pays to an unknown key");
+                    }
+                    writeVarLong(output.getUnits());
+                    writeVarLong(key);
+                }
+            }
+        }
+
+        /** Ends the file and closes the underlying stream */
+        @Override
+        public void close() throws IOException {
+            writeVarLong(0);
+            out.close();
+        }
+
+        /** Writes {@code bytes} prefixed by their length, a null array being written as empty */
+        private void writeBytes(byte[] bytes) throws IOException {
+            if (bytes == null) {
+                writeVarLong(0);
+            } else {
+                writeVarLong(bytes.length);
+                out.write(bytes);
+            }
+        }
+
+        private void writeVarLong(long value) throws IOException {
+            if (value < 0) {
+                throw new IllegalArgumentException("Negative value " + value);
+            }
+            while (value >= 0x80) {
+                out.writeByte((int) (value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte((int) value);
+        }
+    }
+
+    /** Reads a file, epoch by epoch */
+    public static final class Reader implements Closeable {
+        private final DataInputStream in;
+        private final PublicKey[] keys;
+        private final Transaction[] genesis;
+        private boolean ended;
+
+        /**
+         * Reads the header and the genesis transactions of the file {@code in}.
+         *
+         * @throws IOException if {@code in} is not a workload file or can not be read
+         */
+        public Reader(InputStream in) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+            if (this.in.readInt() != MAGIC) {
+                throw new IOException("Not a workload file");
+            }
+            int version = this.in.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported workload file version " + version);
+            }
+            keys = new PublicKey[readCount()];
+            try {
+                KeyFactory factory = KeyFactory.getInstance("RSA");
+                for (int k = 0; k < keys.length; ++k) {
+                    keys[k] = factory.generatePublic(new X509EncodedKeySpec(readBytes()));
+                }
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Invalid key in workload file", e);
+            }
+            genesis = nextEpoch();
+            if (genesis == null) {
+                throw new IOException("Workload file without genesis");
+            }
+        }
+
+        public PublicKey[] getKeys() {
+            return keys;
+        }
+
+        /** @return a new pool holding the outputs of the genesis transactions */
+        public UTXOPool genesisPool() {
+            UTXOPool pool = new UTXOPool();
+            for (Transaction tx : genesis) {
+                for (int k = 0; k < tx.numOutputs(); ++k) {
+                    pool.addUTXO(new UTXO(tx.getHash(), k), tx.getOutput(k));
+                }
+            }
+            return pool;
+        }
+
+        /**
+         * @return the transactions of the next epoch, finalized, or null at the end of the file
+         * @throws IOException if the file is truncated or can not be read
+         */
+        public Transaction[] nextEpoch() throws IOException {
+            if (ended) {
+                return null;
+            }
+            long count = readVarLong();
+            if (count == 0) {
+                ended = true;
+                return null;
+            }
+            Transaction[] txs = new Transaction[checkCount(count - 1)];
+            for (int t = 0; t < txs.length; ++t) {
+                Transaction tx = new Transaction();
+                int numInputs = readCount();
+                for (int j = 0; j < numInputs; ++j) {
+                    byte[] prevTxHash = readBytes();
+                    tx.addInput(prevTxHash.length == 0 ? null : prevTxHash, readCount());
+                    byte[] signature = readBytes();
+                    if (signature.length > 0) {
+                        tx.addSignature(signature, j);
+                    }
+                }
+                int numOutputs = readCount();
+                for (int k = 0; k < numOutputs; ++k) {
+                    long units = readVarLong();
+                    int key = readCount();
+                    if (key >= keys.length) {
+                        throw new IOException("Unknown key index " + key);
+                    }
+                    tx.addOutput(Amounts.toCoins(units), keys[key]);
+                }
+                tx.finalize();
+                txs[t] = tx;
+            }
+            return txs;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private byte[] readBytes() throws IOException {
+            byte[] bytes = new byte[readCount()];
+            in.readFully(bytes);
+            return bytes;
+        }
+
+        private int readCount() throws IOException {
+            return checkCount(readVarLong());
+        }
+
+        private static int checkCount(long count) throws IOException {
+            if (count > Integer.MAX_VALUE) {
+                throw new IOException("Corrupt workload file, count " + count);
+            }
+            return (int) count;
+        }
+
+        private long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = in.read();
+                if (b < 0) {
+                    throw new EOFException("Truncated workload file");
+                }
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Corrupt workload file, variable-length integer too long");
+        }
+    }
+}
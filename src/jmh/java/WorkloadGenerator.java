@@ -0,0 +1,299 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Generates a chain of epochs of signed transactions from a seed, the same configuration always
+ * giving the same chain. The generator keeps its own ledger of the outputs it has created, and
+ * each epoch spends outputs of the previous ones, assuming that the handler accepted every
+ * transaction except the double spends.
+ *
+ * In each epoch, every transaction claims between {@link Config#minInputs} and {@link
+ * Config#maxInputs} outputs and creates between {@link Config#minOutputs} and {@link
+ * Config#maxOutputs} outputs, keeping a fee. An input claims an output of an earlier transaction
+ * of the same epoch with probability {@link Config#dependencyRate}, as long as that makes chains
+ * of at most {@link Config#maxDepth} transactions. A transaction is followed by a double spend of
+ * one of its inputs with probability {@link Config#doubleSpendRate}. Outputs pay to a key already
+ * used with probability {@link Config#keyReuse}, and to the next unused key otherwise.
+ *
+ * The transactions of an epoch are shuffled, so children may come before their parents. Double
+ * spends come after all other transactions and keep no fee, so that both handlers accept the
+ * originals and the ledger of the generator matches theirs.
+ *
+ * See {@link WorkloadFile} to store a chain and {@link ReplayDriver} to replay it.
+ */
+public class WorkloadGenerator {
+
+    /** Parameters of a chain, public so that they can be set one by one before generating */
+    public static class Config {
+        public long seed = 42;
+        public int numEpochs = 100;
+        public int txsPerEpoch = 1000;
+        /** number of outputs of the genesis pool */
+        public int genesisOutputs = 100000;
+        public int minInputs = 1;
+        public int maxInputs = 3;
+        public int minOutputs = 1;
+        public int maxOutputs = 3;
+        /** probability that a transaction is followed by a double spend */
+        public double doubleSpendRate = 0.05;
+        /** probability that an input claims an output of the same epoch */
+        public double dependencyRate = 0.1;
+        /** longest chain of transactions spending each other's outputs within an epoch */
+        public int maxDepth = 4;
+        /** number of distinct keys */
+        public int numKeys = 64;
+        /** probability that an output pays to a key already used */
+        public double keyReuse = 0.8;
+        public int keyBits = 2048;
+
+        /**
+         * Sets the parameter named {@code name} from {@code value}, for command line options
+         * such as {@code txsPerEpoch=500}.
+         *
+         * @throws IllegalArgumentException if there is no such parameter
+         */
+        public void set(String name, String value) {
+            try {
+                Field field = Config.class.getField(name);
+                if (field.getType() == long.class) {
+                    field.setLong(this, Long.parseLong(value));
+                } else if (field.getType() == int.class) {
+                    field.setInt(this, Integer.parseInt(value));
+                } else {
+                    field.setDouble(this, Double.parseDouble(value));
+                }
+            } catch (NoSuchFieldException e) {
+                throw new IllegalArgumentException("Unknown workload parameter " + name);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /** An output of the generator's ledger */
+    private static final class Spendable {
+        final byte[] txHash;
+        final int index;
+        final long units;
+        final int owner;
+        /** length of the chain of the epoch's transactions ending with the creating one */
+        final int depth;
+
+        Spendable(byte[] txHash, int index, long units, int owner, int depth) {
+            this.txHash = txHash;
+            this.index = index;
+            this.units = units;
+            this.owner = owner;
+            this.depth = depth;
+        }
+    }
+
+    /** Outputs per coinbase transaction of the genesis pool */
+    private static final int OUTPUTS_PER_COINBASE = 100;
+
+    private final Config config;
+    private final Random random;
+    private final KeyPair[] keys;
+    private final PublicKey[] publicKeys;
+    /** Number of keys used so far, keys being used in order */
+    private int usedKeys;
+    /** Outputs of the previous epochs that are not spent yet */
+    private final ArrayList<Spendable> confirmed = new ArrayList<Spendable>();
+    private int epoch;
+
+    public WorkloadGenerator(Config config) {
+        if (config.minInputs < 1 || config.maxInputs < config.minInputs
+                || config.minOutputs < 1 || config.maxOutputs < config.minOutputs) {
+            throw new IllegalArgumentException("Invalid fan-in or fan-out");
+        }
+        this.config = config;
+        random = new Random(config.seed);
+        keys = Workload.keys(config.keyBits, config.numKeys, config.seed);
+        publicKeys = new PublicKey[keys.length];
+        for (int k = 0; k < keys.length; ++k) {
+            publicKeys[k] = keys[k].getPublic();
+        }
+    }
+
+    /** @return the keys outputs pay to */
+    public PublicKey[] getPublicKeys() {
+        return publicKeys;
+    }
+
+    /** @return the coinbase transactions whose outputs make up the genesis pool */
+    public Transaction[] genesis() {
+        ArrayList<Transaction> coinbases = new ArrayList<Transaction>();
+        for (int from = 0; from < config.genesisOutputs; from += OUTPUTS_PER_COINBASE) {
+            Transaction coinbase = new Transaction();
+            coinbase.addInput(null, from);
+            int to = Math.min(from + OUTPUTS_PER_COINBASE, config.genesisOutputs);
+            int[] owners = new int[to - from];
+            for (int j = 0; j < owners.length; ++j) {
+                owners[j] = nextOwner();
+                coinbase.addOutput(1 + random.nextInt(100), publicKeys[owners[j]]);
+            }
+            coinbase.finalize();
+            for (int j = 0; j < owners.length; ++j) {
+                confirmed.add(new Spendable(coinbase.getHash(), j,
+                        coinbase.getOutput(j).getUnits(), owners[j], 0));
+            }
+            coinbases.add(coinbase);
+        }
+        return coinbases.toArray(new Transaction[coinbases.size()]);
+    }
+
+    /**
+     * @return the next epoch, or null after {@link Config#numEpochs} epochs
+     * @throws IllegalStateException if the ledger has run out of outputs to spend
+     */
+    public Transaction[] nextEpoch() {
+        if (epoch++ >= config.numEpochs) {
+            return null;
+        }
+        ArrayList<Transaction> txs = new ArrayList<Transaction>();
+        ArrayList<Transaction> doubleSpends = new ArrayList<Transaction>();
+        ArrayList<Spendable> pending = new ArrayList<Spendable>();
+        // Outputs of previous epochs claimed in this epoch, candidates for double spends
+        ArrayList<Spendable> claimed = new ArrayList<Spendable>();
+        for (int t = 0; t < config.txsPerEpoch; ++t) {
+            int fanIn = between(config.minInputs, config.maxInputs);
+            Spendable[] inputs = new Spendable[fanIn];
+            int depth = 1;
+            for (int j = 0; j < fanIn; ++j) {
+                inputs[j] = takeInput(pending);
+                if (inputs[j].depth > 0) {
+                    depth = Math.max(depth, inputs[j].depth + 1);
+                } else {
+                    claimed.add(inputs[j]);
+                }
+            }
+            long inputSum = 0;
+            for (Spendable in : inputs) {
+                inputSum += in.units;
+            }
+            // A fee of up to a tenth of the inputs, at least one unit when there is any
+            long fee = inputSum == 0 ? 0 : 1 + (long) (random.nextDouble() * inputSum / 10);
+            Transaction tx = spend(inputs, inputSum - fee,
+                    between(config.minOutputs, config.maxOutputs), depth, pending);
+            txs.add(tx);
+
+            if (!claimed.isEmpty() && random.nextDouble() < config.doubleSpendRate) {
+                Spendable in = claimed.get(random.nextInt(claimed.size()));
+                doubleSpends.add(spend(new Spendable[] { in }, in.units, 1, 0, null));
+            }
+        }
+        for (Spendable out : pending) {
+            confirmed.add(new Spendable(out.txHash, out.index, out.units, out.owner, 0));
+        }
+        Collections.shuffle(txs, random);
+        Collections.shuffle(doubleSpends, random);
+        txs.addAll(doubleSpends);
+        return txs.toArray(new Transaction[txs.size()]);
+    }
+
+    /**
+     * @return a signed transaction claiming {@code inputs} and paying {@code amount} units over
+     *         {@code fanOut} outputs, whose outputs are added to {@code pending} with chain depth
+     *         {@code depth} unless it is null
+     */
+    private Transaction spend(Spendable[] inputs, long amount, int fanOut, int depth,
+                              ArrayList<Spendable> pending) {
+        Transaction tx = new Transaction();
+        for (Spendable in : inputs) {
+            tx.addInput(in.txHash, in.index);
+        }
+        int[] owners = new int[fanOut];
+        for (int k = 0; k < fanOut; ++k) {
+            owners[k] = nextOwner();
+            long units = amount / fanOut + (k < amount % fanOut ? 1 : 0);
+            tx.addOutput(Amounts.toCoins(units), publicKeys[owners[k]]);
+        }
+        for (int j = 0; j < inputs.length; ++j) {
+            tx.addSignature(Workload.sign(tx.getRawDataToSign(j), keys[inputs[j].owner]), j);
+        }
+        tx.finalize();
+        if (pending != null) {
+            for (int k = 0; k < fanOut; ++k) {
+                pending.add(new Spendable(tx.getHash(), k, tx.getOutput(k).getUnits(),
+                        owners[k], depth));
+            }
+        }
+        return tx;
+    }
+
+    /** Removes and returns an output of the epoch or of the previous ones to spend */
+    private Spendable takeInput(ArrayList<Spendable> pending) {
+        if (!pending.isEmpty() && random.nextDouble() < config.dependencyRate) {
+            int i = random.nextInt(pending.size());
+            if (pending.get(i).depth < config.maxDepth) {
+                return removeAt(pending, i);
+            }
+        }
+        if (confirmed.isEmpty()) {
+            throw new IllegalStateException("The workload ran out of outputs in epoch " + epoch
+                    + ", raise genesisOutputs or the fan-out");
+        }
+        return removeAt(confirmed, random.nextInt(confirmed.size()));
+    }
+
+    /** Removes element {@code i} of {@code list} in O(1) by moving the last one in its place */
+    private static Spendable removeAt(ArrayList<Spendable> list, int i) {
+        Spendable s = list.get(i);
+        Spendable last = list.remove(list.size() - 1);
+        if (i < list.size()) {
+            list.set(i, last);
+        }
+        return s;
+    }
+
+    private int nextOwner() {
+        if (usedKeys > 0 && (usedKeys == keys.length || random.nextDouble() < config.keyReuse)) {
+            return random.nextInt(usedKeys);
+        }
+        return usedKeys++;
+    }
+
+    private int between(int min, int max) {
+        return min + random.nextInt(max - min + 1);
+    }
+
+    /**
+     * Writes a chain to a file: {@code WorkloadGenerator <file> [name=value ...]}, where names are
+     * those of the fields of {@link Config}.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: WorkloadGenerator <file> [name=value ...]");
+            System.exit(2);
+        }
+        Config config = new Config();
+        for (int i = 1; i < args.length; ++i) {
+            int eq = args[i].indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Expected name=value instead of " + args[i]);
+            }
+            config.set(args[i].substring(0, eq), args[i].substring(eq + 1));
+        }
+        WorkloadGenerator generator = new WorkloadGenerator(config);
+        WorkloadFile.Writer writer = new WorkloadFile.Writer(new FileOutputStream(args[0]),
+                generator.getPublicKeys(), generator.genesis());
+        try {
+            int txs = 0;
+            for (Transaction[] epoch = generator.nextEpoch(); epoch != null;
+                 epoch = generator.nextEpoch()) {
+                writer.writeEpoch(epoch);
+                txs += epoch.length;
+            }
+            System.out.println("Wrote " + config.numEpochs + " epochs of " + txs
+                    + " transactions to " + args[0]);
+        } finally {
+            writer.close();
+        }
+    }
+}
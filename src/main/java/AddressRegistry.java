@@ -0,0 +1,177 @@
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns the public keys used as output addresses. Each distinct key gets a compact integer id
+ * and is kept once, together with its encoding, so that outputs paying to the same address share
+ * one key object and the key is encoded once. Ids start at 1, 0 standing for no address.
+ *
+ * Registered addresses are never removed: stores refer to them by id alone, so an entry lives as
+ * long as the registry, and those of the shared registry as long as the JVM. The registry is
+ * bounded instead. It holds at most {@code maxSize} addresses, for the shared one the value of the
+ * system property {@value #MAX_SIZE_PROPERTY}, by default {@value #DEFAULT_MAX_SIZE}. Once it is
+ * full, new addresses are no longer interned: {@link #intern} returns {@link #UNREGISTERED}, and
+ * outputs paying to them keep their own key and encoding, as they would without a registry. The
+ * registry is thread-safe, and lookups by id do not lock.
+ *
+ * Addresses can also be looked up by their encoding, as read from a {@link TransactionView}, in
+ * which case a registered key is only decoded the first time its encoding is seen.
+ */
+public class AddressRegistry {
+
+    /** Id of no address */
+    public static final int NONE = 0;
+
+    /** Result of {@link #intern} for a new address once the registry is full */
+    public static final int UNREGISTERED = -1;
+
+    /** System property holding the largest number of addresses of the shared registry */
+    public static final String MAX_SIZE_PROPERTY = "scrooge.addresses.max";
+
+    /** Largest number of addresses of the shared registry if the property is not set */
+    public static final int DEFAULT_MAX_SIZE = 1 << 16;
+
+    /** Algorithm of the keys decoded by {@link #internEncoded}, see {@link Crypto#ALGORITHM} */
+    private static final String KEY_ALGORITHM = "RSA";
+
+    private static final AddressRegistry SHARED =
+            new AddressRegistry(Integer.getInteger(MAX_SIZE_PROPERTY, DEFAULT_MAX_SIZE));
+
+    private final int maxSize;
+
+    private final ConcurrentHashMap<PublicKey, Integer> ids =
+            new ConcurrentHashMap<PublicKey, Integer>();
+    /** Ids by encoding, which may be looked up with a slice of a larger buffer */
+    private final ConcurrentHashMap<ByteBuffer, Integer> encodedIds =
+            new ConcurrentHashMap<ByteBuffer, Integer>();
+    /** Addresses and encodings by id, published by writing the fields after each change */
+    private volatile PublicKey[] addresses = new PublicKey[64];
+    private volatile byte[][] encodings = new byte[64][];
+    private int size = 1;
+    /** True once {@code maxSize} addresses are registered */
+    private volatile boolean full;
+
+    /** Creates a registry of at most {@code maxSize} addresses */
+    public AddressRegistry(int maxSize) {
+        this.maxSize = maxSize;
+        full = maxSize <= 0;
+    }
+
+    /** @return the registry used by {@link Transaction.Output} and the UTXO stores */
+    public static AddressRegistry shared() {
+        return SHARED;
+    }
+
+    /**
+     * @return the id of {@code address}, registering it if needed, {@link #NONE} for null, or
+     *         {@link #UNREGISTERED} if it is new and the registry is full
+     */
+    public int intern(PublicKey address) {
+        if (address == null) {
+            return NONE;
+        }
+        Integer id = ids.get(address);
+        if (id != null) {
+            return id;
+        }
+        if (full) {
+            return UNREGISTERED;
+        }
+        synchronized (this) {
+            id = ids.get(address);
+            if (id != null) {
+                return id;
+            }
+            if (full) {
+                return UNREGISTERED;
+            }
+            PublicKey[] a = addresses;
+            byte[][] e = encodings;
+            if (size == a.length) {
+                a = Arrays.copyOf(a, a.length * 2);
+                e = Arrays.copyOf(e, e.length * 2);
+            }
+            a[size] = address;
+            e[size] = address.getEncoded();
+            encodings = e;
+            addresses = a;
+            ids.put(address, size);
+            encodedIds.put(ByteBuffer.wrap(e[size]), size);
+            full = size == maxSize;
+            return size++;
+        }
+    }
+
+    /**
+     * @return the registered key whose X.509 encoding is the remaining content of {@code encoded},
+     *         decoding and registering it if needed, or a new key decoded from {@code encoded} if
+     *         the registry is full. The position of {@code encoded} is not moved.
+     * @throws IllegalArgumentException if {@code encoded} is not the encoding of an RSA key
+     */
+    public PublicKey canonicalEncoded(ByteBuffer encoded) {
+        Integer id = encodedIds.get(encoded);
+        if (id != null) {
+            return get(id);
+        }
+        byte[] bytes = new byte[encoded.remaining()];
+        encoded.duplicate().get(bytes);
+        PublicKey address;
+        try {
+            address = KeyFactory.getInstance(KEY_ALGORITHM)
+                    .generatePublic(new X509EncodedKeySpec(bytes));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("Invalid encoded address", e);
+        }
+        int internedId = intern(address);
+        if (internedId == UNREGISTERED) {
+            return address;
+        }
+        // A key may have several encodings, the one read is kept as well
+        encodedIds.putIfAbsent(ByteBuffer.wrap(bytes), internedId);
+        return get(internedId);
+    }
+
+    /**
+     * @return the registered key equal to {@code address}, registering it if needed, or {@code
+     *         address} itself if the registry is full
+     */
+    public PublicKey canonical(PublicKey address) {
+        int id = intern(address);
+        return id == UNREGISTERED ? address : get(id);
+    }
+
+    /** @return the address of id {@code id}, or null for {@link #NONE} */
+    public PublicKey get(int id) {
+        PublicKey address = addresses[id];
+        if (address == null && id != NONE) {
+            synchronized (this) {
+                address = addresses[id];
+            }
+        }
+        return address;
+    }
+
+    /**
+     * @return the encoding of the address of id {@code id}. The returned array is shared and must
+     *         not be modified.
+     */
+    public byte[] getEncoded(int id) {
+        byte[] encoded = encodings[id];
+        if (encoded == null) {
+            synchronized (this) {
+                encoded = encodings[id];
+            }
+        }
+        return encoded;
+    }
+
+    /** @return the number of registered addresses */
+    public synchronized int size() {
+        return size - 1;
+    }
+}
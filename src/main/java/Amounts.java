@@ -0,0 +1,51 @@
+/**
+ * Exact amounts for the values of {@link Transaction.Output}. Values are doubles in coins, which
+ * are kept for the serialized form of transactions. Each output also holds its amount in base
+ * units, one coin being {@link #UNITS_PER_COIN} units, converted once when the output is built;
+ * balances and fees are computed on those, so that sums are exact integer arithmetic and
+ * overflows are detected rather than rounded away.
+ *
+ * Only whole numbers of units are amounts: a value with a fraction of a unit is rejected rather
+ * than rounded, since rounding each output on its own would let outputs add up to more than their
+ * inputs. Outputs can still be built with such values, which validation rejects with {@link
+ * ValidationResult#INVALID_AMOUNT}.
+ */
+public final class Amounts {
+
+    /** Number of base units in one coin */
+    public static final long UNITS_PER_COIN = 100000000L;
+
+    /** Largest magnitude in coins whose amount in units fits a long */
+    private static final double MAX_COINS = Long.MAX_VALUE / (double) UNITS_PER_COIN;
+
+    private Amounts() {
+    }
+
+    /**
+     * @return {@code coins} in units
+     * @throws ArithmeticException if {@code coins} is not an amount, see {@link #isAmount(double)}
+     */
+    public static long toUnits(double coins) {
+        if (!(Math.abs(coins) < MAX_COINS)) {
+            throw new ArithmeticException("Value out of range: " + coins);
+        }
+        long units = Math.round(coins * UNITS_PER_COIN);
+        if (toCoins(units) != coins) {
+            throw new ArithmeticException("Value is not a whole number of units: " + coins);
+        }
+        return units;
+    }
+
+    /**
+     * @return true if {@code coins} is a number whose amount in units fits a long and is a whole
+     *         number of units, so that {@link #toUnits(double)} does not throw
+     */
+    public static boolean isAmount(double coins) {
+        return Math.abs(coins) < MAX_COINS && toCoins(Math.round(coins * UNITS_PER_COIN)) == coins;
+    }
+
+    /** @return {@code units} in coins, exact for amounts up to 2^53 units */
+    public static double toCoins(long units) {
+        return units / (double) UNITS_PER_COIN;
+    }
+}
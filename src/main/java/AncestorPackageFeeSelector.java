@@ -0,0 +1,192 @@
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+
+/**
+ * Selects ancestor packages by decreasing fee rate. The package of a candidate is the candidate
+ * together with all its ancestors that are not selected yet, and its fee rate is the total fee of
+ * the package divided by its total size. A low-fee parent is therefore taken along with the
+ * children that make it worthwhile, and among conflicting candidates the denser ones win.
+ *
+ * Package scores change as ancestors get selected, so they are kept in a priority queue that is
+ * corrected lazily: a package whose score changed since it was queued is queued again with its
+ * current score instead of being taken, and the descendants of every selected package are queued
+ * again since their score may have grown.
+ *
+ * Packages are limited to {@link #DEFAULT_MAX_PACKAGE_SIZE} candidates by default, like the
+ * ancestor limit of Bitcoin Core. A candidate with more unselected ancestors is left out until
+ * enough of them have been selected, and is never selected if they are not. Evaluating a package
+ * then walks at most that many candidates, and only descendants that many generations below a
+ * selected package are queued again, so that long chains of transactions take time linear in
+ * their length rather than cubic.
+ */
+public class AncestorPackageFeeSelector implements FeeSelector {
+
+    /** Largest package of the default selector, in candidates */
+    public static final int DEFAULT_MAX_PACKAGE_SIZE = 25;
+
+    private final int maxPackageSize;
+
+    /** Creates a selector with packages of at most {@link #DEFAULT_MAX_PACKAGE_SIZE} candidates */
+    public AncestorPackageFeeSelector() {
+        this(DEFAULT_MAX_PACKAGE_SIZE);
+    }
+
+    /** Creates a selector with packages of at most {@code maxPackageSize} candidates */
+    public AncestorPackageFeeSelector(int maxPackageSize) {
+        this.maxPackageSize = maxPackageSize;
+    }
+
+    @Override
+    public boolean[] select(FeeSelectionProblem problem) {
+        Selection state = new Selection(problem, maxPackageSize);
+        PriorityQueue<Package> queue = new PriorityQueue<Package>();
+        // Densest first, so that the queue mostly sees its entries in order
+        for (int i : problem.byDecreasingFeeRate()) {
+            state.offer(queue, i);
+        }
+        while (!queue.isEmpty()) {
+            Package queued = queue.poll();
+            if (state.selected[queued.candidate]) {
+                continue;
+            }
+            Package current = state.evaluate(queued.candidate);
+            if (current == null) {
+                // Claims only ever get taken, so a conflicting package stays infeasible, while a
+                // package that is too large is offered again once it shrinks
+                continue;
+            }
+            if (current.fee != queued.fee || current.size != queued.size) {
+                queue.add(current);
+                continue;
+            }
+            for (int m : current.members) {
+                state.selected[m] = true;
+                for (int c : problem.getClaims(m)) {
+                    state.claimed[c] = true;
+                }
+            }
+            state.offerDescendants(queue, current.members);
+        }
+        return state.selected;
+    }
+
+    /** The mutable state of one selection */
+    private static final class Selection {
+        final FeeSelectionProblem problem;
+        final int maxPackageSize;
+        final boolean[] selected;
+        final boolean[] claimed;
+        /** Marks used to collect one package, valid while equal to {@code stamp} */
+        final int[] visited;
+        final int[] claimedInPackage;
+        int stamp;
+        /** Marks used to walk the descendants of one package */
+        final int[] reached;
+        int descendantStamp;
+
+        Selection(FeeSelectionProblem problem, int maxPackageSize) {
+            this.problem = problem;
+            this.maxPackageSize = maxPackageSize;
+            selected = new boolean[problem.numCandidates()];
+            claimed = new boolean[problem.numClaims()];
+            visited = new int[problem.numCandidates()];
+            claimedInPackage = new int[problem.numClaims()];
+            reached = new int[problem.numCandidates()];
+        }
+
+        void offer(PriorityQueue<Package> queue, int candidate) {
+            Package p = evaluate(candidate);
+            if (p != null) {
+                queue.add(p);
+            }
+        }
+
+        /**
+         * Offers again the descendants of the just selected {@code members}. A descendant more
+         * than {@code maxPackageSize} generations below every member still has at least that many
+         * unselected ancestors, so the walk goes breadth first and stops there.
+         */
+        void offerDescendants(PriorityQueue<Package> queue, ArrayList<Integer> members) {
+            descendantStamp++;
+            ArrayList<Integer> generation = members;
+            for (int depth = 0; depth < maxPackageSize && !generation.isEmpty(); ++depth) {
+                ArrayList<Integer> next = new ArrayList<Integer>();
+                for (int m : generation) {
+                    for (int child : problem.getChildren(m)) {
+                        if (!selected[child] && reached[child] != descendantStamp) {
+                            reached[child] = descendantStamp;
+                            offer(queue, child);
+                            next.add(child);
+                        }
+                    }
+                }
+                generation = next;
+            }
+        }
+
+        /**
+         * @return the current package of {@code candidate}, or null if selecting it would claim a
+         *         UTXO twice or it has more than {@code maxPackageSize} candidates
+         */
+        Package evaluate(int candidate) {
+            stamp++;
+            ArrayList<Integer> members = new ArrayList<Integer>();
+            ArrayList<Integer> stack = new ArrayList<Integer>();
+            stack.add(candidate);
+            visited[candidate] = stamp;
+            long fee = 0;
+            long size = 0;
+            while (!stack.isEmpty()) {
+                int m = stack.remove(stack.size() - 1);
+                for (int c : problem.getClaims(m)) {
+                    if (claimed[c] || claimedInPackage[c] == stamp) {
+                        return null;
+                    }
+                    claimedInPackage[c] = stamp;
+                }
+                members.add(m);
+                if (members.size() > maxPackageSize) {
+                    return null;
+                }
+                fee += problem.getFee(m);
+                size += problem.getSize(m);
+                for (int p : problem.getParents(m)) {
+                    if (!selected[p] && visited[p] != stamp) {
+                        visited[p] = stamp;
+                        stack.add(p);
+                    }
+                }
+            }
+            return new Package(candidate, members, fee, size);
+        }
+    }
+
+    private static final class Package implements Comparable<Package> {
+        final int candidate;
+        final ArrayList<Integer> members;
+        final long fee;
+        final long size;
+        final double rate;
+
+        Package(int candidate, ArrayList<Integer> members, long fee, long size) {
+            this.candidate = candidate;
+            this.members = members;
+            this.fee = fee;
+            this.size = size;
+            rate = (double) fee / Math.max(size, 1);
+        }
+
+        /** Highest fee rate first, then highest fee, then lowest candidate */
+        @Override
+        public int compareTo(Package other) {
+            int c = Double.compare(other.rate, rate);
+            if (c == 0) {
+                c = Long.compare(other.fee, fee);
+            }
+            if (c == 0) {
+                c = Integer.compare(candidate, other.candidate);
+            }
+            return c;
+        }
+    }
+}
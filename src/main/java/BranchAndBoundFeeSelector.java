@@ -0,0 +1,172 @@
+/**
+ * Improves the selection of a heuristic with an exact search on every small component of the
+ * epoch, a component being a group of candidates linked by shared claims or spends (see {@link
+ * FeeSelectionProblem#components()}). Components are independent, so the best selection of each
+ * one together make the best selection overall.
+ *
+ * The search decides candidates one at a time, parents first, and abandons a branch as soon as
+ * the fees still reachable can not beat the best selection found so far, which starts as the
+ * heuristic's. Searching stops once the time budget of the epoch is spent, keeping for every
+ * component the best selection found by then.
+ */
+public class BranchAndBoundFeeSelector implements FeeSelector {
+
+    /** Largest component searched exactly by the default selector */
+    public static final int DEFAULT_MAX_COMPONENT_SIZE = 24;
+
+    /** Time budget per epoch of the default selector, in milliseconds */
+    public static final long DEFAULT_BUDGET_MILLIS = 50;
+
+    /** Number of search nodes between two looks at the clock */
+    private static final int CLOCK_INTERVAL = 1024;
+
+    private final FeeSelector heuristic;
+    private final int maxComponentSize;
+    private final long budgetNanos;
+
+    /** Creates a selector improving on {@link AncestorPackageFeeSelector} with default limits */
+    public BranchAndBoundFeeSelector() {
+        this(new AncestorPackageFeeSelector(), DEFAULT_MAX_COMPONENT_SIZE, DEFAULT_BUDGET_MILLIS);
+    }
+
+    /**
+     * Creates a selector improving on the selections of {@code heuristic} for components of at
+     * most {@code maxComponentSize} candidates, spending at most about {@code budgetMillis}
+     * milliseconds per epoch on top of the heuristic.
+     */
+    public BranchAndBoundFeeSelector(FeeSelector heuristic, int maxComponentSize,
+                                     long budgetMillis) {
+        this.heuristic = heuristic;
+        this.maxComponentSize = maxComponentSize;
+        this.budgetNanos = budgetMillis * 1000000L;
+    }
+
+    @Override
+    public boolean[] select(FeeSelectionProblem problem) {
+        long deadline = System.nanoTime() + budgetNanos;
+        boolean[] selection = heuristic.select(problem);
+        // Shared by all searches, each one leaves them cleared
+        boolean[] claimed = new boolean[problem.numClaims()];
+        boolean[] chosen = new boolean[problem.numCandidates()];
+        for (int[] component : problem.components()) {
+            if (component.length < 2 || component.length > maxComponentSize) {
+                continue;
+            }
+            Search search = new Search(problem, component, selection, deadline, claimed, chosen);
+            if (!search.run()) {
+                break;
+            }
+        }
+        return selection;
+    }
+
+    /** The exact search of one component */
+    private static final class Search {
+        final FeeSelectionProblem problem;
+        final int[] members;
+        final boolean[] selection;
+        final long deadline;
+        /** remaining[k] is the total fee of members[k] and later */
+        final long[] remaining;
+        final boolean[] claimed;
+        final boolean[] chosen;
+        long best;
+        boolean[] bestChosen;
+        long nodes;
+        boolean timedOut;
+
+        Search(FeeSelectionProblem problem, int[] members, boolean[] selection, long deadline,
+               boolean[] claimed, boolean[] chosen) {
+            this.problem = problem;
+            this.members = members;
+            this.selection = selection;
+            this.deadline = deadline;
+            remaining = new long[members.length + 1];
+            for (int k = members.length - 1; k >= 0; --k) {
+                remaining[k] = remaining[k + 1] + problem.getFee(members[k]);
+            }
+            this.claimed = claimed;
+            this.chosen = chosen;
+            bestChosen = new boolean[members.length];
+            for (int k = 0; k < members.length; ++k) {
+                bestChosen[k] = selection[members[k]];
+                if (bestChosen[k]) {
+                    best += problem.getFee(members[k]);
+                }
+            }
+        }
+
+        /**
+         * Searches the component and writes the best selection found into {@code selection}.
+         *
+         * @return false if the time budget ran out
+         */
+        boolean run() {
+            boolean improved = search(0, 0);
+            if (improved || timedOut) {
+                for (int k = 0; k < members.length; ++k) {
+                    selection[members[k]] = bestChosen[k];
+                }
+            }
+            return !timedOut;
+        }
+
+        /** @return true if a selection better than the heuristic's was found */
+        private boolean search(int k, long fee) {
+            if (timedOut) {
+                return false;
+            }
+            if (++nodes % CLOCK_INTERVAL == 0 && System.nanoTime() > deadline) {
+                timedOut = true;
+                return false;
+            }
+            if (fee + remaining[k] <= best) {
+                return false;
+            }
+            if (k == members.length) {
+                best = fee;
+                for (int j = 0; j < members.length; ++j) {
+                    bestChosen[j] = chosen[members[j]];
+                }
+                return true;
+            }
+
+            boolean improved = false;
+            int m = members[k];
+            if (canChoose(m)) {
+                choose(m);
+                improved = search(k + 1, fee + problem.getFee(m));
+                unchoose(m);
+            }
+            return search(k + 1, fee) || improved;
+        }
+
+        private boolean canChoose(int m) {
+            for (int p : problem.getParents(m)) {
+                if (!chosen[p]) {
+                    return false;
+                }
+            }
+            for (int c : problem.getClaims(m)) {
+                if (claimed[c]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void choose(int m) {
+            chosen[m] = true;
+            for (int c : problem.getClaims(m)) {
+                claimed[c] = true;
+            }
+        }
+
+        private void unchoose(int m) {
+            chosen[m] = false;
+            for (int c : problem.getClaims(m)) {
+                claimed[c] = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A thread-safe {@link UTXOStore} made of independently locked shards, each UTXO living in the
+ * shard selected by the high bits of its hash code. Lookups take the read lock of one shard and
+ * changes its write lock, so threads working on different UTXOs rarely wait for each other.
+ *
+ * Besides single changes, the store offers compound changes that are atomic: {@link #removeAll}
+ * removes a set of UTXOs only if all of them are present, and {@link #spend} does the same and
+ * adds new UTXOs in the same step. They lock every shard involved, always in ascending order so
+ * that concurrent compound changes can not deadlock. {@link #keys()} is not atomic, while {@link
+ * #size()} and {@link #copy()} see a consistent state of the whole store.
+ */
+public class ConcurrentUTXOStore implements UTXOStore {
+
+    /** Number of shards, a power of two */
+    private static final int SHARDS = 64;
+    private static final int SHARD_SHIFT = 32 - Integer.numberOfTrailingZeros(SHARDS);
+
+    private final Shard[] shards;
+
+    /** Creates a new empty store */
+    public ConcurrentUTXOStore() {
+        shards = new Shard[SHARDS];
+        for (int i = 0; i < SHARDS; ++i) {
+            shards[i] = new Shard();
+        }
+    }
+
+    @Override
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        Shard shard = shardOf(utxo);
+        shard.lock.writeLock().lock();
+        try {
+            shard.H.put(utxo, txOut);
+        } finally {
+            shard.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void remove(UTXO utxo) {
+        if (utxo == null) {
+            return;
+        }
+        Shard shard = shardOf(utxo);
+        shard.lock.writeLock().lock();
+        try {
+            shard.H.remove(utxo);
+        } finally {
+            shard.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Transaction.Output get(UTXO utxo) {
+        if (utxo == null) {
+            return null;
+        }
+        Shard shard = shardOf(utxo);
+        shard.lock.readLock().lock();
+        try {
+            return shard.H.get(utxo);
+        } finally {
+            shard.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(UTXO utxo) {
+        if (utxo == null) {
+            return false;
+        }
+        Shard shard = shardOf(utxo);
+        shard.lock.readLock().lock();
+        try {
+            return shard.H.containsKey(utxo);
+        } finally {
+            shard.lock.readLock().unlock();
+        }
+    }
+
+    /** @return all UTXOs of the store, read one shard at a time */
+    @Override
+    public ArrayList<UTXO> keys() {
+        ArrayList<UTXO> keys = new ArrayList<UTXO>();
+        for (Shard shard : shards) {
+            shard.lock.readLock().lock();
+            try {
+                keys.addAll(shard.H.keySet());
+            } finally {
+                shard.lock.readLock().unlock();
+            }
+        }
+        return keys;
+    }
+
+    @Override
+    public int size() {
+        lockAll();
+        try {
+            int size = 0;
+            for (Shard shard : shards) {
+                size += shard.H.size();
+            }
+            return size;
+        } finally {
+            unlockAll();
+        }
+    }
+
+    @Override
+    public UTXOStore copy() {
+        ConcurrentUTXOStore copy = new ConcurrentUTXOStore();
+        lockAll();
+        try {
+            for (int i = 0; i < SHARDS; ++i) {
+                copy.shards[i].H.putAll(shards[i].H);
+            }
+        } finally {
+            unlockAll();
+        }
+        return copy;
+    }
+
+    /**
+     * Removes all of {@code utxos} as one atomic step if each of them is present and listed once,
+     * and does nothing otherwise.
+     *
+     * @return true if the UTXOs were removed
+     */
+    public boolean removeAll(Collection<UTXO> utxos) {
+        return spend(utxos, null);
+    }
+
+    /**
+     * Removes all of {@code inputs} and adds all mappings of {@code outputs} as one atomic step,
+     * if each of {@code inputs} is present and listed once. Does nothing otherwise.
+     *
+     * @param outputs the mappings to add, or null to only remove {@code inputs}
+     * @return true if the store was changed
+     */
+    public boolean spend(Collection<UTXO> inputs, Map<UTXO, Transaction.Output> outputs) {
+        boolean[] involved = new boolean[SHARDS];
+        for (UTXO utxo : inputs) {
+            if (utxo == null) {
+                return false;
+            }
+            involved[indexOf(utxo)] = true;
+        }
+        if (outputs != null) {
+            for (UTXO utxo : outputs.keySet()) {
+                involved[indexOf(utxo)] = true;
+            }
+        }
+        if (new HashSet<UTXO>(inputs).size() != inputs.size()) {
+            return false;
+        }
+
+        for (int i = 0; i < SHARDS; ++i) {
+            if (involved[i]) {
+                shards[i].lock.writeLock().lock();
+            }
+        }
+        try {
+            for (UTXO utxo : inputs) {
+                if (!shardOf(utxo).H.containsKey(utxo)) {
+                    return false;
+                }
+            }
+            for (UTXO utxo : inputs) {
+                shardOf(utxo).H.remove(utxo);
+            }
+            if (outputs != null) {
+                for (Map.Entry<UTXO, Transaction.Output> entry : outputs.entrySet()) {
+                    shardOf(entry.getKey()).H.put(entry.getKey(), entry.getValue());
+                }
+            }
+            return true;
+        } finally {
+            for (int i = SHARDS - 1; i >= 0; --i) {
+                if (involved[i]) {
+                    shards[i].lock.writeLock().unlock();
+                }
+            }
+        }
+    }
+
+    private void lockAll() {
+        for (Shard shard : shards) {
+            shard.lock.readLock().lock();
+        }
+    }
+
+    private void unlockAll() {
+        for (int i = SHARDS - 1; i >= 0; --i) {
+            shards[i].lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Uses the high bits of the hash code, since the maps of the shards pick their buckets with
+     * the low ones
+     */
+    private static int indexOf(UTXO utxo) {
+        return utxo.hashCode() >>> SHARD_SHIFT;
+    }
+
+    private Shard shardOf(UTXO utxo) {
+        return shards[indexOf(utxo)];
+    }
+
+    private static final class Shard {
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        final HashMap<UTXO, Transaction.Output> H = new HashMap<UTXO, Transaction.Output>();
+    }
+}
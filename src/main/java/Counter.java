@@ -0,0 +1,10 @@
+/** A monotonic count, see {@link MetricsRegistry#counter(String)} */
+public interface Counter {
+
+    void increment();
+
+    void add(long n);
+
+    /** @return the current count */
+    long sum();
+}
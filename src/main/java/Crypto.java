@@ -1,36 +1,208 @@
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
 import java.security.PublicKey;
+import java.security.Security;
 import java.security.Signature;
 import java.security.SignatureException;
+import java.util.EnumMap;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
 public class Crypto {
 
+    /** The signature algorithm used to sign transaction inputs */
+    public static final String ALGORITHM = "SHA256withRSA";
+
+    /** The security providers a signature can be verified with */
+    public enum SignatureProvider {
+        /** the RSA implementation shipped with the JDK */
+        SUN_RSA_SIGN("SunRsaSign"),
+        /** the BouncyCastle provider, registered on first use if needed */
+        BOUNCY_CASTLE("BC");
+
+        private final String providerName;
+
+        SignatureProvider(String providerName) {
+            this.providerName = providerName;
+        }
+
+        /** @return the name the provider is registered under */
+        public String getProviderName() {
+            return providerName;
+        }
+    }
+
+    /** Time of each verification, and number of invalid or unverifiable signatures */
+    private static final LatencyRecorder VERIFY_LATENCY =
+            Metrics.registry().latency("crypto.verify");
+    private static final Counter INVALID = Metrics.registry().counter("crypto.verify.invalid");
+    private static final Counter ERRORS = Metrics.registry().counter("crypto.verify.errors");
+
+    /** Provider used by {@link #verifySignature(PublicKey, byte[], byte[])} */
+    private static volatile SignatureProvider defaultProvider = SignatureProvider.SUN_RSA_SIGN;
+
+    /**
+     * Signature engines of the current thread, one per provider. Engines are expensive to look up
+     * and allocate, and can be reused for any number of verifications once created.
+     */
+    private static final ThreadLocal<EnumMap<SignatureProvider, Signature>> ENGINES =
+            new ThreadLocal<EnumMap<SignatureProvider, Signature>>() {
+                @Override
+                protected EnumMap<SignatureProvider, Signature> initialValue() {
+                    return new EnumMap<SignatureProvider, Signature>(SignatureProvider.class);
+                }
+            };
+
+    /** Sets the provider used by {@link #verifySignature(PublicKey, byte[], byte[])} */
+    public static void setDefaultProvider(SignatureProvider provider) {
+        if (provider == null) {
+            throw new IllegalArgumentException("provider must not be null");
+        }
+        defaultProvider = provider;
+    }
+
+    /** @return the provider used by {@link #verifySignature(PublicKey, byte[], byte[])} */
+    public static SignatureProvider getDefaultProvider() {
+        return defaultProvider;
+    }
+
     /**
      * @return true is {@code signature} is a valid digital signature of {@code message} under the
      *         key {@code pubKey}. Internally, this uses RSA signature, but the student does not
      *         have to deal with any of the implementation details of the specific signature
      *         algorithm
+     * @throws IllegalStateException if the signature algorithm or provider is not available
      */
     public static boolean verifySignature(PublicKey pubKey, byte[] message, byte[] signature) {
-        Signature sig = null;
+        return verifySignature(pubKey, new byte[][] { message }, signature);
+    }
+
+    /**
+     * Same as {@link #verifySignature(PublicKey, byte[], byte[])} for the message made of the
+     * concatenation of {@code messageParts}, which are fed to the signature engine one after the
+     * other instead of being copied into a single array first.
+     */
+    public static boolean verifySignature(PublicKey pubKey, byte[][] messageParts,
+                                          byte[] signature) {
+        return verifySignature(pubKey, wrap(messageParts), ByteBuffer.wrap(signature));
+    }
+
+    /**
+     * Same as {@link #verifySignature(PublicKey, byte[][], byte[])} for a message and a signature
+     * that are the remaining bytes of buffers, such as slices of a {@link TransactionView}. The
+     * positions of the buffers are not moved.
+     */
+    public static boolean verifySignature(PublicKey pubKey, ByteBuffer[] messageParts,
+                                          ByteBuffer signature) {
+        try {
+            return verify(pubKey, messageParts, signature, defaultProvider);
+        } catch (CryptoException e) {
+            if (e.isConfigurationError()) {
+                throw new IllegalStateException("Can not verify " + ALGORITHM + " signatures", e);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Verifies {@code signature} of {@code message} under the key {@code pubKey} with a signature
+     * engine of {@code provider} that is cached for the current thread.
+     *
+     * @return true if {@code signature} is valid and false if it is not
+     * @throws CryptoException if the signature could not be verified at all
+     */
+    public static boolean verify(PublicKey pubKey, byte[] message, byte[] signature,
+                                 SignatureProvider provider) throws CryptoException {
+        return verify(pubKey, new byte[][] { message }, signature, provider);
+    }
+
+    /**
+     * Same as {@link #verify(PublicKey, byte[], byte[], SignatureProvider)} for the message made
+     * of the concatenation of {@code messageParts}.
+     */
+    public static boolean verify(PublicKey pubKey, byte[][] messageParts, byte[] signature,
+                                 SignatureProvider provider) throws CryptoException {
+        return verify(pubKey, wrap(messageParts), ByteBuffer.wrap(signature), provider);
+    }
+
+    /**
+     * Same as {@link #verify(PublicKey, byte[][], byte[], SignatureProvider)} for a message and a
+     * signature that are the remaining bytes of buffers, whose positions are not moved.
+     */
+    public static boolean verify(PublicKey pubKey, ByteBuffer[] messageParts, ByteBuffer signature,
+                                 SignatureProvider provider) throws CryptoException {
+        long start = VERIFY_LATENCY.start();
         try {
-            sig = Signature.getInstance("SHA256withRSA");
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
+            boolean valid = verifyWith(engine(provider), pubKey, messageParts, signature);
+            if (!valid) {
+                INVALID.increment();
+            }
+            return valid;
+        } catch (CryptoException e) {
+            ERRORS.increment();
+            throw e;
+        } finally {
+            VERIFY_LATENCY.record(start);
         }
+    }
+
+    private static boolean verifyWith(Signature sig, PublicKey pubKey, ByteBuffer[] messageParts,
+                                      ByteBuffer signature) throws CryptoException {
         try {
             sig.initVerify(pubKey);
         } catch (InvalidKeyException e) {
-            e.printStackTrace();
+            throw new CryptoException(CryptoException.Reason.INVALID_KEY, e);
         }
         try {
-            sig.update(message);
-            return sig.verify(signature);
+            for (ByteBuffer part : messageParts) {
+                sig.update(part.duplicate());
+            }
+            if (signature.hasArray()) {
+                return sig.verify(signature.array(), signature.arrayOffset() + signature.position(),
+                        signature.remaining());
+            }
+            byte[] copy = new byte[signature.remaining()];
+            signature.duplicate().get(copy);
+            return sig.verify(copy);
         } catch (SignatureException e) {
-            e.printStackTrace();
+            throw new CryptoException(CryptoException.Reason.MALFORMED_SIGNATURE, e);
         }
-        return false;
+    }
 
+    private static ByteBuffer[] wrap(byte[][] parts) {
+        ByteBuffer[] buffers = new ByteBuffer[parts.length];
+        for (int i = 0; i < parts.length; ++i) {
+            buffers[i] = ByteBuffer.wrap(parts[i]);
+        }
+        return buffers;
+    }
+
+    /** @return the signature engine of {@code provider} for the current thread */
+    private static Signature engine(SignatureProvider provider) throws CryptoException {
+        EnumMap<SignatureProvider, Signature> engines = ENGINES.get();
+        Signature sig = engines.get(provider);
+        if (sig == null) {
+            try {
+                sig = Signature.getInstance(ALGORITHM, lookupProvider(provider));
+            } catch (NoSuchAlgorithmException e) {
+                throw new CryptoException(CryptoException.Reason.NO_SUCH_ALGORITHM, e);
+            }
+            engines.put(provider, sig);
+        }
+        return sig;
+    }
+
+    private static Provider lookupProvider(SignatureProvider provider) throws CryptoException {
+        Provider p = Security.getProvider(provider.getProviderName());
+        if (p == null && provider == SignatureProvider.BOUNCY_CASTLE) {
+            Security.addProvider(new BouncyCastleProvider());
+            p = Security.getProvider(provider.getProviderName());
+        }
+        if (p == null) {
+            throw new CryptoException(CryptoException.Reason.NO_SUCH_PROVIDER, null);
+        }
+        return p;
     }
 }
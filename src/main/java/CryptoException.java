@@ -0,0 +1,36 @@
+/** Thrown when a signature can not be verified, as opposed to being verified and found invalid */
+public class CryptoException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public enum Reason {
+        /** the signature algorithm is not supported by the requested provider */
+        NO_SUCH_ALGORITHM,
+        /** the requested security provider is not available */
+        NO_SUCH_PROVIDER,
+        /** the public key can not be used for the signature algorithm */
+        INVALID_KEY,
+        /** the signature bytes are not a well-formed signature */
+        MALFORMED_SIGNATURE
+    }
+
+    private final Reason reason;
+
+    public CryptoException(Reason reason, Throwable cause) {
+        super(reason.name(), cause);
+        this.reason = reason;
+    }
+
+    /** @return why the signature could not be verified */
+    public Reason getReason() {
+        return reason;
+    }
+
+    /**
+     * @return true if the failure is caused by the environment (a missing algorithm or provider)
+     *         rather than by the key or signature being verified
+     */
+    public boolean isConfigurationError() {
+        return reason == Reason.NO_SUCH_ALGORITHM || reason == Reason.NO_SUCH_PROVIDER;
+    }
+}
@@ -0,0 +1,40 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event spanning one call of {@code handleTxs}. Every epoch of every handler gets
+ * its own id, carried by the other events emitted while it runs, so that they can be grouped by
+ * epoch in JDK Mission Control.
+ */
+@Name("scroogecoin.Epoch")
+@Label("Epoch")
+@Category("Scrooge Coin")
+@Description("Handling of one epoch of proposed transactions")
+@StackTrace(false)
+class EpochEvent extends Event {
+
+    private static final AtomicLong EPOCHS = new AtomicLong();
+
+    @Label("Handler")
+    String handler;
+
+    @Label("Epoch")
+    long epoch;
+
+    @Label("Proposed Transactions")
+    int proposed;
+
+    @Label("Accepted Transactions")
+    int accepted;
+
+    /** @return the id of a new epoch, unique within the virtual machine */
+    static long nextEpoch() {
+        return EPOCHS.incrementAndGet();
+    }
+}
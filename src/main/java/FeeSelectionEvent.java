@@ -0,0 +1,31 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/** Flight Recorder event spanning the choice of the accepted transactions of a fee epoch */
+@Name("scroogecoin.FeeSelection")
+@Label("Fee Selection")
+@Category("Scrooge Coin")
+@Description("Choice of the accepted transactions by the FeeSelector of MaxFeeTxHandler")
+@StackTrace(false)
+class FeeSelectionEvent extends Event {
+
+    @Label("Epoch")
+    long epoch;
+
+    @Label("Selector")
+    String selector;
+
+    @Label("Candidates")
+    int candidates;
+
+    @Label("Selected")
+    int selected;
+
+    @Label("Total Fee")
+    @Description("Sum of the fees of the selected candidates, in base units")
+    long totalFee;
+}
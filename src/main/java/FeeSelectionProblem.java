@@ -0,0 +1,262 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+/**
+ * The valid transactions proposed in one epoch of {@link MaxFeeTxHandler}, reduced to what a
+ * {@link FeeSelector} needs. Each candidate has a fee in base units (see {@link Amounts}), so that
+ * fees add up exactly, a size in bytes, the candidates whose
+ * outputs it spends (its parents) and the UTXOs it claims, numbered from 0 to {@link
+ * #numClaims()} - 1. A selection is valid if it contains the parents of every selected candidate
+ * and no UTXO is claimed by two selected candidates.
+ */
+public final class FeeSelectionProblem {
+
+    private final long[] fees;
+    private final double[] feeRates;
+    private final int[] sizes;
+    private final int[][] parents;
+    private final int[][] children;
+    private final int[][] claims;
+    private final int numClaims;
+
+    /**
+     * @param fees    the fee of each candidate in base units, non-negative
+     * @param sizes   the size of each candidate in bytes, positive
+     * @param parents the parents of each candidate, each listed once
+     * @param claims  the UTXOs claimed by each candidate, each listed once
+     */
+    public FeeSelectionProblem(long[] fees, int[] sizes, int[][] parents, int[][] claims) {
+        int n = fees.length;
+        if (sizes.length != n || parents.length != n || claims.length != n) {
+            throw new IllegalArgumentException("Every candidate needs a fee, size, parents and claims");
+        }
+        this.fees = fees;
+        this.sizes = sizes;
+        this.parents = parents;
+        this.claims = claims;
+        feeRates = new double[n];
+        for (int i = 0; i < n; ++i) {
+            feeRates[i] = (double) fees[i] / Math.max(sizes[i], 1);
+        }
+
+        int[] numChildren = new int[n];
+        int maxClaim = -1;
+        for (int i = 0; i < n; ++i) {
+            for (int p : parents[i]) {
+                numChildren[p]++;
+            }
+            for (int c : claims[i]) {
+                maxClaim = Math.max(maxClaim, c);
+            }
+        }
+        numClaims = maxClaim + 1;
+        children = new int[n][];
+        for (int i = 0; i < n; ++i) {
+            children[i] = new int[numChildren[i]];
+            numChildren[i] = 0;
+        }
+        for (int i = 0; i < n; ++i) {
+            for (int p : parents[i]) {
+                children[p][numChildren[p]++] = i;
+            }
+        }
+    }
+
+    public int numCandidates() {
+        return fees.length;
+    }
+
+    public int numClaims() {
+        return numClaims;
+    }
+
+    /** @return the fee of {@code candidate} in base units */
+    public long getFee(int candidate) {
+        return fees[candidate];
+    }
+
+    /** @return the fee of {@code candidate} per byte */
+    public double getFeeRate(int candidate) {
+        return feeRates[candidate];
+    }
+
+    public int getSize(int candidate) {
+        return sizes[candidate];
+    }
+
+    public int[] getParents(int candidate) {
+        return parents[candidate];
+    }
+
+    public int[] getChildren(int candidate) {
+        return children[candidate];
+    }
+
+    public int[] getClaims(int candidate) {
+        return claims[candidate];
+    }
+
+    /** @return all candidates by decreasing fee, candidates of equal fee by increasing index */
+    public int[] byDecreasingFee() {
+        return sortIndexes(fees, null);
+    }
+
+    /** @return all candidates by decreasing fee rate, then by increasing index */
+    public int[] byDecreasingFeeRate() {
+        return sortIndexes(null, feeRates);
+    }
+
+    /** @return true if {@code selection} is a valid selection of candidates */
+    public boolean isValid(boolean[] selection) {
+        if (selection.length != fees.length) {
+            return false;
+        }
+        boolean[] claimed = new boolean[numClaims];
+        for (int i = 0; i < fees.length; ++i) {
+            if (!selection[i]) {
+                continue;
+            }
+            for (int p : parents[i]) {
+                if (!selection[p]) {
+                    return false;
+                }
+            }
+            for (int c : claims[i]) {
+                if (claimed[c]) {
+                    return false;
+                }
+                claimed[c] = true;
+            }
+        }
+        return true;
+    }
+
+    /** @return the sum of the fees of the selected candidates, in base units */
+    public long totalFee(boolean[] selection) {
+        long total = 0;
+        for (int i = 0; i < fees.length; ++i) {
+            if (selection[i]) {
+                total += fees[i];
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return the groups of candidates linked by a shared claim or a spend, which can be selected
+     *         independently of each other. Each group lists parents before their children.
+     *         Candidates on a cycle of parents can never be selected and are left out.
+     */
+    public int[][] components() {
+        int n = fees.length;
+        int[] group = new int[n];
+        for (int i = 0; i < n; ++i) {
+            group[i] = i;
+        }
+        int[] claimant = new int[numClaims];
+        Arrays.fill(claimant, -1);
+        for (int i = 0; i < n; ++i) {
+            for (int c : claims[i]) {
+                if (claimant[c] < 0) {
+                    claimant[c] = i;
+                } else {
+                    union(group, claimant[c], i);
+                }
+            }
+            for (int p : parents[i]) {
+                union(group, p, i);
+            }
+        }
+
+        // Lowest index first among the candidates whose parents have been listed
+        int[] pendingParents = new int[n];
+        PriorityQueue<Integer> ready = new PriorityQueue<Integer>();
+        for (int i = 0; i < n; ++i) {
+            pendingParents[i] = parents[i].length;
+            if (pendingParents[i] == 0) {
+                ready.add(i);
+            }
+        }
+        int[] componentOf = new int[n];
+        Arrays.fill(componentOf, -1);
+        ArrayList<ArrayList<Integer>> members = new ArrayList<ArrayList<Integer>>();
+        while (!ready.isEmpty()) {
+            int i = ready.poll();
+            int root = find(group, i);
+            if (componentOf[root] < 0) {
+                componentOf[root] = members.size();
+                members.add(new ArrayList<Integer>());
+            }
+            members.get(componentOf[root]).add(i);
+            for (int child : children[i]) {
+                if (--pendingParents[child] == 0) {
+                    ready.add(child);
+                }
+            }
+        }
+
+        int[][] components = new int[members.size()][];
+        for (int g = 0; g < components.length; ++g) {
+            ArrayList<Integer> m = members.get(g);
+            components[g] = new int[m.size()];
+            for (int k = 0; k < m.size(); ++k) {
+                components[g][k] = m.get(k);
+            }
+        }
+        return components;
+    }
+
+    /**
+     * @return the indexes of the keys by decreasing key, stable so that equal keys keep their
+     *         order. A merge sort on the primitive arrays, without boxing or comparators. The
+     *         keys are {@code longKeys}, or {@code doubleKeys} if it is null.
+     */
+    private static int[] sortIndexes(long[] longKeys, double[] doubleKeys) {
+        int n = longKeys != null ? longKeys.length : doubleKeys.length;
+        int[] order = new int[n];
+        for (int i = 0; i < n; ++i) {
+            order[i] = i;
+        }
+        int[] buffer = new int[n];
+        for (int width = 1; width < n; width *= 2) {
+            for (int lo = 0; lo < n - width; lo += 2 * width) {
+                int mid = lo + width;
+                int hi = Math.min(lo + 2 * width, n);
+                int i = lo;
+                int j = mid;
+                int k = lo;
+                while (i < mid && j < hi) {
+                    boolean greater = longKeys != null
+                            ? longKeys[order[j]] > longKeys[order[i]]
+                            : doubleKeys[order[j]] > doubleKeys[order[i]];
+                    buffer[k++] = greater ? order[j++] : order[i++];
+                }
+                while (i < mid) {
+                    buffer[k++] = order[i++];
+                }
+                while (j < hi) {
+                    buffer[k++] = order[j++];
+                }
+                System.arraycopy(buffer, lo, order, lo, hi - lo);
+            }
+        }
+        return order;
+    }
+
+    private static int find(int[] group, int i) {
+        while (group[i] != i) {
+            group[i] = group[group[i]];
+            i = group[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] group, int a, int b) {
+        int ra = find(group, a);
+        int rb = find(group, b);
+        if (ra != rb) {
+            group[Math.max(ra, rb)] = Math.min(ra, rb);
+        }
+    }
+}
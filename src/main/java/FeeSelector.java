@@ -0,0 +1,12 @@
+/**
+ * Chooses which valid transactions of an epoch {@link MaxFeeTxHandler} accepts, aiming at the
+ * highest total fee. Implementations must be thread-safe if shared between handlers.
+ */
+public interface FeeSelector {
+
+    /**
+     * @return a valid selection of the candidates of {@code problem}, see {@link
+     *         FeeSelectionProblem#isValid(boolean[])}
+     */
+    boolean[] select(FeeSelectionProblem problem);
+}
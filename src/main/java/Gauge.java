@@ -0,0 +1,9 @@
+/**
+ * A value read whenever a metric is exported, see {@link MetricsRegistry#gauge(String, Gauge)}.
+ * Gauges may be read from any thread.
+ */
+public interface Gauge {
+
+    /** @return the current value */
+    long value();
+}
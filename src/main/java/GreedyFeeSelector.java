@@ -0,0 +1,40 @@
+/**
+ * Takes candidates by decreasing fee, skipping those that claim an already claimed UTXO or whose
+ * parents have not been taken before them. This is the original strategy of {@link
+ * MaxFeeTxHandler}: fast, but blind to fee density and to cheap parents of rich children.
+ */
+public class GreedyFeeSelector implements FeeSelector {
+
+    @Override
+    public boolean[] select(FeeSelectionProblem problem) {
+        int n = problem.numCandidates();
+        int[] order = problem.byDecreasingFee();
+
+        boolean[] selection = new boolean[n];
+        boolean[] claimed = new boolean[problem.numClaims()];
+        for (int i : order) {
+            if (canTake(problem, i, selection, claimed)) {
+                selection[i] = true;
+                for (int c : problem.getClaims(i)) {
+                    claimed[c] = true;
+                }
+            }
+        }
+        return selection;
+    }
+
+    private static boolean canTake(FeeSelectionProblem problem, int i, boolean[] selection,
+                                   boolean[] claimed) {
+        for (int p : problem.getParents(i)) {
+            if (!selection[p]) {
+                return false;
+            }
+        }
+        for (int c : problem.getClaims(i)) {
+            if (claimed[c]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
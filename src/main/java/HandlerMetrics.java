@@ -0,0 +1,137 @@
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The metrics of a handler class, shared by all its instances and named after {@code prefix}:
+ * {@code .epochs}, {@code .txs.proposed}, {@code .txs.accepted} and {@code .txs.rejected.<reason>}
+ * for each {@link ValidationResult} count transactions, {@code .latency.epoch}, {@code
+ * .latency.verify}, {@code .latency.validate} and {@code .latency.select} time the stages of each
+ * epoch, {@code .latency.commit} times each transaction committed to the pool of a handler, and
+ * {@code .pool.spent} and {@code .pool.created} count the UTXOs they spend and create. The size of
+ * the pool of each handler is the gauge {@code .pool.size.<n>}, see {@link #followPool}.
+ */
+final class HandlerMetrics {
+
+    final Counter epochs;
+    final Counter proposed;
+    final Counter accepted;
+    /** Rejections by {@link ValidationResult#code()} */
+    private final Counter[] rejected;
+
+    final LatencyRecorder epoch;
+    /** Up-front signature verification of an epoch */
+    final LatencyRecorder verify;
+    /**
+     * Checking the transactions of an epoch, which includes the up-front verification in {@link
+     * MaxFeeTxHandler} and accepting them in {@link TxHandler}
+     */
+    final LatencyRecorder validate;
+    /** Choosing the accepted transactions among the valid ones */
+    final LatencyRecorder select;
+    /** Committing one transaction to the pool of the handler */
+    final LatencyRecorder commit;
+
+    final Counter spent;
+    final Counter created;
+
+    private final MetricsRegistry registry;
+    private final String poolSizePrefix;
+    /** Number of handlers whose pool has been followed */
+    private final AtomicInteger handlers = new AtomicInteger();
+    /** Pool sizes of handlers that have been garbage collected, whose gauges are still exported */
+    private final ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+
+    HandlerMetrics(String prefix) {
+        this(prefix, Metrics.registry());
+    }
+
+    HandlerMetrics(String prefix, MetricsRegistry registry) {
+        this.registry = registry;
+        epochs = registry.counter(prefix + ".epochs");
+        proposed = registry.counter(prefix + ".txs.proposed");
+        accepted = registry.counter(prefix + ".txs.accepted");
+        ValidationResult[] results = ValidationResult.values();
+        rejected = new Counter[results.length];
+        for (ValidationResult result : results) {
+            rejected[result.code()] = registry.counter(prefix + ".txs.rejected."
+                    + result.name().toLowerCase(Locale.ROOT));
+        }
+        epoch = registry.latency(prefix + ".latency.epoch");
+        verify = registry.latency(prefix + ".latency.verify");
+        validate = registry.latency(prefix + ".latency.validate");
+        select = registry.latency(prefix + ".latency.select");
+        commit = registry.latency(prefix + ".latency.commit");
+        spent = registry.counter(prefix + ".pool.spent");
+        created = registry.counter(prefix + ".pool.created");
+        poolSizePrefix = prefix + ".pool.size.";
+    }
+
+    /**
+     * Counts a rejection if {@code result}, a fee or minus a code as returned by {@link
+     * TxValidator#check}, is negative.
+     */
+    void checked(long result) {
+        if (result < 0) {
+            rejected[(int) -result].increment();
+        }
+    }
+
+    /** Counts {@code n} rejections for {@code reason} */
+    void rejected(ValidationResult reason, long n) {
+        rejected[reason.code()].add(n);
+    }
+
+    /**
+     * Exports the gauge {@code .pool.size.<n>} following the pool of {@code handler}, the n-th one
+     * created, starting at the size of {@code pool}. The gauge is removed once {@code handler} has
+     * been garbage collected, when the next handler is created.
+     *
+     * @return the size to pass to {@link #committed} for each transaction the handler commits
+     */
+    PoolSize followPool(Object handler, UTXOPool pool) {
+        Reference<?> reference;
+        while ((reference = collected.poll()) != null) {
+            registry.removeGauge(((PoolSize) reference).name);
+        }
+        PoolSize size = new PoolSize(handler, collected,
+                poolSizePrefix + handlers.incrementAndGet());
+        if (Metrics.isEnabled()) {
+            size.size.set(pool.size());
+            registry.gauge(size.name, size);
+        }
+        return size;
+    }
+
+    /** Counts {@code tx} committed to the pool of size {@code poolSize}, see {@link #followPool} */
+    void committed(Transaction tx, PoolSize poolSize) {
+        spent.add(tx.numInputs());
+        created.add(tx.numOutputs());
+        if (Metrics.isEnabled()) {
+            poolSize.size.addAndGet(tx.numOutputs() - tx.numInputs());
+        }
+    }
+
+    /**
+     * The size of the pool of a handler, exported as a gauge while the handler, which it refers to
+     * weakly, is reachable
+     */
+    static final class PoolSize extends WeakReference<Object> implements Gauge {
+        /** Name of the gauge */
+        final String name;
+        private final AtomicLong size = new AtomicLong();
+
+        PoolSize(Object handler, ReferenceQueue<Object> queue, String name) {
+            super(handler, queue);
+            this.name = name;
+        }
+
+        @Override
+        public long value() {
+            return size.get();
+        }
+    }
+}
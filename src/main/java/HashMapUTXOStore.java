@@ -0,0 +1,55 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/** The default {@link UTXOStore}, a plain {@code HashMap} */
+public class HashMapUTXOStore implements UTXOStore {
+
+    /**
+     * The current collection of UTXOs, with each one mapped to its corresponding transaction output
+     */
+    private HashMap<UTXO, Transaction.Output> H;
+
+    /** Creates a new empty store */
+    public HashMapUTXOStore() {
+        H = new HashMap<UTXO, Transaction.Output>();
+    }
+
+    private HashMapUTXOStore(HashMapUTXOStore store) {
+        H = new HashMap<UTXO, Transaction.Output>(store.H);
+    }
+
+    @Override
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        H.put(utxo, txOut);
+    }
+
+    @Override
+    public void remove(UTXO utxo) {
+        H.remove(utxo);
+    }
+
+    @Override
+    public Transaction.Output get(UTXO utxo) {
+        return H.get(utxo);
+    }
+
+    @Override
+    public boolean contains(UTXO utxo) {
+        return H.containsKey(utxo);
+    }
+
+    @Override
+    public ArrayList<UTXO> keys() {
+        return new ArrayList<UTXO>(H.keySet());
+    }
+
+    @Override
+    public int size() {
+        return H.size();
+    }
+
+    @Override
+    public UTXOStore copy() {
+        return new HashMapUTXOStore(this);
+    }
+}
@@ -0,0 +1,150 @@
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The default {@link MetricsRegistry}, exporting every metric as an MXBean of the platform MBean
+ * server, under the domain {@value #DOMAIN} with the metric's name as {@code name} key and its
+ * kind as {@code type} key, for example {@code scroogecoin:type=Counter,name=txhandler.epochs}.
+ * Metrics that can not be registered, for example because another registry already exported the
+ * same name or the name is not a valid key value, are still recorded but not exported. Removing a
+ * gauge unregisters its MBean.
+ */
+public class JmxMetricsRegistry extends SimpleMetricsRegistry {
+
+    /** Domain of the exported MBeans */
+    public static final String DOMAIN = "scroogecoin";
+
+    public interface CounterMXBean {
+        long getCount();
+    }
+
+    public interface GaugeMXBean {
+        long getValue();
+    }
+
+    public interface LatencyMXBean {
+        long getCount();
+
+        double getMeanMillis();
+
+        double get50thPercentileMillis();
+
+        double get90thPercentileMillis();
+
+        double get99thPercentileMillis();
+
+        double get999thPercentileMillis();
+
+        double getMaxMillis();
+    }
+
+    private final MBeanServer server;
+    /** Names of the MBeans this registry exported, which it may unregister */
+    private final Set<ObjectName> exported = ConcurrentHashMap.newKeySet();
+
+    /** Creates a registry exporting its metrics to the platform MBean server */
+    public JmxMetricsRegistry() {
+        this(ManagementFactory.getPlatformMBeanServer());
+    }
+
+    /** Creates a registry exporting its metrics to {@code server} */
+    public JmxMetricsRegistry(MBeanServer server) {
+        this.server = server;
+    }
+
+    @Override
+    protected void counterCreated(String name, final Counter counter) {
+        register("Counter", name, new CounterMXBean() {
+            @Override
+            public long getCount() {
+                return counter.sum();
+            }
+        });
+    }
+
+    @Override
+    protected void gaugeCreated(final String name) {
+        register("Gauge", name, new GaugeMXBean() {
+            @Override
+            public long getValue() {
+                return gaugeValue(name);
+            }
+        });
+    }
+
+    @Override
+    protected void gaugeRemoved(String name) {
+        try {
+            ObjectName objectName = objectName("Gauge", name);
+            if (exported.remove(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            // Already unregistered
+        }
+    }
+
+    @Override
+    protected void latencyCreated(String name, final LatencyRecorder latency) {
+        register("Latency", name, new LatencyMXBean() {
+            @Override
+            public long getCount() {
+                return latency.count();
+            }
+
+            @Override
+            public double getMeanMillis() {
+                return latency.mean() / 1e6;
+            }
+
+            @Override
+            public double get50thPercentileMillis() {
+                return millis(latency.percentile(0.5));
+            }
+
+            @Override
+            public double get90thPercentileMillis() {
+                return millis(latency.percentile(0.9));
+            }
+
+            @Override
+            public double get99thPercentileMillis() {
+                return millis(latency.percentile(0.99));
+            }
+
+            @Override
+            public double get999thPercentileMillis() {
+                return millis(latency.percentile(0.999));
+            }
+
+            @Override
+            public double getMaxMillis() {
+                return millis(latency.max());
+            }
+        });
+    }
+
+    /** @return the name {@code name} of kind {@code type} is exported under */
+    public static ObjectName objectName(String type, String name) throws JMException {
+        return new ObjectName(DOMAIN + ":type=" + type + ",name=" + name);
+    }
+
+    private void register(String type, String name, Object mbean) {
+        try {
+            ObjectName objectName = objectName(type, name);
+            server.registerMBean(mbean, objectName);
+            exported.add(objectName);
+        } catch (JMException e) {
+            // Keep recording without exporting
+        }
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
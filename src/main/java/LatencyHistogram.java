@@ -0,0 +1,106 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link LatencyRecorder} counting durations in log-linear buckets, in the manner of
+ * HdrHistogram: every power of two is split into {@code 2^SUB_BITS} buckets of equal width, so
+ * that percentiles are exact up to 1 / 2^SUB_BITS, about 3%, from 1 ns to the longest duration a
+ * long can hold. Recording is lock-free and allocates nothing.
+ */
+public class LatencyHistogram implements LatencyRecorder {
+
+    /** Bits of a duration below its highest set bit that select the bucket */
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int NUM_BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    @Override
+    public long start() {
+        return System.nanoTime();
+    }
+
+    @Override
+    public void record(long start) {
+        recordNanos(System.nanoTime() - start);
+    }
+
+    @Override
+    public void recordNanos(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets.incrementAndGet(bucket(nanos));
+        count.increment();
+        total.add(nanos);
+        long m = max.get();
+        while (nanos > m && !max.compareAndSet(m, nanos)) {
+            m = max.get();
+        }
+    }
+
+    @Override
+    public long count() {
+        return count.sum();
+    }
+
+    @Override
+    public long percentile(double p) {
+        long n = 0;
+        for (int b = 0; b < NUM_BUCKETS; ++b) {
+            n += buckets.get(b);
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(p * n));
+        long seen = 0;
+        for (int b = 0; b < NUM_BUCKETS; ++b) {
+            seen += buckets.get(b);
+            if (seen >= rank) {
+                return Math.min(highest(b), max());
+            }
+        }
+        return max();
+    }
+
+    @Override
+    public long max() {
+        return max.get();
+    }
+
+    @Override
+    public double mean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) total.sum() / n;
+    }
+
+    /** @return the bucket of {@code nanos}, which is not negative */
+    static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /** @return the longest duration counted in bucket {@code b} */
+    static long highest(int b) {
+        if (b < SUB_BUCKETS) {
+            return b;
+        }
+        int exponent = b / SUB_BUCKETS + SUB_BITS - 1;
+        if (exponent == 63) {
+            return Long.MAX_VALUE;
+        }
+        long sub = b % SUB_BUCKETS;
+        long lowest = (1L << exponent) | (sub << (exponent - SUB_BITS));
+        return lowest + (1L << (exponent - SUB_BITS)) - 1;
+    }
+}
@@ -0,0 +1,38 @@
+/**
+ * A distribution of durations in nanoseconds, see {@link MetricsRegistry#latency(String)}. A
+ * duration is measured with
+ *
+ * <pre>
+ * long start = recorder.start();
+ * ...
+ * recorder.record(start);
+ * </pre>
+ *
+ * which does not read the clock when metrics are disabled.
+ */
+public interface LatencyRecorder {
+
+    /** @return the start of a duration to pass to {@link #record(long)} */
+    long start();
+
+    /** Records the duration from {@code start}, returned by {@link #start()}, to now */
+    void record(long start);
+
+    /** Records a duration of {@code nanos} nanoseconds */
+    void recordNanos(long nanos);
+
+    /** @return the number of recorded durations */
+    long count();
+
+    /**
+     * @return a duration in nanoseconds that a share {@code p} of the recorded durations do not
+     *         exceed, within the precision of the recorder, or 0 if none was recorded
+     */
+    long percentile(double p);
+
+    /** @return the longest recorded duration in nanoseconds, or 0 if none was recorded */
+    long max();
+
+    /** @return the mean recorded duration in nanoseconds, or 0 if none was recorded */
+    double mean();
+}
@@ -0,0 +1,449 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A {@link UTXOStore} kept off-heap in a memory-mapped file, so that pools larger than the heap
+ * can be used and the operating system's page cache decides which part stays in memory.
+ *
+ * The file starts with a header followed by a fixed number of fixed-width slots that form an
+ * open-addressing hash table with linear probing. Addresses are interned and appended to a
+ * second file next to it, named like the first one with an {@code .addresses} suffix. Only UTXOs of
+ * 32 byte transaction hashes can be stored, and outputs without an address are stored with
+ * {@link AddressRegistry#NONE}.
+ *
+ * Changes are written to the mapped pages, which the operating system writes back in no
+ * particular order. Once {@link #force()} or {@link #close()} returned, both files are consistent
+ * and the store can be reopened with {@link #open(File)} without any rebuild. A store that was
+ * not forced before a crash may have lost or partly applied its last changes, a removal shifting
+ * several slots in particular, and has to be rebuilt from the chain. Opening it only repairs a
+ * torn last address record, by dropping it.
+ *
+ * No file stays open: the data file is closed once mapped, the mappings remaining valid until
+ * the store is garbage collected, and the address file is only opened to append a new address.
+ */
+public class MappedUTXOStore implements UTXOStore, Closeable {
+
+    private static final int MAGIC = 0x5554584f; // "UTXO"
+    private static final int VERSION = 2;
+
+    /** Header: magic, version, capacity, size */
+    private static final int HEADER_SIZE = 64;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int SIZE_OFFSET = 16;
+
+    /**
+     * Slot: used flag, index, hash words, value, address id, hash code. The value is in base units
+     * if the flag is {@link #UNITS}, and the bits of the double in coins if it is {@link #COINS}.
+     */
+    private static final int SLOT_SIZE = 56;
+    private static final int USED = 0;
+    private static final int INDEX = 4;
+    private static final int WORDS = 8;
+    private static final int VALUE = 40;
+    private static final int ADDRESS = 48;
+    private static final int HASH = 52;
+
+    /** Used flag of slots whose value is an amount in base units */
+    private static final int UNITS = 1;
+    /** Used flag of slots whose value is not an amount, see {@link Amounts#isAmount(double)} */
+    private static final int COINS = 2;
+
+    /** Slots per mapped segment, keeping each mapping well below the 2GB limit */
+    private static final int SEGMENT_SHIFT = 24;
+    private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+
+    private final File file;
+
+    private final MappedByteBuffer header;
+    private final MappedByteBuffer[] segments;
+    /** Number of slots, always a power of two */
+    private final int capacity;
+    private int size;
+
+    /** Interned addresses indexed by id, id 0 is unused */
+    private PublicKey[] addresses;
+    private int numAddresses;
+    private HashMap<PublicKey, Integer> addressIndex;
+
+    private MappedUTXOStore(File file, int capacity, boolean create) throws IOException {
+        this.file = file;
+        try (RandomAccessFile dataFile = new RandomAccessFile(file, "rw")) {
+            if (create) {
+                dataFile.setLength(0);
+                dataFile.setLength(HEADER_SIZE + (long) capacity * SLOT_SIZE);
+                Files.write(addressesFile(file).toPath(), new byte[0]);
+            }
+            header = dataFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            capacity = readHeader(capacity, create);
+            this.capacity = capacity;
+            this.size = (int) header.getLong(SIZE_OFFSET);
+            segments = map(dataFile.getChannel(), capacity);
+        }
+
+        addresses = new PublicKey[16];
+        numAddresses = 1;
+        addressIndex = new HashMap<PublicKey, Integer>();
+        loadAddresses();
+    }
+
+    /** Writes a new header if {@code create}, checks the existing one otherwise */
+    private int readHeader(int capacity, boolean create) throws IOException {
+        if (create) {
+            header.putInt(0, MAGIC);
+            header.putInt(4, VERSION);
+            header.putLong(CAPACITY_OFFSET, capacity);
+            header.putLong(SIZE_OFFSET, 0);
+        } else {
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IOException(file + " is not a UTXO store");
+            }
+            capacity = (int) header.getLong(CAPACITY_OFFSET);
+        }
+        return capacity;
+    }
+
+    private static MappedByteBuffer[] map(FileChannel channel, int capacity) throws IOException {
+        int numSegments = Math.max(1, capacity >>> SEGMENT_SHIFT);
+        MappedByteBuffer[] segments = new MappedByteBuffer[numSegments];
+        long slotsPerSegment = Math.min(capacity, 1 << SEGMENT_SHIFT);
+        for (int i = 0; i < numSegments; ++i) {
+            long offset = HEADER_SIZE + i * slotsPerSegment * SLOT_SIZE;
+            segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, offset,
+                    slotsPerSegment * SLOT_SIZE);
+        }
+        return segments;
+    }
+
+    /**
+     * Creates a new store in {@code file}, replacing any existing content, with room for {@code
+     * maxSize} UTXOs
+     */
+    public static MappedUTXOStore create(File file, int maxSize) throws IOException {
+        // Keep the table at most three quarters full
+        long slots = Math.max(16, (long) maxSize * 4 / 3 + 1);
+        if (slots > 1 << 30) {
+            throw new IllegalArgumentException("maxSize is too large: " + maxSize);
+        }
+        int capacity = Integer.highestOneBit((int) slots - 1) << 1;
+        return new MappedUTXOStore(file, capacity, true);
+    }
+
+    /** Opens the store previously created in {@code file} */
+    public static MappedUTXOStore open(File file) throws IOException {
+        return new MappedUTXOStore(file, 0, false);
+    }
+
+    @Override
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        if (!utxo.hasWordHash()) {
+            throw new IllegalArgumentException("Only UTXOs of 32 byte hashes can be stored");
+        }
+        int slot = find(utxo);
+        if (slot < 0) {
+            if ((long) (size + 1) * 4 > (long) capacity * 3) {
+                throw new IllegalStateException(file + " is full");
+            }
+            int used = txOut.isAmount() ? UNITS : COINS;
+            long value = value(txOut, used);
+            // The address is appended before any slot refers to it
+            int addressId = intern(txOut.address);
+            slot = ~slot;
+            ByteBuffer b = segment(slot);
+            int o = offset(slot);
+            b.putInt(o + INDEX, utxo.getIndex());
+            b.putLong(o + WORDS, utxo.h0);
+            b.putLong(o + WORDS + 8, utxo.h1);
+            b.putLong(o + WORDS + 16, utxo.h2);
+            b.putLong(o + WORDS + 24, utxo.h3);
+            b.putInt(o + HASH, utxo.hashCode());
+            b.putLong(o + VALUE, value);
+            b.putInt(o + ADDRESS, addressId);
+            b.putInt(o + USED, used);
+            setSize(size + 1);
+        } else {
+            int used = txOut.isAmount() ? UNITS : COINS;
+            long value = value(txOut, used);
+            int addressId = intern(txOut.address);
+            ByteBuffer b = segment(slot);
+            int o = offset(slot);
+            b.putLong(o + VALUE, value);
+            b.putInt(o + ADDRESS, addressId);
+            b.putInt(o + USED, used);
+        }
+    }
+
+    /** @return the value of {@code txOut} as stored in a slot of used flag {@code used} */
+    private static long value(Transaction.Output txOut, int used) {
+        return used == UNITS ? txOut.getUnits() : Double.doubleToRawLongBits(txOut.value);
+    }
+
+    @Override
+    public void remove(UTXO utxo) {
+        if (utxo == null || !utxo.hasWordHash()) {
+            return;
+        }
+        int slot = find(utxo);
+        if (slot < 0) {
+            return;
+        }
+        // Backward shift deletion, see OpenAddressingUTXOStore
+        int mask = capacity - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (isUsed(next)) {
+            int home = segment(next).getInt(offset(next) + HASH) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                move(next, hole);
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        segment(hole).putInt(offset(hole) + USED, 0);
+        setSize(size - 1);
+    }
+
+    @Override
+    public Transaction.Output get(UTXO utxo) {
+        if (utxo == null || !utxo.hasWordHash()) {
+            return null;
+        }
+        int slot = find(utxo);
+        if (slot < 0) {
+            return null;
+        }
+        ByteBuffer b = segment(slot);
+        int o = offset(slot);
+        PublicKey address = address(b.getInt(o + ADDRESS));
+        long value = b.getLong(o + VALUE);
+        if (b.getInt(o + USED) == COINS) {
+            return new Transaction.Output(Double.longBitsToDouble(value), address);
+        }
+        return Transaction.Output.ofUnits(value, address);
+    }
+
+    @Override
+    public boolean contains(UTXO utxo) {
+        return utxo != null && utxo.hasWordHash() && find(utxo) >= 0;
+    }
+
+    @Override
+    public ArrayList<UTXO> keys() {
+        ArrayList<UTXO> keys = new ArrayList<UTXO>(size);
+        for (int slot = 0; slot < capacity; ++slot) {
+            if (isUsed(slot)) {
+                ByteBuffer b = segment(slot);
+                int o = offset(slot);
+                keys.add(new UTXO(b.getLong(o + WORDS), b.getLong(o + WORDS + 8),
+                        b.getLong(o + WORDS + 16), b.getLong(o + WORDS + 24),
+                        b.getInt(o + INDEX)));
+            }
+        }
+        return keys;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return a store in a new temporary file with the same content, deleted when the virtual
+     *         machine exits
+     */
+    @Override
+    public UTXOStore copy() {
+        try {
+            force();
+            File copy = File.createTempFile("utxo", ".store");
+            copy.deleteOnExit();
+            addressesFile(copy).deleteOnExit();
+            Files.copy(file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.copy(addressesFile(file).toPath(), addressesFile(copy).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+            return open(copy);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Writes all changes through to the storage device, the address file first */
+    public void force() throws IOException {
+        try (FileChannel channel = FileChannel.open(addressesFile(file).toPath(),
+                StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+        header.force();
+    }
+
+    /**
+     * Writes all changes through, see {@link #force()}. The store holds no open file, so it can
+     * still be used afterwards.
+     */
+    @Override
+    public void close() throws IOException {
+        force();
+    }
+
+    /**
+     * @return the slot holding {@code utxo}, or the bitwise complement of the empty slot where it
+     *         would be inserted
+     */
+    private int find(UTXO utxo) {
+        int mask = capacity - 1;
+        int hash = utxo.hashCode();
+        int index = utxo.getIndex();
+        int slot = hash & mask;
+        while (true) {
+            ByteBuffer b = segment(slot);
+            int o = offset(slot);
+            if (b.getInt(o + USED) == 0) {
+                return ~slot;
+            }
+            if (b.getInt(o + HASH) == hash && b.getInt(o + INDEX) == index
+                    && b.getLong(o + WORDS) == utxo.h0 && b.getLong(o + WORDS + 8) == utxo.h1
+                    && b.getLong(o + WORDS + 16) == utxo.h2
+                    && b.getLong(o + WORDS + 24) == utxo.h3) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private boolean isUsed(int slot) {
+        return segment(slot).getInt(offset(slot) + USED) != 0;
+    }
+
+    private void move(int from, int to) {
+        ByteBuffer src = segment(from);
+        ByteBuffer dst = segment(to);
+        int s = offset(from);
+        int d = offset(to);
+        for (int i = 0; i < SLOT_SIZE; i += 4) {
+            dst.putInt(d + i, src.getInt(s + i));
+        }
+    }
+
+    private ByteBuffer segment(int slot) {
+        return segments[slot >>> SEGMENT_SHIFT];
+    }
+
+    private static int offset(int slot) {
+        return (slot & SEGMENT_MASK) * SLOT_SIZE;
+    }
+
+    private void setSize(int size) {
+        this.size = size;
+        header.putLong(SIZE_OFFSET, size);
+    }
+
+    /** @return the address of id {@code id}, null for one whose record was lost in a crash */
+    private PublicKey address(int id) {
+        return id < numAddresses ? addresses[id] : null;
+    }
+
+    /**
+     * @return the id of {@code address}, appending it to the address file if it is new, or
+     *         {@link AddressRegistry#NONE} for no address
+     */
+    private int intern(PublicKey address) {
+        if (address == null) {
+            return AddressRegistry.NONE;
+        }
+        Integer id = addressIndex.get(address);
+        if (id != null) {
+            return id;
+        }
+        byte[] algorithm = address.getAlgorithm().getBytes(StandardCharsets.UTF_8);
+        byte[] encoded = address.getEncoded();
+        // One record, written by a single append
+        ByteBuffer record = ByteBuffer.allocate(2 * (Integer.SIZE / 8) + algorithm.length
+                + encoded.length);
+        record.putInt(algorithm.length).put(algorithm).putInt(encoded.length).put(encoded);
+        record.flip();
+        try (FileChannel channel = FileChannel.open(addressesFile(file).toPath(),
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return register(address);
+    }
+
+    private int register(PublicKey address) {
+        if (numAddresses == addresses.length) {
+            addresses = Arrays.copyOf(addresses, addresses.length * 2);
+        }
+        addresses[numAddresses] = address;
+        addressIndex.put(address, numAddresses);
+        return numAddresses++;
+    }
+
+    /**
+     * Registers the addresses of the address file in order. A last record cut short by a crash is
+     * dropped from the file, so that the next address is appended where it started.
+     */
+    private void loadAddresses() throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(addressesFile(file).toPath()));
+        while (in.hasRemaining()) {
+            int start = in.position();
+            byte[] algorithm;
+            byte[] encoded;
+            try {
+                algorithm = readField(in);
+                encoded = readField(in);
+            } catch (BufferUnderflowException e) {
+                try (FileChannel channel = FileChannel.open(addressesFile(file).toPath(),
+                        StandardOpenOption.WRITE)) {
+                    channel.truncate(start);
+                }
+                return;
+            }
+            try {
+                KeyFactory factory = KeyFactory.getInstance(
+                        new String(algorithm, StandardCharsets.UTF_8));
+                PublicKey address = factory.generatePublic(new X509EncodedKeySpec(encoded));
+                register(AddressRegistry.shared().canonical(address));
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Can not decode address " + numAddresses, e);
+            }
+        }
+    }
+
+    /** @return the next length-prefixed field of {@code in} */
+    private static byte[] readField(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] field = new byte[length];
+        in.get(field);
+        return field;
+    }
+
+    private static File addressesFile(File file) {
+        return new File(file.getPath() + ".addresses");
+    }
+}
@@ -1,11 +1,30 @@
-import java.util.Set;
-import java.util.HashSet;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 public class MaxFeeTxHandler {
+    /** Number of transactions validated by each task of the parallel validation */
+    private static final int VALIDATION_BATCH = 64;
+
+    private static final HandlerMetrics METRICS = new HandlerMetrics("maxfeetxhandler");
+    /** Handler name of the Flight Recorder events */
+    private static final String EVENT_HANDLER = "MaxFeeTxHandler";
+
     private UTXOPool pool;
+    private TxValidator validator;
+    private FeeSelector selector;
+    /** Size of {@code pool}, for {@link HandlerMetrics} */
+    private HandlerMetrics.PoolSize poolSize;
+    /** Executor running the parallel stages of each epoch, or null to run them sequentially */
+    private ExecutorService executor;
+    /** Id of the epoch being handled, see {@link EpochEvent}, or 0 between epochs */
+    private long epoch;
 
     /**
      * Creates a public ledger whose current UTXOPool (collection of unspent transaction outputs) is
@@ -13,7 +32,49 @@ public class MaxFeeTxHandler {
      * constructor.
      */
     public MaxFeeTxHandler(UTXOPool utxoPool) {
+        this(utxoPool, null);
+    }
+
+    /**
+     * Creates a public ledger like {@link #MaxFeeTxHandler(UTXOPool)} that verifies the input
+     * signatures of each epoch concurrently on {@code executor}. A null {@code executor} verifies
+     * them on the calling thread.
+     */
+    public MaxFeeTxHandler(UTXOPool utxoPool, ExecutorService executor) {
+        this(utxoPool, executor, SignatureCache.shared());
+    }
+
+    /**
+     * Creates a public ledger like {@link #MaxFeeTxHandler(UTXOPool, ExecutorService)} that remembers
+     * successful signature verifications in {@code cache}, so that transactions proposed again
+     * are not verified twice. A null {@code cache} disables caching.
+     */
+    public MaxFeeTxHandler(UTXOPool utxoPool, ExecutorService executor, SignatureCache cache) {
+        this(utxoPool, executor, cache, new AncestorPackageFeeSelector());
+    }
+
+    /**
+     * Creates a public ledger like {@link #MaxFeeTxHandler(UTXOPool, ExecutorService,
+     * SignatureCache)} that lets {@code selector} choose the transactions accepted in each epoch.
+     * The default selector is an {@link AncestorPackageFeeSelector}, so that the same epoch always
+     * accepts the same transactions. A {@link BranchAndBoundFeeSelector} finds better selections
+     * within a time budget, at the cost of results that depend on the speed of the machine.
+     */
+    public MaxFeeTxHandler(UTXOPool utxoPool, ExecutorService executor, SignatureCache cache,
+                           FeeSelector selector) {
         pool = new UTXOPool(utxoPool);
+        validator = new TxValidator(new SignatureVerifier(executor, cache));
+        this.selector = selector;
+        this.executor = executor;
+        poolSize = METRICS.followPool(this, pool);
+    }
+
+    /**
+     * @return a copy of the current UTXO pool, which later epochs do not change. The copy is a
+     *         snapshot taking O(1), see {@link UTXOPool#UTXOPool(UTXOPool)}.
+     */
+    public UTXOPool getUTXOPool() {
+        return new UTXOPool(pool);
     }
 
     /**
@@ -24,122 +85,227 @@ public class MaxFeeTxHandler {
      * (4) all of {@code tx}s output values are non-negative, and
      * (5) the sum of {@code tx}s input values is greater than or equal to the sum of its output
      *     values; and false otherwise.
+     * The checks run from the cheapest to the most expensive, see {@link TxValidator}.
      */
     public boolean isValidTx(Transaction tx) {
-        // Check if all outputs claimed by {@code tx} are in the current UTXO pool
-        for (int i = 0; i < tx.numInputs(); ++i) {
-            Transaction.Input in = tx.getInput(i);
-            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
-            if (!pool.contains(utxo)) {
-                return false;
-            }
-        }
-
-        // Check if the signatures on each input of {@code tx} are valid
-        for (int i = 0; i < tx.numInputs(); ++i) {
-            byte[] data = tx.getRawDataToSign(i);
-            Transaction.Input in = tx.getInput(i);
-            if (in.signature == null) {
-                return false;
-            }
-            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
-            Transaction.Output out = pool.getTxOutput(utxo);
-            if (!Crypto.verifySignature(out.address, data, in.signature)) {
-                return false;
-            }
-        }
-
-        // No UTXO is claimed multiple times by {@code tx}
-        Set<Integer> hashCodes = new HashSet<Integer>();
-        for (int i = 0; i < tx.numInputs(); ++i) {
-            Transaction.Input in = tx.getInput(i);
-            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
-            if (hashCodes.contains(utxo.hashCode())) {
-                return false;
-            }
-            hashCodes.add(utxo.hashCode());
-        }
-
-        // All of {@code tx}s output values are non-negative
-        for (int i = 0; i < tx.numOutputs(); i++) {
-            Transaction.Output out = tx.getOutput(i);
-            if (out.value < 0) {
-                return false;
-            }
-        }
-
-        // the sum of {@code tx}s input values is greater than or equal to the
-        // sum of its output values; and false otherwise.
-        double outputSum = 0;
-        double inputSum = 0;
-        for (int i = 0; i < tx.numOutputs(); ++i) {
-            Transaction.Output out = tx.getOutput(i);
-            outputSum += out.value;
-        }
-        for (int i = 0; i < tx.numInputs(); ++i) {
-            Transaction.Input in = tx.getInput(i);
-            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
-            Transaction.Output out = pool.getTxOutput(utxo);
-            inputSum += out.value;
-        }
-        if (inputSum < outputSum) {
-            return false;
+        TxValidationEvent event = new TxValidationEvent();
+        event.begin();
+        long fee = validator.check(pool, tx, null);
+        METRICS.checked(fee);
+        if (event.shouldCommit()) {
+            event.set(EVENT_HANDLER, epoch, tx, TxValidationEvent.ALL, fee);
+            event.commit();
         }
+        return fee >= 0;
+    }
 
-        return true;
+    /**
+     * Same as {@link #isValidTx(Transaction)} for a transaction read from the wire, which is
+     * checked in place without building a {@link Transaction}.
+     */
+    public boolean isValidTx(TransactionView tx) {
+        long fee = validator.check(pool, tx);
+        METRICS.checked(fee);
+        return fee >= 0;
     }
 
     /**
      * Handles each epoch by receiving an unordered array of proposed transactions, checking each
      * transaction for correctness, returning a mutually valid array of accepted transactions, and
      * updating the current UTXO pool as appropriate.
+     *
+     * A transaction may spend outputs of other transactions of the same epoch, and is then only
+     * accepted together with them. Which transactions are accepted is left to the {@link
+     * FeeSelector} of the handler. They are returned parents first, and otherwise by decreasing
+     * fee.
      */
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
+        long epochStart = METRICS.epoch.start();
+        EpochEvent epochEvent = new EpochEvent();
+        epochEvent.begin();
+        epoch = EpochEvent.nextEpoch();
         ArrayList<Transaction> transactions = new ArrayList<Transaction>();
 
-        // We use an approximation algorithm for multidimensional knapsack
-        // problem, assuming that the transactions are sparse (in a sense that
-        // it rarely uses the same UTXO twice for different transactions).
-
-        // So, we first sort the transactions in descending order and accept
-        // transactions that has non-conflicting UTXO only.
-
-        ArrayList<Transaction> _txs = new ArrayList<Transaction>();
-        // Filter non valid transactions
+        // Candidates are checked against the pool extended with the outputs of every proposed
+        // transaction, which makes each check independent of the others
+        UTXOPool view = pool.view();
+        HashMap<ByteBuffer, Integer> producers = new HashMap<ByteBuffer, Integer>();
+        boolean[] duplicate = new boolean[possibleTxs.length];
         for (int i = 0; i < possibleTxs.length; ++i) {
-            if (isValidTx(possibleTxs[i])) {
-                _txs.add(possibleTxs[i]);
+            Transaction tx = possibleTxs[i];
+            tx.finalize();
+            ByteBuffer hash = ByteBuffer.wrap(tx.getHash());
+            if (producers.containsKey(hash)) {
+                duplicate[i] = true;
+                continue;
+            }
+            producers.put(hash, i);
+            for (int j = 0; j < tx.numOutputs(); ++j) {
+                view.addUTXO(new UTXO(tx.getHash(), j), tx.getOutput(j));
             }
         }
-        Transaction[] txs = new Transaction[_txs.size()];
-        for (int i = 0; i < _txs.size(); ++i) {
-            txs[i] = _txs.get(i);
+        // The checks that need no signature run first. Signatures of the candidates passing them
+        // are then verified up front for inputs claiming outputs already in the pool, and the
+        // remaining inputs while validating
+        long validateStart = METRICS.validate.start();
+        long[] txFees = new long[possibleTxs.length];
+        boolean[] rejected = new boolean[possibleTxs.length];
+        int skipped = 0;
+        for (int i = 0; i < possibleTxs.length; ++i) {
+            TxValidationEvent event = new TxValidationEvent();
+            event.begin();
+            txFees[i] = duplicate[i] ? -ValidationResult.DOUBLE_CLAIM.code()
+                    : validator.checkStructure(view, possibleTxs[i]);
+            rejected[i] = txFees[i] < 0;
+            if (rejected[i]) {
+                skipped++;
+            }
+            if (event.shouldCommit()) {
+                event.set(EVENT_HANDLER, epoch, possibleTxs[i], TxValidationEvent.STRUCTURE,
+                        txFees[i]);
+                event.commit();
+            }
         }
+        long verifyStart = METRICS.verify.start();
+        SignatureBatchEvent verifyEvent = new SignatureBatchEvent();
+        verifyEvent.begin();
+        Boolean[][] verdicts = validator.verifySignatures(pool, possibleTxs, rejected);
+        METRICS.verify.record(verifyStart);
+        if (verifyEvent.shouldCommit()) {
+            verifyEvent.handler = EVENT_HANDLER;
+            verifyEvent.epoch = epoch;
+            verifyEvent.verified = possibleTxs.length - skipped;
+            verifyEvent.skipped = skipped;
+            verifyEvent.commit();
+        }
+        validate(view, possibleTxs, verdicts, txFees);
+        boolean[] valid = new boolean[possibleTxs.length];
 
-
-        Comparator<Transaction> transactionComparator = new Comparator<Transaction>() {
-            @Override
-            public int compare(Transaction t1, Transaction t2) {
-                double f1 = transactionFee(t1);
-                double f2 = transactionFee(t2);
-                if (f1 > f2) {
-                    return -1;
-                } else if (f1 < f2) {
-                    return 1;
-                } else {
-                    return 0;
+        // Parents of each candidate, a candidate being valid only if its parents are
+        ArrayList<ArrayList<Integer>> parents = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < possibleTxs.length; ++i) {
+            ArrayList<Integer> p = new ArrayList<Integer>();
+            valid[i] = txFees[i] >= 0 && !duplicate[i];
+            if (valid[i]) {
+                for (int j = 0; j < possibleTxs[i].numInputs(); ++j) {
+                    Transaction.Input in = possibleTxs[i].getInput(j);
+                    if (!pool.contains(in.getUTXO())) {
+                        int parent = producers.get(ByteBuffer.wrap(in.prevTxHash));
+                        if (!p.contains(parent)) {
+                            p.add(parent);
+                        }
+                    }
                 }
             }
-        };
-        Arrays.sort(txs, transactionComparator);
+            parents.add(p);
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 0; i < possibleTxs.length; ++i) {
+                if (!valid[i]) {
+                    continue;
+                }
+                for (int parent : parents.get(i)) {
+                    if (!valid[parent]) {
+                        valid[i] = false;
+                        txFees[i] = -ValidationResult.MISSING_INPUT.code();
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+        // Each rejected candidate is counted once, with the reason it was rejected for first
+        for (long fee : txFees) {
+            METRICS.checked(fee);
+        }
 
-        Set<UTXO> utxos = new HashSet<UTXO>();
+        // The selection problem over the valid candidates
+        int[] candidateOf = new int[possibleTxs.length];
+        ArrayList<Transaction> txs = new ArrayList<Transaction>();
+        for (int i = 0; i < possibleTxs.length; ++i) {
+            candidateOf[i] = valid[i] ? txs.size() : -1;
+            if (valid[i]) {
+                txs.add(possibleTxs[i]);
+            }
+        }
+        int n = txs.size();
+        long[] fees = new long[n];
+        int[] sizes = new int[n];
+        int[][] candidateParents = new int[n][];
+        int[][] claims = new int[n][];
+        HashMap<UTXO, Integer> claimIds = new HashMap<UTXO, Integer>();
+        for (int i = 0; i < possibleTxs.length; ++i) {
+            int c = candidateOf[i];
+            if (c < 0) {
+                continue;
+            }
+            Transaction tx = possibleTxs[i];
+            fees[c] = txFees[i];
+            sizes[c] = tx.rawTxSize();
+            candidateParents[c] = new int[parents.get(i).size()];
+            for (int k = 0; k < candidateParents[c].length; ++k) {
+                candidateParents[c][k] = candidateOf[parents.get(i).get(k)];
+            }
+            claims[c] = new int[tx.numInputs()];
+            for (int j = 0; j < tx.numInputs(); ++j) {
+                UTXO utxo = tx.getInput(j).getUTXO();
+                Integer id = claimIds.get(utxo);
+                if (id == null) {
+                    id = claimIds.size();
+                    claimIds.put(utxo, id);
+                }
+                claims[c][j] = id;
+            }
+        }
+        FeeSelectionProblem problem = new FeeSelectionProblem(fees, sizes,
+                candidateParents, claims);
+        METRICS.validate.record(validateStart);
+        long selectStart = METRICS.select.start();
+        FeeSelectionEvent selectEvent = new FeeSelectionEvent();
+        selectEvent.begin();
+        boolean[] selection = selector.select(problem);
+        METRICS.select.record(selectStart);
+        if (!problem.isValid(selection)) {
+            throw new IllegalStateException("Selector " + selector + " made an invalid selection");
+        }
+        if (selectEvent.shouldCommit()) {
+            selectEvent.epoch = epoch;
+            selectEvent.selector = selector.getClass().getSimpleName();
+            selectEvent.candidates = n;
+            for (int c = 0; c < n; ++c) {
+                if (selection[c]) {
+                    selectEvent.selected++;
+                    selectEvent.totalFee += fees[c];
+                }
+            }
+            selectEvent.commit();
+        }
 
-        for (int i = 0; i < txs.length; ++i) {
-            if (!containDuplicateUTXOs(utxos, txs[i])) {
-                transactions.add(txs[i]);
-                acceptTransaction(txs[i]);
-                insertUTXOs(utxos, txs[i]);
+        // Accept the selection parents first, highest fee first among the candidates whose
+        // parents have been accepted. Candidates are queued by their rank in fee order
+        int[] byFee = problem.byDecreasingFee();
+        int[] rank = new int[n];
+        for (int r = 0; r < n; ++r) {
+            rank[byFee[r]] = r;
+        }
+        PriorityQueue<Integer> ready = new PriorityQueue<Integer>();
+        int[] pendingParents = new int[n];
+        for (int c = 0; c < n; ++c) {
+            pendingParents[c] = problem.getParents(c).length;
+            if (selection[c] && pendingParents[c] == 0) {
+                ready.add(rank[c]);
+            }
+        }
+        while (!ready.isEmpty()) {
+            int c = byFee[ready.poll()];
+            transactions.add(txs.get(c));
+            acceptTransaction(txs.get(c));
+            for (int child : problem.getChildren(c)) {
+                if (--pendingParents[child] == 0 && selection[child]) {
+                    ready.add(rank[child]);
+                }
             }
         }
 
@@ -147,59 +313,125 @@ public class MaxFeeTxHandler {
         for (int i = 0; i < transactions.size(); ++i) {
             _transactions[i] = transactions.get(i);
         }
+        METRICS.epochs.increment();
+        METRICS.proposed.add(possibleTxs.length);
+        METRICS.accepted.add(_transactions.length);
+        METRICS.epoch.record(epochStart);
+        if (epochEvent.shouldCommit()) {
+            epochEvent.handler = EVENT_HANDLER;
+            epochEvent.epoch = epoch;
+            epochEvent.proposed = possibleTxs.length;
+            epochEvent.accepted = _transactions.length;
+            epochEvent.commit();
+        }
+        epoch = 0;
         return _transactions;
     }
 
-    private void acceptTransaction(Transaction tx) {
-        tx.finalize();
-
-        // Remove used coins from UTXO
-        for (int i = 0; i < tx.numInputs(); ++i) {
-            Transaction.Input in = tx.getInput(i);
-            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
-            pool.removeUTXO(utxo);
-        }
-
-        // Add outputs to UTXOPool
-        for (int i = 0; i < tx.numOutputs(); ++i) {
-          Transaction.Output out = tx.getOutput(i);
-          UTXO utxo = new UTXO(tx.getHash(), i);
-          pool.addUTXO(utxo, out);
+    /**
+     * Same as {@link #handleTxs(Transaction[])} for transactions read from the wire. Views
+     * failing a check that does not depend on the rest of the epoch (see {@link
+     * TxValidator#screen}) are rejected in place, and only the others are turned into {@link
+     * Transaction} objects and handled as the epoch.
+     */
+    public Transaction[] handleTxs(TransactionView[] possibleTxs) {
+        byte[] codes = validator.screen(pool, possibleTxs);
+        ArrayList<Transaction> candidates = new ArrayList<Transaction>();
+        for (int i = 0; i < possibleTxs.length; ++i) {
+            if (codes[i] == ValidationResult.VALID.code()) {
+                candidates.add(possibleTxs[i].toTransaction());
+            } else {
+                METRICS.rejected(ValidationResult.of(codes[i]), 1);
+            }
         }
+        METRICS.proposed.add(possibleTxs.length - candidates.size());
+        return handleTxs(candidates.toArray(new Transaction[candidates.size()]));
     }
 
-    private double transactionFee(Transaction tx) {
-        double outputSum = 0;
-        double inputSum = 0;
-        for (int i = 0; i < tx.numOutputs(); ++i) {
-            Transaction.Output out = tx.getOutput(i);
-            outputSum += out.value;
+    /**
+     * Checks the signatures of every transaction of {@code txs} with a non-negative fee in {@code
+     * fees} against {@code view}, which does not change meanwhile, so that the checks run in
+     * parallel on the executor if there is one. The fee of the transactions whose signatures are
+     * not valid is set to a negative value.
+     */
+    private void validate(final UTXOPool view, final Transaction[] txs,
+                          final Boolean[][] verdicts, final long[] fees) {
+        if (executor != null && txs.length > VALIDATION_BATCH) {
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for (int from = 0; from < txs.length; from += VALIDATION_BATCH) {
+                final int start = from;
+                final int end = Math.min(from + VALIDATION_BATCH, txs.length);
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (int i = start; i < end; ++i) {
+                            checkSignatures(view, txs[i], verdicts[i], fees, i);
+                        }
+                        return null;
+                    }
+                });
+            }
+            try {
+                for (Future<Void> future : executor.invokeAll(tasks)) {
+                    future.get();
+                }
+                return;
+            } catch (InterruptedException e) {
+                // Check the remaining transactions on the calling thread
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Validating transactions failed", e.getCause());
+            }
         }
-        for (int i = 0; i < tx.numInputs(); ++i) {
-            Transaction.Input in = tx.getInput(i);
-            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
-            Transaction.Output out = pool.getTxOutput(utxo);
-            inputSum += out.value;
+        for (int i = 0; i < txs.length; ++i) {
+            checkSignatures(view, txs[i], verdicts[i], fees, i);
         }
-        return Math.max(inputSum - outputSum, 0);
     }
 
-    private static boolean containDuplicateUTXOs(Set<UTXO> utxos, Transaction tx) {
-        for (int i = 0; i < tx.numInputs(); ++i) {
-            Transaction.Input in = tx.getInput(i);
-            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
-            if (utxos.contains(utxo)) {
-                return true;
-            }
+    private void checkSignatures(UTXOPool view, Transaction tx, Boolean[] verdicts, long[] fees,
+                                 int i) {
+        if (fees[i] < 0) {
+            return;
+        }
+        TxValidationEvent event = new TxValidationEvent();
+        event.begin();
+        if (validator.checkSignatures(view, tx, verdicts) != ValidationResult.VALID) {
+            fees[i] = -ValidationResult.BAD_SIGNATURE.code();
+        }
+        if (event.shouldCommit()) {
+            event.set(EVENT_HANDLER, epoch, tx, TxValidationEvent.SIGNATURES, fees[i]);
+            event.commit();
         }
-        return false;
     }
 
-    private static void insertUTXOs(Set<UTXO> utxos, Transaction tx) {
+    /**
+     * Spends the inputs of {@code tx} and adds its outputs to the pool.
+     *
+     * @throws IllegalStateException if an input of {@code tx} is no longer in the pool, which a
+     *         valid selection accepted parents first never leads to
+     */
+    private void acceptTransaction(Transaction tx) {
+        long start = METRICS.commit.start();
+        TxCommitEvent event = new TxCommitEvent();
+        event.begin();
+        tx.freeze();
+
+        ArrayList<UTXO> inputs = new ArrayList<UTXO>(tx.numInputs());
         for (int i = 0; i < tx.numInputs(); ++i) {
-            Transaction.Input in = tx.getInput(i);
-            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
-            utxos.add(utxo);
+            inputs.add(tx.getInput(i).getUTXO());
+        }
+        HashMap<UTXO, Transaction.Output> outputs = new HashMap<UTXO, Transaction.Output>();
+        for (int i = 0; i < tx.numOutputs(); ++i) {
+            outputs.put(new UTXO(tx.getHash(), i), tx.getOutput(i));
+        }
+        if (!pool.spendUTXOs(inputs, outputs)) {
+            throw new IllegalStateException("Selected transaction does not apply to the pool");
+        }
+        METRICS.committed(tx, poolSize);
+        if (event.shouldCommit()) {
+            event.set(EVENT_HANDLER, epoch, tx);
+            event.commit();
         }
+        METRICS.commit.record(start);
     }
 }
@@ -0,0 +1,304 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.TreeSet;
+
+/**
+ * Validated transactions waiting to be handled, kept across epochs in front of a {@link
+ * TxHandler} or {@link MaxFeeTxHandler}. The mempool follows its own copy of the handler's pool:
+ * a transaction is admitted if it is valid against that pool extended with the outputs of the
+ * transactions already in the mempool, so it may spend outputs of other pending transactions.
+ * Conflicting transactions may be admitted side by side.
+ *
+ * Transactions are indexed by hash, by the outpoints they spend and by fee rate. {@link
+ * #assemble(int)} walks the fee rate index to propose the next epoch, taking the pending
+ * ancestors of each transaction along and skipping conflicts, without checking or sorting the
+ * whole mempool again. Once the handler returns the accepted transactions, {@link
+ * #removeAccepted(Transaction[])} applies them to the mempool's pool, and evicts every transaction
+ * that conflicts with them together with its descendants.
+ *
+ * A mempool is not thread-safe.
+ */
+public class Mempool {
+
+    private final UTXOPool pool;
+    private final TxValidator validator;
+
+    private final HashMap<ByteBuffer, Entry> byHash = new HashMap<ByteBuffer, Entry>();
+    /** Pending transactions spending each outpoint, more than one if they conflict */
+    private final HashMap<UTXO, ArrayList<Entry>> spenders = new HashMap<UTXO, ArrayList<Entry>>();
+    private final TreeSet<Entry> byFeeRate = new TreeSet<Entry>();
+    private long sequence;
+
+    /**
+     * Creates an empty mempool in front of a handler whose pool is {@code utxoPool}, for example
+     * {@link TxHandler#getUTXOPool()}. The mempool works on a copy of {@code utxoPool}.
+     */
+    public Mempool(UTXOPool utxoPool) {
+        this(utxoPool, SignatureCache.shared());
+    }
+
+    /**
+     * Creates a mempool like {@link #Mempool(UTXOPool)} that remembers successful signature
+     * verifications in {@code cache}. When the handler uses the same cache, it does not verify
+     * the signatures of the transactions proposed by the mempool again. A null {@code cache}
+     * disables caching.
+     */
+    public Mempool(UTXOPool utxoPool, SignatureCache cache) {
+        pool = new UTXOPool(utxoPool);
+        validator = new TxValidator(new SignatureVerifier(null, cache));
+    }
+
+    /**
+     * Admits {@code tx} if it is not pending yet and it is valid against the pool extended with
+     * the outputs of the pending transactions. Admitted transactions are frozen.
+     *
+     * @return true if {@code tx} was admitted
+     */
+    public boolean add(Transaction tx) {
+        tx.finalize();
+        ByteBuffer hash = ByteBuffer.wrap(tx.getHash());
+        if (byHash.containsKey(hash)) {
+            return false;
+        }
+        ArrayList<Entry> parents = new ArrayList<Entry>();
+        long fee = check(tx, parents);
+        if (fee < 0) {
+            return false;
+        }
+
+        tx.freeze();
+        UTXO[] inputs = new UTXO[tx.numInputs()];
+        for (int i = 0; i < inputs.length; ++i) {
+            inputs[i] = tx.getInput(i).getUTXO();
+        }
+        Entry entry = new Entry(tx, hash, inputs, parents.toArray(new Entry[0]), fee,
+                tx.rawTxSize(), sequence++);
+        byHash.put(hash, entry);
+        for (UTXO utxo : inputs) {
+            ArrayList<Entry> s = spenders.get(utxo);
+            if (s == null) {
+                s = new ArrayList<Entry>(1);
+                spenders.put(utxo, s);
+            }
+            s.add(entry);
+        }
+        byFeeRate.add(entry);
+        return true;
+    }
+
+    /**
+     * @return the {@link ValidationResult} of {@code tx} against the pool extended with the
+     *         outputs of the pending transactions. The mempool is not changed.
+     */
+    public ValidationResult validate(Transaction tx) {
+        tx.finalize();
+        long fee = check(tx, new ArrayList<Entry>());
+        return fee >= 0 ? ValidationResult.VALID : ValidationResult.of((byte) -fee);
+    }
+
+    /**
+     * Runs the checks of {@link TxValidator} on {@code tx}, against a view of the pool extended
+     * with the outputs of the pending transactions it spends. Those are added to {@code parents}.
+     *
+     * @return the fee of {@code tx} in units if it is valid, otherwise minus the code of the
+     *         {@link ValidationResult} of the first failed check
+     */
+    private long check(Transaction tx, ArrayList<Entry> parents) {
+        UTXOPool extended = null;
+        for (int i = 0; i < tx.numInputs(); ++i) {
+            UTXO utxo = tx.getInput(i).getUTXO();
+            if (utxo == null || pool.contains(utxo)) {
+                continue;
+            }
+            // An output no pending transaction has is left missing, for the validator to report
+            Entry parent = byHash.get(ByteBuffer.wrap(tx.getInput(i).prevTxHash));
+            if (parent == null || utxo.getIndex() < 0
+                    || utxo.getIndex() >= parent.tx.numOutputs()) {
+                continue;
+            }
+            if (extended == null) {
+                extended = pool.view();
+            }
+            extended.addUTXO(utxo, parent.tx.getOutput(utxo.getIndex()));
+            if (!parents.contains(parent)) {
+                parents.add(parent);
+            }
+        }
+        return validator.check(extended == null ? pool : extended, tx, null);
+    }
+
+    /** @return true if a transaction of hash {@code hash} is pending */
+    public boolean contains(byte[] hash) {
+        return byHash.containsKey(ByteBuffer.wrap(hash));
+    }
+
+    /** @return the number of pending transactions */
+    public int size() {
+        return byHash.size();
+    }
+
+    /**
+     * Proposes up to {@code maxTxs} pending transactions for the next epoch, mutually valid
+     * against the mempool's pool. Transactions are taken by decreasing fee rate, each one together
+     * with its pending ancestors, and those conflicting with a transaction already taken are
+     * skipped. Parents come before their children in the returned array. The mempool is not
+     * changed.
+     */
+    public Transaction[] assemble(int maxTxs) {
+        ArrayList<Transaction> txs = new ArrayList<Transaction>();
+        HashSet<Entry> taken = new HashSet<Entry>();
+        HashSet<UTXO> claimed = new HashSet<UTXO>();
+        for (Entry entry : byFeeRate) {
+            if (txs.size() >= maxTxs) {
+                break;
+            }
+            if (taken.contains(entry)) {
+                continue;
+            }
+            ArrayList<Entry> pkg = new ArrayList<Entry>();
+            collectAncestors(entry, taken, new HashSet<Entry>(), pkg);
+            if (txs.size() + pkg.size() > maxTxs || conflicts(pkg, claimed)) {
+                continue;
+            }
+            for (Entry e : pkg) {
+                taken.add(e);
+                txs.add(e.tx);
+                for (UTXO utxo : e.inputs) {
+                    claimed.add(utxo);
+                }
+            }
+        }
+        return txs.toArray(new Transaction[txs.size()]);
+    }
+
+    /**
+     * Tells the mempool that the handler accepted {@code accepted}, in that order. They are
+     * applied to the mempool's pool and no longer pending, and every pending transaction that
+     * spends an outpoint they spent is evicted, together with its descendants.
+     *
+     * @throws IllegalStateException if a transaction does not apply to the mempool's pool, which
+     *         means the mempool no longer follows the pool of the handler. The transactions before
+     *         it have been applied. The mempool should be replaced by a new one created from the
+     *         handler's pool.
+     */
+    public void removeAccepted(Transaction[] accepted) {
+        for (Transaction tx : accepted) {
+            ArrayList<UTXO> inputs = new ArrayList<UTXO>(tx.numInputs());
+            for (int i = 0; i < tx.numInputs(); ++i) {
+                inputs.add(tx.getInput(i).getUTXO());
+            }
+            HashMap<UTXO, Transaction.Output> outputs = new HashMap<UTXO, Transaction.Output>();
+            for (int i = 0; i < tx.numOutputs(); ++i) {
+                outputs.put(new UTXO(tx.getHash(), i), tx.getOutput(i));
+            }
+            if (!pool.spendUTXOs(inputs, outputs)) {
+                throw new IllegalStateException("Accepted transaction does not apply to the pool"
+                        + " of the mempool, which is out of sync with the handler");
+            }
+
+            Entry self = byHash.get(ByteBuffer.wrap(tx.getHash()));
+            if (self != null) {
+                unindex(self);
+            }
+            for (UTXO utxo : inputs) {
+                ArrayList<Entry> s = spenders.get(utxo);
+                while (s != null && !s.isEmpty()) {
+                    evict(s.get(0));
+                    s = spenders.get(utxo);
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends to {@code pkg} the pending ancestors of {@code entry} not in {@code taken}, parents
+     * first, followed by {@code entry} itself.
+     */
+    private void collectAncestors(Entry entry, HashSet<Entry> taken, HashSet<Entry> visited,
+                                  ArrayList<Entry> pkg) {
+        visited.add(entry);
+        for (Entry parent : entry.parents) {
+            // A parent that is no longer pending was accepted
+            if (byHash.get(parent.hash) == parent && !taken.contains(parent)
+                    && !visited.contains(parent)) {
+                collectAncestors(parent, taken, visited, pkg);
+            }
+        }
+        pkg.add(entry);
+    }
+
+    /** @return true if {@code pkg} claims an outpoint of {@code claimed} or one twice */
+    private static boolean conflicts(ArrayList<Entry> pkg, HashSet<UTXO> claimed) {
+        HashSet<UTXO> own = new HashSet<UTXO>();
+        for (Entry e : pkg) {
+            for (UTXO utxo : e.inputs) {
+                if (claimed.contains(utxo) || !own.add(utxo)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Removes {@code entry} and all its pending descendants */
+    private void evict(Entry entry) {
+        ArrayList<Entry> stack = new ArrayList<Entry>();
+        stack.add(entry);
+        while (!stack.isEmpty()) {
+            Entry e = stack.remove(stack.size() - 1);
+            if (byHash.get(e.hash) != e) {
+                continue;
+            }
+            unindex(e);
+            for (int i = 0; i < e.tx.numOutputs(); ++i) {
+                ArrayList<Entry> children = spenders.get(new UTXO(e.tx.getHash(), i));
+                if (children != null) {
+                    stack.addAll(children);
+                }
+            }
+        }
+    }
+
+    private void unindex(Entry entry) {
+        byHash.remove(entry.hash);
+        byFeeRate.remove(entry);
+        for (UTXO utxo : entry.inputs) {
+            ArrayList<Entry> s = spenders.get(utxo);
+            s.remove(entry);
+            if (s.isEmpty()) {
+                spenders.remove(utxo);
+            }
+        }
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+        final Transaction tx;
+        final ByteBuffer hash;
+        final UTXO[] inputs;
+        /** Pending transactions {@code tx} spends outputs of, at the time it was admitted */
+        final Entry[] parents;
+        final double feeRate;
+        /** Order of admission, breaking ties between equal fee rates */
+        final long sequence;
+
+        /** @param fee the fee of {@code tx} in base units, see {@link Amounts} */
+        Entry(Transaction tx, ByteBuffer hash, UTXO[] inputs, Entry[] parents, long fee,
+              int size, long sequence) {
+            this.tx = tx;
+            this.hash = hash;
+            this.inputs = inputs;
+            this.parents = parents;
+            this.feeRate = (double) fee / Math.max(size, 1);
+            this.sequence = sequence;
+        }
+
+        /** Highest fee rate first, then first admitted */
+        @Override
+        public int compareTo(Entry other) {
+            int c = Double.compare(other.feeRate, feeRate);
+            return c != 0 ? c : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * The {@link MetricsRegistry} of the handlers, the pools and {@link Crypto}, chosen once when the
+ * class is loaded from the system property {@link #PROPERTY}:
+ * {@code jmx}, the default, exports metrics as MBeans of the platform MBean server (see {@link
+ * JmxMetricsRegistry}), {@code none} disables them, and any other value is the name of a {@link
+ * MetricsRegistry} class to instantiate.
+ *
+ * When metrics are disabled, the registry hands out metrics that do nothing and never read the
+ * clock. Since the registry can not change afterwards, the JIT compiler reduces instrumented code
+ * to what it was without metrics.
+ */
+public final class Metrics {
+
+    /** System property choosing the registry */
+    public static final String PROPERTY = "scrooge.metrics";
+
+    /** A registry whose metrics do nothing */
+    public static final MetricsRegistry NOOP = new NoopRegistry();
+
+    private static final MetricsRegistry REGISTRY = load(System.getProperty(PROPERTY, "jmx"));
+    private static final boolean ENABLED = REGISTRY != NOOP;
+
+    private Metrics() {
+    }
+
+    /** @return the registry chosen by {@link #PROPERTY} */
+    public static MetricsRegistry registry() {
+        return REGISTRY;
+    }
+
+    /** @return false if metrics are disabled, in which case callers can skip preparing values */
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    private static MetricsRegistry load(String name) {
+        if (name.equals("none")) {
+            return NOOP;
+        } else if (name.equals("jmx")) {
+            return new JmxMetricsRegistry();
+        }
+        try {
+            return (MetricsRegistry) Class.forName(name).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new IllegalStateException("Can not create the metrics registry " + name, e);
+        }
+    }
+
+    private static final class NoopRegistry implements MetricsRegistry {
+        private static final Counter COUNTER = new Counter() {
+            @Override
+            public void increment() {
+            }
+
+            @Override
+            public void add(long n) {
+            }
+
+            @Override
+            public long sum() {
+                return 0;
+            }
+        };
+
+        private static final LatencyRecorder LATENCY = new LatencyRecorder() {
+            @Override
+            public long start() {
+                return 0;
+            }
+
+            @Override
+            public void record(long start) {
+            }
+
+            @Override
+            public void recordNanos(long nanos) {
+            }
+
+            @Override
+            public long count() {
+                return 0;
+            }
+
+            @Override
+            public long percentile(double p) {
+                return 0;
+            }
+
+            @Override
+            public long max() {
+                return 0;
+            }
+
+            @Override
+            public double mean() {
+                return 0;
+            }
+        };
+
+        @Override
+        public Counter counter(String name) {
+            return COUNTER;
+        }
+
+        @Override
+        public LatencyRecorder latency(String name) {
+            return LATENCY;
+        }
+
+        @Override
+        public void gauge(String name, Gauge gauge) {
+        }
+
+        @Override
+        public void removeGauge(String name) {
+        }
+    }
+}
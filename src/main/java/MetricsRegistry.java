@@ -0,0 +1,19 @@
+/**
+ * Creates and exports named metrics. Asking twice for the same name returns the same metric, so
+ * that all instances of a class share their metrics. Implementations must be thread-safe and
+ * have a public constructor without arguments to be selected with {@link Metrics#PROPERTY}.
+ */
+public interface MetricsRegistry {
+
+    /** @return the counter named {@code name}, creating it if needed */
+    Counter counter(String name);
+
+    /** @return the latency recorder named {@code name}, creating it if needed */
+    LatencyRecorder latency(String name);
+
+    /** Exports {@code gauge} as {@code name}, replacing the gauge of that name if any */
+    void gauge(String name, Gauge gauge);
+
+    /** Stops exporting the gauge named {@code name}, if any */
+    void removeGauge(String name);
+}
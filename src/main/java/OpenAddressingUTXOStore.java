@@ -0,0 +1,241 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A {@link UTXOStore} that keeps UTXOs in an open-addressing hash table made of primitive arrays:
+ * four words of transaction hash, the output index, the value and the id of the address per slot.
+ * Compared to a {@code HashMap} there is no node, key or output object per entry, so large pools
+ * need a fraction of the heap and put little load on the garbage collector.
+ *
+ * Addresses are referenced by their id in the {@link AddressRegistry}. {@link #get} creates a new
+ * output on every call. UTXOs whose transaction hash is not 32 bytes long, outputs whose address
+ * was not registered because the registry is full, and outputs whose value is not an amount (see
+ * {@link Amounts}) are kept in a small overflow map.
+ */
+public class OpenAddressingUTXOStore implements UTXOStore {
+
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    /** Address reference of empty slots */
+    private static final int EMPTY = 0;
+
+    /** Number of slots, always a power of two */
+    private int capacity;
+    private int size;
+
+    /** Slot i holds its transaction hash in words[4 * i] to words[4 * i + 3] */
+    private long[] words;
+    private int[] indexes;
+    private int[] hashes;
+    /** Value of each slot in base units, see {@link Amounts} */
+    private long[] units;
+    /**
+     * Registry id of the address of each slot plus one, so that outputs without an address can be
+     * told from EMPTY
+     */
+    private int[] addressIds;
+
+    /** UTXOs that can not be stored in the table */
+    private HashMap<UTXO, Transaction.Output> overflow;
+
+    /** Creates a new empty store */
+    public OpenAddressingUTXOStore() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /** Creates a new empty store with room for about {@code expectedSize} UTXOs */
+    public OpenAddressingUTXOStore(int expectedSize) {
+        int cap = Integer.highestOneBit(Math.max(expectedSize, 8) * 2 - 1) << 1;
+        allocate(cap);
+        overflow = new HashMap<UTXO, Transaction.Output>();
+    }
+
+    private OpenAddressingUTXOStore(OpenAddressingUTXOStore store) {
+        capacity = store.capacity;
+        size = store.size;
+        words = store.words.clone();
+        indexes = store.indexes.clone();
+        hashes = store.hashes.clone();
+        units = store.units.clone();
+        addressIds = store.addressIds.clone();
+        overflow = new HashMap<UTXO, Transaction.Output>(store.overflow);
+    }
+
+    @Override
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        if (!utxo.hasWordHash()) {
+            overflow.put(utxo, txOut);
+            return;
+        }
+        int addressId = txOut.getAddressId();
+        if (addressId == AddressRegistry.UNREGISTERED || !txOut.isAmount()) {
+            remove(utxo);
+            overflow.put(utxo, txOut);
+            return;
+        }
+        long value = txOut.getUnits();
+        if (!overflow.isEmpty()) {
+            overflow.remove(utxo);
+        }
+        int slot = find(utxo);
+        if (slot < 0) {
+            if ((size + 1) * 2 > capacity) {
+                resize(capacity * 2);
+            }
+            slot = ~find(utxo);
+            int w = slot << 2;
+            words[w] = utxo.h0;
+            words[w + 1] = utxo.h1;
+            words[w + 2] = utxo.h2;
+            words[w + 3] = utxo.h3;
+            indexes[slot] = utxo.getIndex();
+            hashes[slot] = utxo.hashCode();
+            size++;
+        }
+        units[slot] = value;
+        addressIds[slot] = addressId + 1;
+    }
+
+    @Override
+    public void remove(UTXO utxo) {
+        if (utxo == null) {
+            return;
+        }
+        if (!utxo.hasWordHash()) {
+            overflow.remove(utxo);
+            return;
+        }
+        int slot = find(utxo);
+        if (slot < 0) {
+            overflow.remove(utxo);
+            return;
+        }
+        // Backward shift deletion: move later entries of the probe sequence into the hole so that
+        // lookups never need tombstones
+        int mask = capacity - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (addressIds[next] != EMPTY) {
+            int home = hashes[next] & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                move(next, hole);
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        addressIds[hole] = EMPTY;
+        size--;
+    }
+
+    @Override
+    public Transaction.Output get(UTXO utxo) {
+        if (utxo == null) {
+            return null;
+        }
+        if (!utxo.hasWordHash()) {
+            return overflow.get(utxo);
+        }
+        int slot = find(utxo);
+        if (slot < 0) {
+            return overflow.isEmpty() ? null : overflow.get(utxo);
+        }
+        return new Transaction.Output(units[slot], addressIds[slot] - 1);
+    }
+
+    @Override
+    public boolean contains(UTXO utxo) {
+        if (utxo == null) {
+            return false;
+        }
+        if (!utxo.hasWordHash()) {
+            return overflow.containsKey(utxo);
+        }
+        return find(utxo) >= 0 || (!overflow.isEmpty() && overflow.containsKey(utxo));
+    }
+
+    @Override
+    public ArrayList<UTXO> keys() {
+        ArrayList<UTXO> keys = new ArrayList<UTXO>(size());
+        for (int slot = 0; slot < capacity; ++slot) {
+            if (addressIds[slot] != EMPTY) {
+                int w = slot << 2;
+                keys.add(new UTXO(words[w], words[w + 1], words[w + 2], words[w + 3], indexes[slot]));
+            }
+        }
+        keys.addAll(overflow.keySet());
+        return keys;
+    }
+
+    @Override
+    public int size() {
+        return size + overflow.size();
+    }
+
+    @Override
+    public UTXOStore copy() {
+        return new OpenAddressingUTXOStore(this);
+    }
+
+    /**
+     * @return the slot holding {@code utxo}, or the bitwise complement of the empty slot where it
+     *         would be inserted
+     */
+    private int find(UTXO utxo) {
+        int mask = capacity - 1;
+        int hash = utxo.hashCode();
+        int index = utxo.getIndex();
+        int slot = hash & mask;
+        while (addressIds[slot] != EMPTY) {
+            int w = slot << 2;
+            if (hashes[slot] == hash && indexes[slot] == index
+                    && words[w] == utxo.h0 && words[w + 1] == utxo.h1
+                    && words[w + 2] == utxo.h2 && words[w + 3] == utxo.h3) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return ~slot;
+    }
+
+    private void move(int from, int to) {
+        System.arraycopy(words, from << 2, words, to << 2, 4);
+        indexes[to] = indexes[from];
+        hashes[to] = hashes[from];
+        units[to] = units[from];
+        addressIds[to] = addressIds[from];
+    }
+
+    private void allocate(int cap) {
+        capacity = cap;
+        words = new long[cap * 4];
+        indexes = new int[cap];
+        hashes = new int[cap];
+        units = new long[cap];
+        addressIds = new int[cap];
+    }
+
+    private void resize(int cap) {
+        long[] oldWords = words;
+        int[] oldIndexes = indexes;
+        int[] oldHashes = hashes;
+        long[] oldUnits = units;
+        int[] oldAddressIds = addressIds;
+        int oldCapacity = capacity;
+        allocate(cap);
+        int mask = cap - 1;
+        for (int from = 0; from < oldCapacity; ++from) {
+            if (oldAddressIds[from] == EMPTY) {
+                continue;
+            }
+            int slot = oldHashes[from] & mask;
+            while (addressIds[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            System.arraycopy(oldWords, from << 2, words, slot << 2, 4);
+            indexes[slot] = oldIndexes[from];
+            hashes[slot] = oldHashes[from];
+            units[slot] = oldUnits[from];
+            addressIds[slot] = oldAddressIds[from];
+        }
+    }
+}
@@ -0,0 +1,158 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A copy-on-write snapshot of the store of another {@link UTXOPool}, its owner. The snapshot
+ * shares the owner's store and records only what differs from it: its own changes, and the
+ * previous state of every UTXO the owner changes after the snapshot was taken, which the owner
+ * hands over before applying the change. Taking a snapshot is therefore O(1), and each later
+ * change costs O(1) on either side.
+ *
+ * The owner writes into the snapshot on each of its own changes, so a snapshot is tied to its
+ * owner and is only as thread-safe as the owner is: both must be used by the same thread, or by
+ * one thread at a time.
+ */
+public class OverlayUTXOStore implements UTXOStore {
+
+    /** The pool whose store is shared, or null for a view over a store that does not change */
+    private final UTXOPool owner;
+    /** The shared store of {@code owner} */
+    private final UTXOStore base;
+    /** Entries that differ from {@code base}, a null value meaning the UTXO is not present */
+    private HashMap<UTXO, Transaction.Output> delta;
+    /** True once the snapshot no longer follows {@code base}, see {@link #materialize()} */
+    private boolean detached;
+
+    /** Creates a snapshot of the current content of {@code base}, the store of {@code owner} */
+    OverlayUTXOStore(UTXOPool owner, UTXOStore base) {
+        this(owner, base, new HashMap<UTXO, Transaction.Output>());
+    }
+
+    private OverlayUTXOStore(UTXOPool owner, UTXOStore base,
+                             HashMap<UTXO, Transaction.Output> delta) {
+        this.owner = owner;
+        this.base = base;
+        this.delta = delta;
+        if (owner != null) {
+            owner.register(this);
+        }
+    }
+
+    @Override
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        delta.put(utxo, txOut);
+    }
+
+    @Override
+    public void remove(UTXO utxo) {
+        if (utxo == null) {
+            return;
+        }
+        if (base.contains(utxo)) {
+            delta.put(utxo, null);
+        } else {
+            delta.remove(utxo);
+        }
+    }
+
+    @Override
+    public Transaction.Output get(UTXO utxo) {
+        if (delta.containsKey(utxo)) {
+            return delta.get(utxo);
+        }
+        return base.get(utxo);
+    }
+
+    @Override
+    public boolean contains(UTXO utxo) {
+        if (delta.containsKey(utxo)) {
+            return delta.get(utxo) != null;
+        }
+        return base.contains(utxo);
+    }
+
+    @Override
+    public ArrayList<UTXO> keys() {
+        ArrayList<UTXO> keys = new ArrayList<UTXO>();
+        for (UTXO utxo : base.keys()) {
+            if (!delta.containsKey(utxo)) {
+                keys.add(utxo);
+            }
+        }
+        for (Map.Entry<UTXO, Transaction.Output> entry : delta.entrySet()) {
+            if (entry.getValue() != null) {
+                keys.add(entry.getKey());
+            }
+        }
+        return keys;
+    }
+
+    /** @return the number of UTXOs, in O(number of recorded differences) */
+    @Override
+    public int size() {
+        int size = base.size();
+        for (Map.Entry<UTXO, Transaction.Output> entry : delta.entrySet()) {
+            boolean inBase = base.contains(entry.getKey());
+            if (entry.getValue() != null && !inBase) {
+                size++;
+            } else if (entry.getValue() == null && inBase) {
+                size--;
+            }
+        }
+        return size;
+    }
+
+    /** @return another snapshot of the same owner with the same content, in O(differences) */
+    @Override
+    public UTXOStore copy() {
+        if (detached) {
+            throw new IllegalStateException("Snapshot has been materialized");
+        }
+        return new OverlayUTXOStore(owner, base, new HashMap<UTXO, Transaction.Output>(delta));
+    }
+
+    /**
+     * Called by the owner before it changes {@code utxo} in the shared store, so that this
+     * snapshot keeps seeing the current state.
+     */
+    void preserve(UTXO utxo) {
+        if (!detached && !delta.containsKey(utxo)) {
+            delta.put(utxo, base.get(utxo));
+        }
+    }
+
+    /** @return true if this snapshot no longer follows its owner's store */
+    boolean isDetached() {
+        return detached;
+    }
+
+    /**
+     * @return true once the recorded differences are large enough that lookups and memory would
+     *         benefit from turning the snapshot into a store of its own. Views are short-lived
+     *         and never materialized. Neither are snapshots of a {@link MappedUTXOStore}, whose
+     *         copy is a copy of its whole file: their differences stay in memory instead.
+     */
+    boolean shouldMaterialize() {
+        return owner != null && !(base instanceof MappedUTXOStore)
+                && delta.size() > 1024 && delta.size() > base.size() / 4;
+    }
+
+    /**
+     * Detaches this snapshot from its owner and returns an independent store with its content.
+     * This snapshot must not be used afterwards.
+     */
+    UTXOStore materialize() {
+        UTXOStore store = base.copy();
+        for (Map.Entry<UTXO, Transaction.Output> entry : delta.entrySet()) {
+            if (entry.getValue() == null) {
+                store.remove(entry.getKey());
+            } else {
+                store.put(entry.getKey(), entry.getValue());
+            }
+        }
+        detached = true;
+        delta = null;
+        return store;
+    }
+}
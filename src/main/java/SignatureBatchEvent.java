@@ -0,0 +1,28 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/** Flight Recorder event spanning the up-front signature verification of an epoch */
+@Name("scroogecoin.SignatureBatch")
+@Label("Signature Verification")
+@Category("Scrooge Coin")
+@Description("Up-front verification of the signatures of an epoch, see SignatureVerifier")
+@StackTrace(false)
+class SignatureBatchEvent extends Event {
+
+    @Label("Handler")
+    String handler;
+
+    @Label("Epoch")
+    long epoch;
+
+    @Label("Verified Transactions")
+    int verified;
+
+    @Label("Skipped Transactions")
+    @Description("Transactions already rejected by a cheaper check")
+    int skipped;
+}
@@ -0,0 +1,256 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+public class SignatureCache {
+
+    /** Number of entries of the cache returned by {@link #shared()} */
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    /** Number of independently locked LRU segments */
+    private static final int SEGMENTS = 16;
+
+    private static final SignatureCache SHARED = new SignatureCache(DEFAULT_CAPACITY);
+    static {
+        MetricsRegistry registry = Metrics.registry();
+        registry.gauge("signaturecache.hits", new Gauge() {
+            @Override
+            public long value() {
+                return SHARED.hits();
+            }
+        });
+        registry.gauge("signaturecache.misses", new Gauge() {
+            @Override
+            public long value() {
+                return SHARED.misses();
+            }
+        });
+        registry.gauge("signaturecache.evictions", new Gauge() {
+            @Override
+            public long value() {
+                return SHARED.evictions();
+            }
+        });
+    }
+
+    private static final ThreadLocal<MessageDigest> DIGESTS = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private final Segment[] segments;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /** Creates a cache remembering up to about {@code capacity} successful verifications */
+    public SignatureCache(int capacity) {
+        if (capacity < SEGMENTS) {
+            throw new IllegalArgumentException("capacity must be at least " + SEGMENTS);
+        }
+        segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; ++i) {
+            segments[i] = new Segment(capacity / SEGMENTS);
+        }
+    }
+
+    /** @return the cache shared by all handlers that are not given one explicitly */
+    public static SignatureCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * Same as {@link Crypto#verifySignature(PublicKey, byte[], byte[])}, but returns immediately if
+     * the same signature of the same message under the same key has been verified before. A
+     * {@code null} key verifies nothing and is not cached.
+     */
+    public boolean verifySignature(PublicKey pubKey, byte[] message, byte[] signature) {
+        return verifySignature(pubKey, new byte[][] { message }, signature);
+    }
+
+    /**
+     * Same as {@link #verifySignature(PublicKey, byte[], byte[])} for the message made of the
+     * concatenation of {@code messageParts}.
+     */
+    public boolean verifySignature(PublicKey pubKey, byte[][] messageParts, byte[] signature) {
+        if (pubKey == null) {
+            return false;
+        }
+        Key key = key(pubKey, messageParts, signature);
+        Segment segment = segments[(key.hash >>> 16 ^ key.hash) & (SEGMENTS - 1)];
+        if (segment.contains(key)) {
+            hits.increment();
+            return true;
+        }
+        misses.increment();
+        if (!Crypto.verifySignature(pubKey, messageParts, signature)) {
+            return false;
+        }
+        segment.add(key);
+        return true;
+    }
+
+    /**
+     * Same as {@link #verifySignature(PublicKey, byte[][], byte[])} for a message and a signature
+     * that are the remaining bytes of buffers, whose positions are not moved.
+     */
+    public boolean verifySignature(PublicKey pubKey, ByteBuffer[] messageParts,
+                                   ByteBuffer signature) {
+        if (pubKey == null) {
+            return false;
+        }
+        Key key = key(pubKey, messageParts, signature);
+        Segment segment = segments[(key.hash >>> 16 ^ key.hash) & (SEGMENTS - 1)];
+        if (segment.contains(key)) {
+            hits.increment();
+            return true;
+        }
+        misses.increment();
+        if (!Crypto.verifySignature(pubKey, messageParts, signature)) {
+            return false;
+        }
+        segment.add(key);
+        return true;
+    }
+
+    /** @return the number of verifications answered from the cache */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /** @return the number of verifications that had to run the signature algorithm */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /** @return the number of entries dropped to make room for newer ones */
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    /** @return the number of verifications currently remembered */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /** Forgets all remembered verifications, leaving the counters untouched */
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * @return the digest of {@code pubKey}, the message made of {@code messageParts} and {@code
+     *         signature}. The length of the message is included so that moving bytes between
+     *         message and signature yields a different key.
+     */
+    private static Key key(PublicKey pubKey, byte[][] messageParts, byte[] signature) {
+        MessageDigest md = DIGESTS.get();
+        md.update(pubKey.getEncoded());
+        int length = 0;
+        for (byte[] part : messageParts) {
+            length += part.length;
+        }
+        md.update(ByteBuffer.allocate(Integer.SIZE / 8).putInt(length).array());
+        for (byte[] part : messageParts) {
+            md.update(part);
+        }
+        md.update(signature);
+        return new Key(md.digest());
+    }
+
+    /** Same as {@link #key(PublicKey, byte[][], byte[])} for the remaining bytes of buffers */
+    private static Key key(PublicKey pubKey, ByteBuffer[] messageParts, ByteBuffer signature) {
+        MessageDigest md = DIGESTS.get();
+        md.update(pubKey.getEncoded());
+        int length = 0;
+        for (ByteBuffer part : messageParts) {
+            length += part.remaining();
+        }
+        md.update(ByteBuffer.allocate(Integer.SIZE / 8).putInt(length).array());
+        for (ByteBuffer part : messageParts) {
+            md.update(part.duplicate());
+        }
+        md.update(signature.duplicate());
+        return new Key(md.digest());
+    }
+
+    /** A SHA-256 digest packed into four words */
+    private static final class Key {
+        private final long w0, w1, w2, w3;
+        private final int hash;
+
+        Key(byte[] digest) {
+            ByteBuffer b = ByteBuffer.wrap(digest);
+            w0 = b.getLong();
+            w1 = b.getLong();
+            w2 = b.getLong();
+            w3 = b.getLong();
+            // The words are uniformly distributed already, no further mixing needed
+            hash = (int) (w0 ^ (w0 >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) other;
+            return w0 == k.w0 && w1 == k.w1 && w2 == k.w2 && w3 == k.w3;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /** An access-ordered LRU set guarded by its own lock */
+    private final class Segment {
+        private final LinkedHashMap<Key, Boolean> entries;
+
+        Segment(final int capacity) {
+            entries = new LinkedHashMap<Key, Boolean>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+                    if (size() > capacity) {
+                        evictions.increment();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        synchronized boolean contains(Key key) {
+            return entries.get(key) != null;
+        }
+
+        synchronized void add(Key key) {
+            entries.put(key, Boolean.TRUE);
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+
+        synchronized void clear() {
+            entries.clear();
+        }
+    }
+}
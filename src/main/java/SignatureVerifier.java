@@ -0,0 +1,154 @@
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+public class SignatureVerifier {
+
+    /** Executor used to run signature checks, or null to run them on the calling thread */
+    private ExecutorService executor;
+
+    /** Cache of successful verifications, or null to always run the signature algorithm */
+    private SignatureCache cache;
+
+    /**
+     * Creates a verifier that checks signatures on {@code executor}. A null {@code executor}
+     * verifies everything sequentially on the calling thread.
+     */
+    public SignatureVerifier(ExecutorService executor) {
+        this(executor, null);
+    }
+
+    /**
+     * Creates a verifier like {@link #SignatureVerifier(ExecutorService)} that skips signatures
+     * already verified by {@code cache}. A null {@code cache} disables caching.
+     */
+    public SignatureVerifier(ExecutorService executor, SignatureCache cache) {
+        this.executor = executor;
+        this.cache = cache;
+    }
+
+    /**
+     * @return true if {@code signature} is a valid signature of {@code message} under {@code
+     *         pubKey}, consulting the cache of this verifier if it has one
+     */
+    public boolean verifySignature(PublicKey pubKey, byte[] message, byte[] signature) {
+        if (cache != null) {
+            return cache.verifySignature(pubKey, message, signature);
+        }
+        return Crypto.verifySignature(pubKey, message, signature);
+    }
+
+    /**
+     * Same as {@link #verifySignature(PublicKey, byte[], byte[])} for the message made of the
+     * concatenation of {@code messageParts}.
+     */
+    public boolean verifySignature(PublicKey pubKey, byte[][] messageParts, byte[] signature) {
+        if (cache != null) {
+            return cache.verifySignature(pubKey, messageParts, signature);
+        }
+        return Crypto.verifySignature(pubKey, messageParts, signature);
+    }
+
+    /**
+     * Same as {@link #verifySignature(PublicKey, byte[][], byte[])} for a message and a signature
+     * that are the remaining bytes of buffers, whose positions are not moved.
+     */
+    public boolean verifySignature(PublicKey pubKey, ByteBuffer[] messageParts,
+                                   ByteBuffer signature) {
+        if (cache != null) {
+            return cache.verifySignature(pubKey, messageParts, signature);
+        }
+        return Crypto.verifySignature(pubKey, messageParts, signature);
+    }
+
+    /**
+     * Verifies the signature of every input of every transaction in {@code txs} whose claimed
+     * output is currently in {@code pool}. {@code pool} must not be modified until this method
+     * returns.
+     *
+     * @return an array {@code verdicts} where {@code verdicts[i][j]} is TRUE or FALSE if the
+     *         signature of input j of {@code txs[i]} was checked against the output it claims in
+     *         {@code pool}, and null if that output is not in {@code pool} or the check could not
+     *         be completed, in which case the caller has to verify it itself.
+     */
+    public Boolean[][] verify(final UTXOPool pool, Transaction[] txs) {
+        final Boolean[][] verdicts = new Boolean[txs.length][];
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int i = 0; i < txs.length; ++i) {
+            final Transaction tx = txs[i];
+            final Boolean[] txVerdicts = new Boolean[tx.numInputs()];
+            verdicts[i] = txVerdicts;
+            if (tx.numInputs() == 0) {
+                continue;
+            }
+            // Every input signs the same encoding of the outputs, so it is only computed once
+            final byte[] rawOutputs = tx.getRawOutputsToSign();
+            for (int j = 0; j < tx.numInputs(); ++j) {
+                final int index = j;
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        txVerdicts[index] = verifyInput(pool, tx, index, rawOutputs);
+                        return null;
+                    }
+                });
+            }
+        }
+
+        if (executor == null) {
+            for (Callable<Void> task : tasks) {
+                try {
+                    task.call();
+                } catch (Exception e) {
+                    // Leave the verdict unset so that the caller re-checks the input
+                }
+            }
+            return verdicts;
+        }
+
+        List<Future<Void>> futures;
+        try {
+            futures = executor.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new Boolean[txs.length][];
+        }
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new Boolean[txs.length][];
+            } catch (ExecutionException e) {
+                // Leave the verdict unset so that the caller re-checks the input
+            }
+        }
+        return verdicts;
+    }
+
+    /**
+     * @return whether the signature of input {@code index} of {@code tx} is valid for the output
+     *         it claims in {@code pool}, or null if that output is not in {@code pool}. {@code
+     *         rawOutputs} is the result of {@link Transaction#getRawOutputsToSign()} for {@code tx}.
+     */
+    private Boolean verifyInput(UTXOPool pool, Transaction tx, int index, byte[] rawOutputs) {
+        Transaction.Input in = tx.getInput(index);
+        if (in.prevTxHash == null) {
+            return null;
+        }
+        Transaction.Output out = pool.getTxOutput(in.getUTXO());
+        if (out == null) {
+            return null;
+        }
+        if (in.signature == null) {
+            return Boolean.FALSE;
+        }
+        byte[][] message = new byte[][] { tx.getRawInputToSign(index), rawOutputs };
+        return verifySignature(out.address, message, in.signature);
+    }
+}
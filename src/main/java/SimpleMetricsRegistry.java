@@ -0,0 +1,114 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link MetricsRegistry} keeping its metrics in memory, with {@link LongAdder} counters and
+ * {@link LatencyHistogram} latencies. Subclasses export metrics by overriding the {@code
+ * created} methods, which are called once per name, and withdraw gauges by overriding {@link
+ * #gaugeRemoved(String)}.
+ */
+public class SimpleMetricsRegistry implements MetricsRegistry {
+
+    private final ConcurrentHashMap<String, Counter> counters =
+            new ConcurrentHashMap<String, Counter>();
+    private final ConcurrentHashMap<String, LatencyRecorder> latencies =
+            new ConcurrentHashMap<String, LatencyRecorder>();
+    private final ConcurrentHashMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+
+    @Override
+    public Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            Counter created = new AdderCounter();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+                counterCreated(name, counter);
+            }
+        }
+        return counter;
+    }
+
+    @Override
+    public LatencyRecorder latency(String name) {
+        LatencyRecorder latency = latencies.get(name);
+        if (latency == null) {
+            LatencyRecorder created = new LatencyHistogram();
+            latency = latencies.putIfAbsent(name, created);
+            if (latency == null) {
+                latency = created;
+                latencyCreated(name, latency);
+            }
+        }
+        return latency;
+    }
+
+    @Override
+    public void gauge(String name, Gauge gauge) {
+        if (gauges.put(name, gauge) == null) {
+            gaugeCreated(name);
+        }
+    }
+
+    @Override
+    public void removeGauge(String name) {
+        if (gauges.remove(name) != null) {
+            gaugeRemoved(name);
+        }
+    }
+
+    /** @return the current value of the gauge named {@code name}, or 0 if there is none */
+    public long gaugeValue(String name) {
+        Gauge gauge = gauges.get(name);
+        return gauge == null ? 0 : gauge.value();
+    }
+
+    /** @return the current count of every counter, by name */
+    public Map<String, Long> counts() {
+        TreeMap<String, Long> counts = new TreeMap<String, Long>();
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().sum());
+        }
+        return counts;
+    }
+
+    /** Called once a counter named {@code name} has been created */
+    protected void counterCreated(String name, Counter counter) {
+    }
+
+    /** Called once a latency recorder named {@code name} has been created */
+    protected void latencyCreated(String name, LatencyRecorder latency) {
+    }
+
+    /**
+     * Called once the first gauge named {@code name} has been registered. Later gauges of the same
+     * name replace it, so {@link #gaugeValue(String)} always reads the latest one.
+     */
+    protected void gaugeCreated(String name) {
+    }
+
+    /** Called once the gauge named {@code name} has been removed */
+    protected void gaugeRemoved(String name) {
+    }
+
+    private static final class AdderCounter implements Counter {
+        private final LongAdder adder = new LongAdder();
+
+        @Override
+        public void increment() {
+            adder.increment();
+        }
+
+        @Override
+        public void add(long n) {
+            adder.add(n);
+        }
+
+        @Override
+        public long sum() {
+            return adder.sum();
+        }
+    }
+}
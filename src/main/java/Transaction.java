@@ -5,6 +5,15 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 
+/**
+ * A transaction with its inputs and outputs.
+ *
+ * The serialized form, the encodings signed by each input and the hash computed by {@link
+ * #finalize()} are cached and recomputed only after the transaction is changed through one of its
+ * methods ({@link #addInput}, {@link #addOutput}, {@link #removeInput}, {@link #addSignature} or
+ * {@link Input#addSignature}). Assigning the public fields of an input or output directly is not
+ * tracked. Once {@link #freeze()} is called the transaction can no longer be changed.
+ */
 public class Transaction {
 
     public class Input {
@@ -15,6 +24,11 @@ public class Transaction {
         /** the signature produced to check validity */
         public byte[] signature;
 
+        /** cached result of {@link #getRawToSign()} */
+        private volatile byte[] rawToSign;
+        /** cached result of {@link #getUTXO()} */
+        private volatile UTXO utxo;
+
         public Input(byte[] prevHash, int index) {
             if (prevHash == null)
                 prevTxHash = null;
@@ -24,27 +38,157 @@ public class Transaction {
         }
 
         public void addSignature(byte[] sig) {
+            checkMutable();
             if (sig == null)
                 signature = null;
             else
                 signature = Arrays.copyOf(sig, sig.length);
+            invalidate(false);
+        }
+
+        /**
+         * @return the UTXO claimed by this input, or null if it has no {@code prevTxHash}. It is
+         *         created once, so that repeated pool lookups for this input allocate nothing.
+         */
+        public UTXO getUTXO() {
+            UTXO u = utxo;
+            if (u == null && prevTxHash != null) {
+                u = new UTXO(prevTxHash, outputIndex);
+                utxo = u;
+            }
+            return u;
+        }
+
+        /**
+         * @return the part of the data signed by this input that precedes the outputs. The
+         *         returned array is shared and must not be modified.
+         */
+        byte[] getRawToSign() {
+            byte[] raw = rawToSign;
+            if (raw == null) {
+                int size = Integer.SIZE / 8;
+                if (prevTxHash != null)
+                    size += prevTxHash.length;
+                ByteBuffer b = ByteBuffer.allocate(size);
+                if (prevTxHash != null)
+                    b.put(prevTxHash);
+                b.putInt(outputIndex);
+                raw = b.array();
+                rawToSign = raw;
+            }
+            return raw;
         }
     }
 
-    public class Output {
+    public static class Output {
         /** value in bitcoins of the output */
         public double value;
         /** the address or public key of the recipient */
         public PublicKey address;
 
+        /** {@code value} in base units, converted when the output was built */
+        private final long units;
+        /** the value {@code units} was converted from, or NaN if it was not an amount */
+        private final double unitsValue;
+
+        /**
+         * id of {@code address} in the {@link AddressRegistry}, through which outputs paying to the
+         * same address share one key object and its encoding, or {@link
+         * AddressRegistry#UNREGISTERED} if the registry was full
+         */
+        private volatile int addressId;
+
+        /**
+         * Creates an output of {@code v} coins. If {@code v} is not an amount in whole base units,
+         * see {@link Amounts#isAmount(double)}, the output can be built but not validated.
+         */
         public Output(double v, PublicKey addr) {
+            this(Amounts.isAmount(v) ? Amounts.toUnits(v) : 0, v, addr);
+        }
+
+        /** Creates an output paying to the address of id {@code addressId} in the registry */
+        Output(long units, int addressId) {
+            value = Amounts.toCoins(units);
+            this.units = units;
+            unitsValue = value;
+            this.addressId = addressId;
+            address = AddressRegistry.shared().get(addressId);
+        }
+
+        private Output(long units, double v, PublicKey addr) {
+            AddressRegistry registry = AddressRegistry.shared();
             value = v;
-            address = addr;
+            this.units = units;
+            // NaN equals no value, so getUnits() converts a value that is not an amount again
+            unitsValue = Amounts.toCoins(units) == v ? v : Double.NaN;
+            addressId = registry.intern(addr);
+            address = addressId == AddressRegistry.UNREGISTERED ? addr : registry.get(addressId);
+        }
+
+        /** @return an output of {@code units} base units, see {@link Amounts} */
+        public static Output ofUnits(long units, PublicKey addr) {
+            return new Output(units, Amounts.toCoins(units), addr);
+        }
+
+        /**
+         * @return {@code value} in base units, see {@link Amounts}, as converted when the output
+         *         was built
+         * @throws ArithmeticException if {@code value} is not an amount, see {@link #isAmount()}
+         */
+        public long getUnits() {
+            // The field is public, so the value may have been replaced since
+            double v = value;
+            return v == unitsValue ? units : Amounts.toUnits(v);
+        }
+
+        /** @return true if {@code value} is an amount, so that {@link #getUnits()} can not throw */
+        public boolean isAmount() {
+            double v = value;
+            return v == unitsValue || Amounts.isAmount(v);
+        }
+
+        /**
+         * @return the id of {@code address} in the {@link AddressRegistry}, {@link
+         *         AddressRegistry#NONE} if there is no address, or {@link
+         *         AddressRegistry#UNREGISTERED} if the registry is full
+         */
+        public int getAddressId() {
+            PublicKey addr = address;
+            int id = addressId;
+            AddressRegistry registry = AddressRegistry.shared();
+            // The field is public, so the address may have been replaced since
+            if (id == AddressRegistry.UNREGISTERED || registry.get(id) != addr) {
+                id = registry.intern(addr);
+                addressId = id;
+            }
+            return id;
+        }
+
+        /**
+         * @return the encoded form of {@code address}. The returned array is shared and must not
+         *         be modified.
+         */
+        public byte[] getEncodedAddress() {
+            int id = getAddressId();
+            return id == AddressRegistry.UNREGISTERED
+                    ? address.getEncoded() : AddressRegistry.shared().getEncoded(id);
         }
     }
 
     /** hash of the transaction, its unique id */
-    private byte[] hash;
+    private volatile byte[] hash;
+    /** true if {@code hash} is the digest of the current contents rather than set explicitly */
+    private volatile boolean hashIsDigest;
+    /** true once {@link #finalize()} was called, so that {@code hash} is kept up to date */
+    private volatile boolean finalized;
+    /** true once the transaction can no longer be changed */
+    private volatile boolean frozen;
+
+    /** cached result of {@link #getRawTx()} */
+    private volatile byte[] rawTx;
+    /** cached result of {@link #getRawOutputsToSign()} */
+    private volatile byte[] rawOutputs;
+
     private ArrayList<Input> inputs;
     private ArrayList<Output> outputs;
 
@@ -53,32 +197,50 @@ public class Transaction {
         outputs = new ArrayList<Output>();
     }
 
+    /**
+     * Creates a mutable copy of {@code tx}. The inputs are copied so that signing the copy does
+     * not affect {@code tx}, while the outputs are shared.
+     */
     public Transaction(Transaction tx) {
-        hash = tx.hash.clone();
-        inputs = new ArrayList<Input>(tx.inputs);
+        hash = tx.hash == null ? null : tx.hash.clone();
+        hashIsDigest = tx.hashIsDigest;
+        finalized = tx.finalized;
+        inputs = new ArrayList<Input>(tx.inputs.size());
+        for (Input in : tx.inputs) {
+            Input copy = new Input(in.prevTxHash, in.outputIndex);
+            copy.signature = in.signature;
+            inputs.add(copy);
+        }
         outputs = new ArrayList<Output>(tx.outputs);
     }
 
     public void addInput(byte[] prevTxHash, int outputIndex) {
+        checkMutable();
         Input in = new Input(prevTxHash, outputIndex);
         inputs.add(in);
+        invalidate(false);
     }
 
     public void addOutput(double value, PublicKey address) {
+        checkMutable();
         Output op = new Output(value, address);
         outputs.add(op);
+        invalidate(true);
     }
 
     public void removeInput(int index) {
+        checkMutable();
         inputs.remove(index);
+        invalidate(false);
     }
 
     public void removeInput(UTXO ut) {
+        checkMutable();
         for (int i = 0; i < inputs.size(); i++) {
-            Input in = inputs.get(i);
-            UTXO u = new UTXO(in.prevTxHash, in.outputIndex);
-            if (u.equals(ut)) {
+            UTXO u = inputs.get(i).getUTXO();
+            if (u != null && u.equals(ut)) {
                 inputs.remove(i);
+                invalidate(false);
                 return;
             }
         }
@@ -86,94 +248,205 @@ public class Transaction {
 
     public byte[] getRawDataToSign(int index) {
         // ith input and all outputs
-        ArrayList<Byte> sigData = new ArrayList<Byte>();
         if (index > inputs.size())
             return null;
-        Input in = inputs.get(index);
-        byte[] prevTxHash = in.prevTxHash;
-        ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-        b.putInt(in.outputIndex);
-        byte[] outputIndex = b.array();
-        if (prevTxHash != null)
-            for (int i = 0; i < prevTxHash.length; i++)
-                sigData.add(prevTxHash[i]);
-        for (int i = 0; i < outputIndex.length; i++)
-            sigData.add(outputIndex[i]);
-        for (Output op : outputs) {
-            ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
-            bo.putDouble(op.value);
-            byte[] value = bo.array();
-            byte[] addressBytes = op.address.getEncoded();
-            for (int i = 0; i < value.length; i++)
-                sigData.add(value[i]);
-
-            for (int i = 0; i < addressBytes.length; i++)
-                sigData.add(addressBytes[i]);
-        }
-        byte[] sigD = new byte[sigData.size()];
-        int i = 0;
-        for (Byte sb : sigData)
-            sigD[i++] = sb;
+        byte[] in = getRawInputToSign(index);
+        byte[] out = getRawOutputsToSign();
+        byte[] sigD = Arrays.copyOf(in, in.length + out.length);
+        System.arraycopy(out, 0, sigD, in.length, out.length);
         return sigD;
     }
 
+    /** @return the number of bytes {@link #getRawDataToSign(int)} returns for input {@code index} */
+    public int rawDataToSignSize(int index) {
+        return getRawInputToSign(index).length + getRawOutputsToSign().length;
+    }
+
+    /**
+     * Writes the same bytes {@link #getRawDataToSign(int)} returns for input {@code index} to
+     * {@code buf}, which needs {@link #rawDataToSignSize(int)} bytes remaining.
+     */
+    public void writeRawDataToSign(int index, ByteBuffer buf) {
+        buf.put(getRawInputToSign(index));
+        buf.put(getRawOutputsToSign());
+    }
+
+    /**
+     * @return the part of {@link #getRawDataToSign(int)} that is specific to input {@code index},
+     *         that is, everything up to the encoding of the outputs. The returned array is shared
+     *         and must not be modified.
+     */
+    public byte[] getRawInputToSign(int index) {
+        return inputs.get(index).getRawToSign();
+    }
+
+    /**
+     * @return the encoding of all outputs that ends {@link #getRawDataToSign(int)} for every
+     *         input. It is computed once until the outputs change. The returned array is shared
+     *         and must not be modified.
+     */
+    public byte[] getRawOutputsToSign() {
+        byte[] raw = rawOutputs;
+        if (raw == null) {
+            int size = 0;
+            for (Output op : outputs)
+                size += Double.SIZE / 8 + op.getEncodedAddress().length;
+            ByteBuffer b = ByteBuffer.allocate(size);
+            for (Output op : outputs) {
+                b.putDouble(op.value);
+                b.put(op.getEncodedAddress());
+            }
+            raw = b.array();
+            rawOutputs = raw;
+        }
+        return raw;
+    }
+
     public void addSignature(byte[] signature, int index) {
         inputs.get(index).addSignature(signature);
     }
 
     public byte[] getRawTx() {
-        ArrayList<Byte> rawTx = new ArrayList<Byte>();
+        return serialize().clone();
+    }
+
+    /** @return the number of bytes {@link #getRawTx()} returns */
+    public int rawTxSize() {
+        return serialize().length;
+    }
+
+    /**
+     * Writes the same bytes {@link #getRawTx()} returns to {@code buf}, which needs {@link
+     * #rawTxSize()} bytes remaining.
+     */
+    public void writeRawTx(ByteBuffer buf) {
+        buf.put(serialize());
+    }
+
+    /** @return the number of bytes {@link #writeWire(ByteBuffer)} writes */
+    public int wireSize() {
+        return TransactionView.HEADER_SIZE + inputs.size() * TransactionView.INPUT_LENGTHS_SIZE
+                + outputs.size() * TransactionView.OUTPUT_LENGTHS_SIZE + serialize().length;
+    }
+
+    /**
+     * Writes the transaction to {@code buf} in the length-prefixed wire format read by {@link
+     * TransactionView}: a table of the lengths of the fields, followed by the same bytes as
+     * {@link #getRawTx()}. {@code buf} needs {@link #wireSize()} bytes remaining and must be
+     * big-endian, which buffers are by default.
+     *
+     * @throws IllegalStateException if there are more than 65535 inputs or outputs, or a field
+     *         longer than 65535 bytes
+     */
+    public void writeWire(ByteBuffer buf) {
+        int max = TransactionView.MAX_U16;
+        if (inputs.size() > max || outputs.size() > max) {
+            throw new IllegalStateException("Too many inputs or outputs for the wire format");
+        }
+        byte[] raw = serialize();
+        buf.putInt(wireSize() - Integer.SIZE / 8);
+        buf.putShort((short) inputs.size());
+        buf.putShort((short) outputs.size());
         for (Input in : inputs) {
-            byte[] prevTxHash = in.prevTxHash;
-            ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-            b.putInt(in.outputIndex);
-            byte[] outputIndex = b.array();
-            byte[] signature = in.signature;
-            if (prevTxHash != null)
-                for (int i = 0; i < prevTxHash.length; i++)
-                    rawTx.add(prevTxHash[i]);
-            for (int i = 0; i < outputIndex.length; i++)
-                rawTx.add(outputIndex[i]);
-            if (signature != null)
-                for (int i = 0; i < signature.length; i++)
-                    rawTx.add(signature[i]);
+            buf.putShort(wireLength(in.prevTxHash));
+            buf.putShort(wireLength(in.signature));
         }
         for (Output op : outputs) {
-            ByteBuffer b = ByteBuffer.allocate(Double.SIZE / 8);
-            b.putDouble(op.value);
-            byte[] value = b.array();
-            byte[] addressBytes = op.address.getEncoded();
-            for (int i = 0; i < value.length; i++) {
-                rawTx.add(value[i]);
+            buf.putShort(wireLength(op.getEncodedAddress()));
+        }
+        buf.put(raw);
+    }
+
+    private static short wireLength(byte[] field) {
+        if (field == null) {
+            return 0;
+        }
+        if (field.length > TransactionView.MAX_U16) {
+            throw new IllegalStateException("Field too long for the wire format");
+        }
+        return (short) field.length;
+    }
+
+    /** @return the cached serialized form, computing it if needed */
+    private byte[] serialize() {
+        byte[] raw = rawTx;
+        if (raw == null) {
+            byte[] rawOutputs = getRawOutputsToSign();
+            int size = rawOutputs.length;
+            for (Input in : inputs) {
+                size += Integer.SIZE / 8;
+                if (in.prevTxHash != null)
+                    size += in.prevTxHash.length;
+                if (in.signature != null)
+                    size += in.signature.length;
             }
-            for (int i = 0; i < addressBytes.length; i++) {
-                rawTx.add(addressBytes[i]);
+            ByteBuffer b = ByteBuffer.allocate(size);
+            for (Input in : inputs) {
+                if (in.prevTxHash != null)
+                    b.put(in.prevTxHash);
+                b.putInt(in.outputIndex);
+                if (in.signature != null)
+                    b.put(in.signature);
             }
-
+            b.put(rawOutputs);
+            raw = b.array();
+            rawTx = raw;
         }
-        byte[] tx = new byte[rawTx.size()];
-        int i = 0;
-        for (Byte b : rawTx)
-            tx[i++] = b;
-        return tx;
+        return raw;
     }
 
     public void finalize() {
+        finalized = true;
+        if (hash == null || !hashIsDigest) {
+            hash = digest();
+            hashIsDigest = true;
+        }
+    }
+
+    /** @return the SHA-256 digest of the serialized form */
+    private byte[] digest() {
         try {
             MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawTx());
-            hash = md.digest();
+            md.update(serialize());
+            return md.digest();
         } catch (NoSuchAlgorithmException x) {
-            x.printStackTrace(System.err);
+            throw new IllegalStateException(x);
         }
     }
 
+    /**
+     * Computes the hash and the serialized form one last time and prevents any further change.
+     * Transactions entering a UTXO pool are frozen so that their hash keeps identifying them.
+     */
+    public void freeze() {
+        finalize();
+        serialize();
+        frozen = true;
+    }
+
+    /** @return true if the transaction can no longer be changed */
+    public boolean isFrozen() {
+        return frozen;
+    }
+
     public void setHash(byte[] h) {
+        checkMutable();
         hash = h;
+        hashIsDigest = false;
     }
 
+    /**
+     * @return the hash set by {@link #setHash} or computed by {@link #finalize()}. A finalized
+     *         transaction that was changed since is hashed again.
+     */
     public byte[] getHash() {
-        return hash;
+        byte[] h = hash;
+        if (h == null && finalized) {
+            h = digest();
+            hash = h;
+            hashIsDigest = true;
+        }
+        return h;
     }
 
     public ArrayList<Input> getInputs() {
@@ -205,4 +478,23 @@ public class Transaction {
     public int numOutputs() {
         return outputs.size();
     }
+
+    private void checkMutable() {
+        if (frozen) {
+            throw new IllegalStateException("Transaction is frozen");
+        }
+    }
+
+    /**
+     * Drops the cached serialized form and hash after a change, and the cached encoding of the
+     * outputs too if {@code outputsChanged}.
+     */
+    private void invalidate(boolean outputsChanged) {
+        rawTx = null;
+        if (outputsChanged) {
+            rawOutputs = null;
+        }
+        hash = null;
+        hashIsDigest = false;
+    }
 }
@@ -0,0 +1,328 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+
+/**
+ * A read-only transaction in its wire format, read straight from a {@link ByteBuffer}, which may
+ * be a region of a mapped file. Fields are read from the buffer when asked for: no input, output
+ * or key object is built, and the hash and the data signed by each input are slices of the
+ * buffer rather than copies. Slices share the content of the buffer and must not be written to.
+ * {@link TxValidator} checks views directly, so that transactions received from the network or
+ * read from disk are only turned into {@link Transaction} objects, by {@link #toTransaction()},
+ * once they passed the checks.
+ *
+ * The wire format of a transaction is a length-prefixed record, big-endian like {@link
+ * Transaction#getRawTx()}:
+ *
+ * <pre>
+ * int   length of the rest of the record
+ * u16   number of inputs
+ * u16   number of outputs
+ * per input:  u16 length of prevTxHash, u16 length of the signature
+ * per output: u16 length of the encoded address
+ * the raw transaction, the bytes of {@link Transaction#getRawTx()}:
+ *   per input:  prevTxHash, int outputIndex, signature
+ *   per output: double value, encoded address
+ * </pre>
+ *
+ * Absent fields have length 0. Since the record ends with the raw transaction, the hash of a view
+ * is the digest of a single slice, and the data signed by an input is two slices, its claim and
+ * the outputs. See {@link Transaction#writeWire(ByteBuffer)} for the writing side.
+ *
+ * The buffer must not change while the view is in use. Views never move the position of the
+ * buffer and can be read by several threads at once.
+ */
+public final class TransactionView {
+
+    /** Bytes of the length, the number of inputs and the number of outputs */
+    static final int HEADER_SIZE = Integer.SIZE / 8 + 2 * (Short.SIZE / 8);
+    /** Bytes of the lengths of an input in the length table */
+    static final int INPUT_LENGTHS_SIZE = 2 * (Short.SIZE / 8);
+    /** Bytes of the length of an output in the length table */
+    static final int OUTPUT_LENGTHS_SIZE = Short.SIZE / 8;
+    /** Largest number of inputs, outputs and bytes of a field */
+    static final int MAX_U16 = 0xffff;
+
+    private final ByteBuffer buffer;
+    /** Absolute position of the record in {@code buffer} */
+    private final int start;
+    private final int numInputs;
+    private final int numOutputs;
+    /**
+     * Absolute position in {@code buffer} of each input followed by each output in the raw
+     * transaction, and of the end of the record
+     */
+    private final int[] offsets;
+
+    /** cached result of {@link #getHash()} */
+    private volatile byte[] hash;
+
+    private TransactionView(ByteBuffer buffer, int start) {
+        this.buffer = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        this.start = start;
+        int limit = this.buffer.limit();
+        if (limit - start < HEADER_SIZE) {
+            throw malformed("truncated header");
+        }
+        int length = this.buffer.getInt(start);
+        if (length < HEADER_SIZE - Integer.SIZE / 8 || length > limit - start - Integer.SIZE / 8) {
+            throw malformed("record length " + length + " out of bounds");
+        }
+        int end = start + Integer.SIZE / 8 + length;
+        numInputs = this.buffer.getShort(start + 4) & MAX_U16;
+        numOutputs = this.buffer.getShort(start + 6) & MAX_U16;
+        int table = start + HEADER_SIZE;
+        long raw = (long) table + numInputs * INPUT_LENGTHS_SIZE
+                + numOutputs * OUTPUT_LENGTHS_SIZE;
+        if (raw > end) {
+            throw malformed("truncated length table");
+        }
+        // Summed in a long and checked field by field, so that no sum can wrap around to end
+        offsets = new int[numInputs + numOutputs + 1];
+        long offset = raw;
+        for (int i = 0; i < numInputs; ++i) {
+            offsets[i] = (int) offset;
+            offset += hashLength(i) + Integer.SIZE / 8 + signatureLength(i);
+            if (offset > end) {
+                throw malformed("input " + i + " ends past the record");
+            }
+        }
+        for (int j = 0; j < numOutputs; ++j) {
+            offsets[numInputs + j] = (int) offset;
+            offset += Double.SIZE / 8 + addressLength(j);
+            if (offset > end) {
+                throw malformed("output " + j + " ends past the record");
+            }
+        }
+        if (offset != end) {
+            throw malformed("fields take " + (offset - raw) + " bytes, the record "
+                    + (end - raw));
+        }
+        offsets[numInputs + numOutputs] = end;
+    }
+
+    /**
+     * Reads the record at the position of {@code buf} and moves the position past it. Only the
+     * header and the length table are read, to check that the fields fit the record.
+     *
+     * @throws IllegalArgumentException if the record is truncated or its lengths do not add up
+     */
+    public static TransactionView read(ByteBuffer buf) {
+        TransactionView view = new TransactionView(buf, buf.position());
+        buf.position(view.offsets[view.offsets.length - 1]);
+        return view;
+    }
+
+    /** @return the number of bytes of the record, its length prefix included */
+    public int wireSize() {
+        return offsets[offsets.length - 1] - start;
+    }
+
+    public int numInputs() {
+        return numInputs;
+    }
+
+    public int numOutputs() {
+        return numOutputs;
+    }
+
+    /** @return true if input {@code index} has a prevTxHash */
+    public boolean hasPrevTxHash(int index) {
+        return hashLength(index) > 0;
+    }
+
+    /** @return the prevTxHash of input {@code index}, as a slice of the buffer */
+    public ByteBuffer getPrevTxHash(int index) {
+        return slice(offsets[index], hashLength(index));
+    }
+
+    /** @return the output index claimed by input {@code index} */
+    public int getOutputIndex(int index) {
+        return buffer.getInt(offsets[index] + hashLength(index));
+    }
+
+    /**
+     * @return the UTXO claimed by input {@code index}, or null if it has no prevTxHash. A
+     *         SHA-256 hash is read as four words, without an intermediate array.
+     */
+    public UTXO getUTXO(int index) {
+        int length = hashLength(index);
+        if (length == 0) {
+            return null;
+        }
+        int offset = offsets[index];
+        int outputIndex = buffer.getInt(offset + length);
+        if (length == UTXO.HASH_LENGTH) {
+            return new UTXO(buffer.getLong(offset), buffer.getLong(offset + 8),
+                    buffer.getLong(offset + 16), buffer.getLong(offset + 24), outputIndex);
+        }
+        byte[] prevTxHash = new byte[length];
+        getPrevTxHash(index).get(prevTxHash);
+        return new UTXO(prevTxHash, outputIndex);
+    }
+
+    /**
+     * @return true if inputs {@code a} and {@code b} claim the same output, comparing their bytes
+     *         in place. Inputs without a prevTxHash claim nothing.
+     */
+    public boolean claimsSame(int a, int b) {
+        int length = hashLength(a);
+        if (length == 0 || length != hashLength(b)
+                || getOutputIndex(a) != getOutputIndex(b)) {
+            return false;
+        }
+        int offsetA = offsets[a];
+        int offsetB = offsets[b];
+        int k = 0;
+        for (; k + 8 <= length; k += 8) {
+            if (buffer.getLong(offsetA + k) != buffer.getLong(offsetB + k)) {
+                return false;
+            }
+        }
+        for (; k < length; ++k) {
+            if (buffer.get(offsetA + k) != buffer.get(offsetB + k)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** @return true if input {@code index} has a signature */
+    public boolean hasSignature(int index) {
+        return signatureLength(index) > 0;
+    }
+
+    /** @return the signature of input {@code index}, as a slice of the buffer */
+    public ByteBuffer getSignature(int index) {
+        int offset = offsets[index] + hashLength(index) + Integer.SIZE / 8;
+        return slice(offset, signatureLength(index));
+    }
+
+    /**
+     * @return the data signed by input {@code index}, the same bytes as {@link
+     *         Transaction#getRawDataToSign(int)}, as two slices of the buffer: the
+     *         claim of the input and the outputs
+     */
+    public ByteBuffer[] getRawDataToSign(int index) {
+        int offset = offsets[index];
+        return new ByteBuffer[] {
+                slice(offset, hashLength(index) + Integer.SIZE / 8), getRawOutputsToSign() };
+    }
+
+    /**
+     * @return the encoding of the outputs, the same bytes as {@link
+     *         Transaction#getRawOutputsToSign()}, as a slice of the buffer
+     */
+    public ByteBuffer getRawOutputsToSign() {
+        int from = offsets[numInputs];
+        return slice(from, offsets[offsets.length - 1] - from);
+    }
+
+    /** @return the value in coins of output {@code index} */
+    public double getValue(int index) {
+        return buffer.getDouble(offsets[numInputs + index]);
+    }
+
+    /**
+     * @return the value of output {@code index} in base units, see {@link Amounts}
+     * @throws ArithmeticException if the value is out of range
+     */
+    public long getUnits(int index) {
+        return Amounts.toUnits(getValue(index));
+    }
+
+    /** @return the encoded address of output {@code index}, as a slice of the buffer */
+    public ByteBuffer getEncodedAddress(int index) {
+        return slice(offsets[numInputs + index] + Double.SIZE / 8, addressLength(index));
+    }
+
+    /**
+     * @return the raw transaction, the bytes of {@link Transaction#getRawTx()}, as a slice of the
+     *         buffer
+     */
+    public ByteBuffer getRawTx() {
+        int from = offsets[0];
+        return slice(from, offsets[offsets.length - 1] - from);
+    }
+
+    /**
+     * @return the SHA-256 digest of the raw transaction, equal to the hash {@link
+     *         Transaction#finalize()} computes for the transaction of this view. It is computed
+     *         once. The returned array is shared and must not be modified.
+     */
+    public byte[] getHash() {
+        byte[] h = hash;
+        if (h == null) {
+            try {
+                MessageDigest md = MessageDigest.getInstance("SHA-256");
+                md.update(getRawTx());
+                h = md.digest();
+            } catch (NoSuchAlgorithmException x) {
+                throw new IllegalStateException(x);
+            }
+            hash = h;
+        }
+        return h;
+    }
+
+    /**
+     * @return a new finalized transaction with the content of this view. Addresses are looked up
+     *         in the {@link AddressRegistry} by their encoding, so each registered key is decoded
+     *         once.
+     * @throws IllegalArgumentException if an address is not a valid encoded key
+     */
+    public Transaction toTransaction() {
+        Transaction tx = new Transaction();
+        for (int i = 0; i < numInputs; ++i) {
+            byte[] prevTxHash = null;
+            if (hasPrevTxHash(i)) {
+                prevTxHash = new byte[hashLength(i)];
+                getPrevTxHash(i).get(prevTxHash);
+            }
+            tx.addInput(prevTxHash, getOutputIndex(i));
+            if (hasSignature(i)) {
+                byte[] signature = new byte[signatureLength(i)];
+                getSignature(i).get(signature);
+                tx.addSignature(signature, i);
+            }
+        }
+        AddressRegistry registry = AddressRegistry.shared();
+        for (int j = 0; j < numOutputs; ++j) {
+            PublicKey address = addressLength(j) == 0
+                    ? null : registry.canonicalEncoded(getEncodedAddress(j));
+            tx.addOutput(getValue(j), address);
+        }
+        tx.finalize();
+        return tx;
+    }
+
+    private int hashLength(int input) {
+        return buffer.getShort(start + HEADER_SIZE + input * INPUT_LENGTHS_SIZE) & MAX_U16;
+    }
+
+    private int signatureLength(int input) {
+        return buffer.getShort(start + HEADER_SIZE + input * INPUT_LENGTHS_SIZE + 2) & MAX_U16;
+    }
+
+    private int addressLength(int output) {
+        return buffer.getShort(start + HEADER_SIZE + numInputs * INPUT_LENGTHS_SIZE
+                + output * OUTPUT_LENGTHS_SIZE) & MAX_U16;
+    }
+
+    /**
+     * @return a buffer over {@code length} bytes of the record from {@code offset}. It is not
+     *         read-only, since signature engines and digests only read array-backed buffers in
+     *         place, and must not be written to.
+     */
+    private ByteBuffer slice(int offset, int length) {
+        ByteBuffer b = buffer.duplicate();
+        b.limit(offset + length).position(offset);
+        return b;
+    }
+
+    private static IllegalArgumentException malformed(String reason) {
+        return new IllegalArgumentException("Malformed transaction: " + reason);
+    }
+}
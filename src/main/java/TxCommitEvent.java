@@ -0,0 +1,43 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event spanning the commit of one accepted transaction to a handler's pool.
+ * Disabled by default like {@link TxValidationEvent}.
+ */
+@Name("scroogecoin.TxCommit")
+@Label("Transaction Commit")
+@Category({ "Scrooge Coin", "Transactions" })
+@Description("Spending the inputs and adding the outputs of an accepted transaction")
+@Enabled(false)
+@StackTrace(false)
+class TxCommitEvent extends Event {
+
+    @Label("Handler")
+    String handler;
+
+    @Label("Epoch")
+    long epoch;
+
+    @Label("Transaction Hash")
+    String txHash;
+
+    @Label("Spent UTXOs")
+    int spent;
+
+    @Label("Created UTXOs")
+    int created;
+
+    void set(String handler, long epoch, Transaction tx) {
+        this.handler = handler;
+        this.epoch = epoch;
+        this.txHash = TxValidationEvent.hex(tx.getHash());
+        this.spent = tx.numInputs();
+        this.created = tx.numOutputs();
+    }
+}
@@ -1,9 +1,29 @@
-import java.util.Set;
-import java.util.HashSet;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 public class TxHandler {
+    private static final HandlerMetrics METRICS = new HandlerMetrics("txhandler");
+    /** Handler name of the Flight Recorder events */
+    private static final String EVENT_HANDLER = "TxHandler";
+
     private UTXOPool pool;
+    private SignatureVerifier verifier;
+    private TxValidator validator;
+    /** Size of {@code pool}, for {@link HandlerMetrics} */
+    private HandlerMetrics.PoolSize poolSize;
+    /** Executor running the parallel stages of each epoch, or null to run them sequentially */
+    private ExecutorService executor;
+    /** Id of the epoch being handled, see {@link EpochEvent}, or 0 between epochs */
+    private long epoch;
 
     /**
      * Creates a public ledger whose current UTXOPool (collection of unspent transaction outputs) is
@@ -11,7 +31,37 @@ public class TxHandler {
      * constructor.
      */
     public TxHandler(UTXOPool utxoPool) {
+        this(utxoPool, null);
+    }
+
+    /**
+     * Creates a public ledger like {@link #TxHandler(UTXOPool)} that verifies the input signatures
+     * of each epoch concurrently on {@code executor}. A null {@code executor} verifies them on the
+     * calling thread.
+     */
+    public TxHandler(UTXOPool utxoPool, ExecutorService executor) {
+        this(utxoPool, executor, SignatureCache.shared());
+    }
+
+    /**
+     * Creates a public ledger like {@link #TxHandler(UTXOPool, ExecutorService)} that remembers
+     * successful signature verifications in {@code cache}, so that transactions proposed again
+     * are not verified twice. A null {@code cache} disables caching.
+     */
+    public TxHandler(UTXOPool utxoPool, ExecutorService executor, SignatureCache cache) {
         pool = new UTXOPool(utxoPool);
+        verifier = new SignatureVerifier(executor, cache);
+        validator = new TxValidator(verifier);
+        this.executor = executor;
+        poolSize = METRICS.followPool(this, pool);
+    }
+
+    /**
+     * @return a copy of the current UTXO pool, which later epochs do not change. The copy is a
+     *         snapshot taking O(1), see {@link UTXOPool#UTXOPool(UTXOPool)}.
+     */
+    public UTXOPool getUTXOPool() {
+        return new UTXOPool(pool);
     }
 
     /**
@@ -22,83 +72,193 @@ public class TxHandler {
      * (4) all of {@code tx}s output values are non-negative, and
      * (5) the sum of {@code tx}s input values is greater than or equal to the sum of its output
      *     values; and false otherwise.
+     * The checks run from the cheapest to the most expensive, see {@link TxValidator}.
      */
     public boolean isValidTx(Transaction tx) {
-        // Check if all outputs claimed by {@code tx} are in the current UTXO pool
-        for (int i = 0; i < tx.numInputs(); ++i) {
-            Transaction.Input in = tx.getInput(i);
-            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
-            if (!pool.contains(utxo)) {
-                return false;
-            }
-        }
+        return isValidTx(pool, tx, null);
+    }
 
-        // Check if the signatures on each input of {@code tx} are valid
-        for (int i = 0; i < tx.numInputs(); ++i) {
-            byte[] data = tx.getRawDataToSign(i);
-            Transaction.Input in = tx.getInput(i);
-            if (in.signature == null) {
-                return false;
-            }
-            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
-            Transaction.Output out = pool.getTxOutput(utxo);
-            if (!Crypto.verifySignature(out.address, data, in.signature)) {
-                return false;
-            }
-        }
+    /**
+     * Same as {@link #isValidTx(Transaction)} for a transaction read from the wire, which is
+     * checked in place without building a {@link Transaction}.
+     */
+    public boolean isValidTx(TransactionView tx) {
+        long fee = validator.check(pool, tx);
+        METRICS.checked(fee);
+        return fee >= 0;
+    }
 
-        // No UTXO is claimed multiple times by {@code tx}
-        Set<Integer> hashCodes = new HashSet<Integer>();
-        for (int i = 0; i < tx.numInputs(); ++i) {
-            Transaction.Input in = tx.getInput(i);
-            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
-            if (hashCodes.contains(utxo.hashCode())) {
-                return false;
-            }
-            hashCodes.add(utxo.hashCode());
+    /**
+     * Checks each transaction of {@code txs} on its own against the current UTXO pool, as {@link
+     * #isValidTx(Transaction)} would, and tells why the invalid ones are rejected. The pool is not
+     * changed, so transactions spending each other's outputs are reported as {@link
+     * ValidationResult#MISSING_INPUT}.
+     *
+     * The checks that need no signature run first on the whole batch, and only the transactions
+     * passing them have their signatures verified, concurrently if the handler has an executor.
+     * See {@link TxValidator} for the order of the checks.
+     *
+     * @return an array {@code codes} where {@code codes[i]} is the {@link ValidationResult#code()}
+     *         of {@code txs[i]}, see {@link ValidationResult#of(byte)}
+     */
+    public byte[] validateTxs(Transaction[] txs) {
+        byte[] codes = new byte[txs.length];
+        boolean[] rejected = new boolean[txs.length];
+        for (int i = 0; i < txs.length; ++i) {
+            long fee = validator.checkStructure(pool, txs[i]);
+            rejected[i] = fee < 0;
+            codes[i] = rejected[i] ? (byte) -fee : ValidationResult.VALID.code();
         }
 
-        // All of {@code tx}s output values are non-negative
-        for (int i = 0; i < tx.numOutputs(); i++) {
-            Transaction.Output out = tx.getOutput(i);
-            if (out.value < 0) {
-                return false;
+        Boolean[][] verdicts = validator.verifySignatures(pool, txs, rejected);
+        for (int i = 0; i < txs.length; ++i) {
+            if (!rejected[i]) {
+                codes[i] = validator.checkSignatures(pool, txs[i], verdicts[i]).code();
             }
+            METRICS.checked(-codes[i]);
         }
+        return codes;
+    }
 
-        // the sum of {@code tx}s input values is greater than or equal to the
-        // sum of its output values; and false otherwise.
-        double outputSum = 0;
-        double inputSum = 0;
-        for (int i = 0; i < tx.numOutputs(); ++i) {
-            Transaction.Output out = tx.getOutput(i);
-            outputSum += out.value;
-        }
-        for (int i = 0; i < tx.numInputs(); ++i) {
-            Transaction.Input in = tx.getInput(i);
-            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
-            Transaction.Output out = pool.getTxOutput(utxo);
-            inputSum += out.value;
-        }
-        if (inputSum < outputSum) {
-            return false;
+    /**
+     * Same as {@link #validateTxs(Transaction[])} for transactions read from the wire, which are
+     * checked in place without building any {@link Transaction}. Signatures are verified on the
+     * calling thread, for the views passing the other checks.
+     */
+    public byte[] validateTxs(TransactionView[] txs) {
+        byte[] codes = new byte[txs.length];
+        for (int i = 0; i < txs.length; ++i) {
+            long fee = validator.checkStructure(pool, txs[i]);
+            codes[i] = fee < 0 ? (byte) -fee : validator.checkSignatures(pool, txs[i]).code();
+            METRICS.checked(-codes[i]);
         }
+        return codes;
+    }
 
-        return true;
+    /**
+     * Same as {@link #isValidTx(Transaction)} against {@code view} instead of the current pool,
+     * taking the signature verdicts computed up front by {@link SignatureVerifier#verify} for
+     * {@code tx}. Inputs without a verdict are verified here, once the cheaper checks passed.
+     */
+    private boolean isValidTx(UTXOPool view, Transaction tx, Boolean[] verdicts) {
+        TxValidationEvent event = new TxValidationEvent();
+        event.begin();
+        long fee = validator.check(view, tx, verdicts);
+        METRICS.checked(fee);
+        if (event.shouldCommit()) {
+            event.set(EVENT_HANDLER, epoch, tx, TxValidationEvent.ALL, fee);
+            event.commit();
+        }
+        return fee >= 0;
     }
 
     /**
      * Handles each epoch by receiving an unordered array of proposed transactions, checking each
      * transaction for correctness, returning a mutually valid array of accepted transactions, and
      * updating the current UTXO pool as appropriate.
+     *
+     * Signatures of inputs that claim outputs already in the pool are verified up front, possibly
+     * in parallel, since their verdict can not change while the epoch is processed. Transactions
+     * that are bound to be rejected by a cheaper check are left out of that verification. The remaining
+     * checks then run in dependency order: a transaction spending outputs of other transactions
+     * of the same epoch is checked once all of them have been accepted, independently of where it
+     * is in the array. Among transactions that are ready, array order decides which one goes
+     * first.
+     *
+     * With an executor, the epoch is split into groups of transactions that neither claim the
+     * same UTXO nor depend on each other. Groups are checked in parallel, each against its own
+     * view of the pool, and the accepted transactions are then committed in the order the
+     * sequential algorithm would have accepted them, so the result does not depend on the
+     * executor.
      */
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
+        long epochStart = METRICS.epoch.start();
+        EpochEvent epochEvent = new EpochEvent();
+        epochEvent.begin();
+        epoch = EpochEvent.nextEpoch();
         ArrayList<Transaction> transactions = new ArrayList<Transaction>();
 
+        // Spend graph of the epoch: children.get(p) lists, once per input, the transactions
+        // spending an output of transaction p, and pendingParents[c] counts the inputs of c
+        // whose producing transaction has not been accepted yet
+        HashMap<ByteBuffer, Integer> producers = new HashMap<ByteBuffer, Integer>();
+        for (int i = 0; i < possibleTxs.length; ++i) {
+            possibleTxs[i].finalize();
+            ByteBuffer hash = ByteBuffer.wrap(possibleTxs[i].getHash());
+            if (!producers.containsKey(hash)) {
+                producers.put(hash, i);
+            }
+        }
+        ArrayList<ArrayList<Integer>> children = new ArrayList<ArrayList<Integer>>();
+        int[] pendingParents = new int[possibleTxs.length];
+        // Transactions claiming an output that is neither in the pool nor produced in the epoch
+        boolean[] orphan = new boolean[possibleTxs.length];
+        for (int i = 0; i < possibleTxs.length; ++i) {
+            children.add(null);
+        }
+        for (int i = 0; i < possibleTxs.length; ++i) {
+            Transaction tx = possibleTxs[i];
+            for (int j = 0; j < tx.numInputs(); ++j) {
+                Transaction.Input in = tx.getInput(j);
+                if (in.prevTxHash != null && pool.contains(in.getUTXO())) {
+                    continue;
+                }
+                Integer parent = in.prevTxHash == null
+                        ? null : producers.get(ByteBuffer.wrap(in.prevTxHash));
+                if (parent == null || parent == i) {
+                    orphan[i] = true;
+                    continue;
+                }
+                if (children.get(parent) == null) {
+                    children.set(parent, new ArrayList<Integer>());
+                }
+                children.get(parent).add(i);
+                pendingParents[i]++;
+            }
+        }
+
+        // Transactions failing a check that does not depend on the rest of the epoch are rejected
+        // later without verifying any signature, so they are not verified up front either
+        long verifyStart = METRICS.verify.start();
+        SignatureBatchEvent verifyEvent = new SignatureBatchEvent();
+        verifyEvent.begin();
+        boolean[] rejected = new boolean[possibleTxs.length];
+        int skipped = 0;
         for (int i = 0; i < possibleTxs.length; ++i) {
-            if (isValidTx(possibleTxs[i])) {
+            long fee = validator.checkStructure(pool, possibleTxs[i]);
+            rejected[i] = orphan[i]
+                    || (fee < 0 && fee != -ValidationResult.MISSING_INPUT.code());
+            if (rejected[i]) {
+                skipped++;
+            }
+        }
+        Boolean[][] verdicts = validator.verifySignatures(pool, possibleTxs, rejected);
+        METRICS.verify.record(verifyStart);
+        if (verifyEvent.shouldCommit()) {
+            verifyEvent.handler = EVENT_HANDLER;
+            verifyEvent.epoch = epoch;
+            verifyEvent.verified = possibleTxs.length - skipped;
+            verifyEvent.skipped = skipped;
+            verifyEvent.commit();
+        }
+
+        long validateStart = METRICS.validate.start();
+        boolean[] accepted = new boolean[possibleTxs.length];
+        int[] order = null;
+        if (executor != null) {
+            order = processInParallel(possibleTxs, verdicts, children, pendingParents, accepted);
+        }
+        if (order == null) {
+            ArrayList<Integer> all = new ArrayList<Integer>();
+            for (int i = 0; i < possibleTxs.length; ++i) {
+                all.add(i);
+            }
+            order = process(pool, possibleTxs, verdicts, all, children, pendingParents, accepted);
+        }
+        METRICS.validate.record(validateStart);
+        for (int i : order) {
+            if (accepted[i]) {
                 transactions.add(possibleTxs[i]);
-                acceptTransaction(possibleTxs[i]);
             }
         }
 
@@ -106,25 +266,248 @@ public class TxHandler {
         for (int i = 0; i < transactions.size(); ++i) {
           _transactions[i] = transactions.get(i);
         }
+        // Transactions never checked were waiting for the outputs of rejected ones
+        METRICS.rejected(ValidationResult.MISSING_INPUT, possibleTxs.length - order.length);
+        METRICS.epochs.increment();
+        METRICS.proposed.add(possibleTxs.length);
+        METRICS.accepted.add(_transactions.length);
+        METRICS.epoch.record(epochStart);
+        if (epochEvent.shouldCommit()) {
+            epochEvent.handler = EVENT_HANDLER;
+            epochEvent.epoch = epoch;
+            epochEvent.proposed = possibleTxs.length;
+            epochEvent.accepted = _transactions.length;
+            epochEvent.commit();
+        }
+        epoch = 0;
         return _transactions;
     }
 
-    private void acceptTransaction(Transaction tx) {
-        tx.finalize();
+    /**
+     * Same as {@link #handleTxs(Transaction[])} for transactions read from the wire. Views
+     * failing a check that does not depend on the rest of the epoch (see {@link
+     * TxValidator#screen}) are rejected in place, and only the others are turned into {@link
+     * Transaction} objects and handled as the epoch.
+     */
+    public Transaction[] handleTxs(TransactionView[] possibleTxs) {
+        byte[] codes = validator.screen(pool, possibleTxs);
+        ArrayList<Transaction> candidates = new ArrayList<Transaction>();
+        for (int i = 0; i < possibleTxs.length; ++i) {
+            if (codes[i] == ValidationResult.VALID.code()) {
+                candidates.add(possibleTxs[i].toTransaction());
+            } else {
+                METRICS.rejected(ValidationResult.of(codes[i]), 1);
+            }
+        }
+        METRICS.proposed.add(possibleTxs.length - candidates.size());
+        return handleTxs(candidates.toArray(new Transaction[candidates.size()]));
+    }
 
-        // Remove used coins from UTXO
-        for (int i = 0; i < tx.numInputs(); ++i) {
-            Transaction.Input in = tx.getInput(i);
-            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
-            pool.removeUTXO(utxo);
+    /**
+     * Checks the transactions {@code members} of the epoch in dependency order against {@code
+     * view}, accepting the valid ones into {@code view} and flagging them in {@code accepted}.
+     * Children of rejected transactions are never ready and therefore rejected as well.
+     *
+     * @return the indexes of all transactions that were checked, in the order they were checked
+     */
+    private int[] process(UTXOPool view, Transaction[] txs, Boolean[][] verdicts,
+                          ArrayList<Integer> members, ArrayList<ArrayList<Integer>> children,
+                          int[] pendingParents, boolean[] accepted) {
+        int[] order = new int[members.size()];
+        int checked = 0;
+        PriorityQueue<Integer> ready = new PriorityQueue<Integer>();
+        for (int i : members) {
+            if (pendingParents[i] == 0) {
+                ready.add(i);
+            }
+        }
+        while (!ready.isEmpty()) {
+            int i = ready.poll();
+            order[checked++] = i;
+            if (!isValidTx(view, txs[i], verdicts[i]) || !acceptTransaction(view, txs[i])) {
+                continue;
+            }
+            accepted[i] = true;
+            if (children.get(i) != null) {
+                for (int child : children.get(i)) {
+                    if (--pendingParents[child] == 0) {
+                        ready.add(child);
+                    }
+                }
+            }
+        }
+        return Arrays.copyOf(order, checked);
+    }
+
+    /**
+     * Splits the epoch into groups of transactions linked by a shared claimed UTXO or a spend, and
+     * processes the groups in parallel against views of the pool. The accepted transactions are
+     * then committed to the pool in the order {@link #process} would have checked them when run
+     * on the whole epoch: within a group the order is the same, and across groups the sequential
+     * algorithm always picks the lowest index among the next transactions of each group. A
+     * concurrent pool is instead checked and changed by all groups directly, which leads to the
+     * same content since groups never touch the same UTXOs.
+     *
+     * @return the order in which the transactions were checked, or null if the epoch has to be
+     *         processed sequentially
+     */
+    private int[] processInParallel(final Transaction[] txs, final Boolean[][] verdicts,
+                                    final ArrayList<ArrayList<Integer>> children,
+                                    final int[] pendingParents, final boolean[] accepted) {
+        int[] group = new int[txs.length];
+        for (int i = 0; i < txs.length; ++i) {
+            group[i] = i;
+        }
+        HashMap<UTXO, Integer> claimants = new HashMap<UTXO, Integer>();
+        for (int i = 0; i < txs.length; ++i) {
+            for (int j = 0; j < txs[i].numInputs(); ++j) {
+                UTXO utxo = txs[i].getInput(j).getUTXO();
+                if (utxo == null) {
+                    continue;
+                }
+                Integer claimant = claimants.get(utxo);
+                if (claimant == null) {
+                    claimants.put(utxo, i);
+                } else {
+                    union(group, claimant, i);
+                }
+            }
+            if (children.get(i) != null) {
+                for (int child : children.get(i)) {
+                    union(group, i, child);
+                }
+            }
+        }
+        HashMap<Integer, ArrayList<Integer>> groups = new HashMap<Integer, ArrayList<Integer>>();
+        ArrayList<ArrayList<Integer>> members = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < txs.length; ++i) {
+            int root = find(group, i);
+            ArrayList<Integer> m = groups.get(root);
+            if (m == null) {
+                m = new ArrayList<Integer>();
+                groups.put(root, m);
+                members.add(m);
+            }
+            m.add(i);
+        }
+        if (members.size() < 2) {
+            return null;
         }
 
-        // Add outputs to UTXOPool
+        // Groups only touch disjoint parts of the pool and of these arrays. A concurrent pool is
+        // changed by all groups at once, any other pool through a view per group
+        final boolean shared = pool.isConcurrent();
+        List<Callable<int[]>> tasks = new ArrayList<Callable<int[]>>();
+        for (final ArrayList<Integer> m : members) {
+            final UTXOPool view = shared ? pool : pool.view();
+            tasks.add(new Callable<int[]>() {
+                @Override
+                public int[] call() {
+                    return process(view, txs, verdicts, m, children, pendingParents, accepted);
+                }
+            });
+        }
+        List<Future<int[]>> futures = new ArrayList<Future<int[]>>();
+        for (Callable<int[]> task : tasks) {
+            futures.add(executor.submit(task));
+        }
+        // Groups may already have committed to a concurrent pool, so every group has to finish
+        final int[][] orders = new int[members.size()][];
+        boolean interrupted = false;
+        for (int g = 0; g < orders.length; ++g) {
+            while (orders[g] == null) {
+                try {
+                    orders[g] = futures.get(g).get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Processing a group of transactions failed",
+                            e.getCause());
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Merge the orders of all groups, always taking the lowest next index
+        final int[] next = new int[orders.length];
+        PriorityQueue<Integer> heads = new PriorityQueue<Integer>(orders.length,
+                new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer g1, Integer g2) {
+                        return Integer.compare(orders[g1][next[g1]], orders[g2][next[g2]]);
+                    }
+                });
+        for (int g = 0; g < orders.length; ++g) {
+            if (orders[g].length > 0) {
+                heads.add(g);
+            }
+        }
+        int[] order = new int[txs.length];
+        int checked = 0;
+        while (!heads.isEmpty()) {
+            int g = heads.poll();
+            int i = orders[g][next[g]++];
+            order[checked++] = i;
+            if (accepted[i] && !shared) {
+                acceptTransaction(pool, txs[i]);
+            }
+            if (next[g] < orders[g].length) {
+                heads.add(g);
+            }
+        }
+        return Arrays.copyOf(order, checked);
+    }
+
+    private static int find(int[] group, int i) {
+        while (group[i] != i) {
+            group[i] = group[group[i]];
+            i = group[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] group, int a, int b) {
+        int ra = find(group, a);
+        int rb = find(group, b);
+        if (ra != rb) {
+            group[Math.max(ra, rb)] = Math.min(ra, rb);
+        }
+    }
+
+    /**
+     * Spends the inputs of {@code tx} and adds its outputs to {@code view}, as one atomic step if
+     * {@code view} is concurrent.
+     *
+     * @return false if an input of {@code tx} was no longer in {@code view}
+     */
+    private boolean acceptTransaction(UTXOPool view, Transaction tx) {
+        long start = METRICS.commit.start();
+        TxCommitEvent event = new TxCommitEvent();
+        event.begin();
+        tx.freeze();
+
+        ArrayList<UTXO> inputs = new ArrayList<UTXO>(tx.numInputs());
+        for (int i = 0; i < tx.numInputs(); ++i) {
+            inputs.add(tx.getInput(i).getUTXO());
+        }
+        HashMap<UTXO, Transaction.Output> outputs = new HashMap<UTXO, Transaction.Output>();
         for (int i = 0; i < tx.numOutputs(); ++i) {
-          Transaction.Output out = tx.getOutput(i);
-          UTXO utxo = new UTXO(tx.getHash(), i);
-          pool.addUTXO(utxo, out);
+            outputs.put(new UTXO(tx.getHash(), i), tx.getOutput(i));
+        }
+        if (!view.spendUTXOs(inputs, outputs)) {
+            return false;
         }
+        if (view == pool) {
+            METRICS.committed(tx, poolSize);
+            METRICS.commit.record(start);
+            if (event.shouldCommit()) {
+                event.set(EVENT_HANDLER, epoch, tx);
+                event.commit();
+            }
+        }
+        return true;
     }
 
 }
@@ -0,0 +1,75 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event spanning the validation of one transaction. Disabled by default given
+ * how many there are, enable it with {@code scroogecoin.TxValidation#enabled=true}.
+ */
+@Name("scroogecoin.TxValidation")
+@Label("Transaction Validation")
+@Category({ "Scrooge Coin", "Transactions" })
+@Description("Checks of one transaction, see TxValidator")
+@Enabled(false)
+@StackTrace(false)
+class TxValidationEvent extends Event {
+
+    /** {@link #stage} of a validation running every check */
+    static final String ALL = "all";
+    /** {@link #stage} of a validation running the checks without signatures */
+    static final String STRUCTURE = "structure";
+    /** {@link #stage} of a validation running the signature checks */
+    static final String SIGNATURES = "signatures";
+
+    @Label("Handler")
+    String handler;
+
+    @Label("Epoch")
+    @Description("Id of the epoch, 0 outside of handleTxs")
+    long epoch;
+
+    @Label("Transaction Hash")
+    String txHash;
+
+    @Label("Stage")
+    @Description("Checks that ran: all, structure or signatures")
+    String stage;
+
+    @Label("Inputs")
+    int inputs;
+
+    @Label("Outputs")
+    int outputs;
+
+    @Label("Result")
+    String result;
+
+    /** Sets the fields describing {@code tx} and {@code result}, a fee or minus a code */
+    void set(String handler, long epoch, Transaction tx, String stage, long result) {
+        this.handler = handler;
+        this.epoch = epoch;
+        this.txHash = hex(tx.getHash());
+        this.stage = stage;
+        this.inputs = tx.numInputs();
+        this.outputs = tx.numOutputs();
+        this.result = result >= 0 ? ValidationResult.VALID.name()
+                : ValidationResult.of((byte) -result).name();
+    }
+
+    /** @return {@code hash} in hexadecimal, or null */
+    static String hex(byte[] hash) {
+        if (hash == null) {
+            return null;
+        }
+        char[] digits = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; ++i) {
+            digits[2 * i] = Character.forDigit((hash[i] >> 4) & 0xf, 16);
+            digits[2 * i + 1] = Character.forDigit(hash[i] & 0xf, 16);
+        }
+        return new String(digits);
+    }
+}
@@ -0,0 +1,365 @@
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+
+/**
+ * The checks of {@link TxHandler#isValidTx(Transaction)}, ordered from the cheapest to the most
+ * expensive so that invalid transactions are rejected before any signature is verified:
+ * (1) output values are non-negative amounts, which only reads the transaction,
+ * (2) claimed outputs are in the pool, one lookup per input,
+ * (3) no output is claimed twice, compared exactly rather than by hash code,
+ * (4) input values cover output values, summed exactly in units (see {@link Amounts}),
+ * (5) for a {@link TransactionView}, output addresses are valid encoded keys, and
+ * (6) input signatures are present and valid.
+ * A transaction failing several checks is reported with the first one in that order.
+ *
+ * Checks 1 to 5 make up {@link #checkStructure}, which also yields the fee, and check 6 {@link
+ * #checkSignatures}. Results are returned as primitives: a fee, or minus the code of a {@link
+ * ValidationResult}.
+ *
+ * Every check also exists for a {@link TransactionView}, which is checked in place: fields are
+ * read from its buffer and signatures verified over slices of it, so that invalid transactions
+ * received on the wire are rejected without building any object for their inputs and outputs.
+ */
+public class TxValidator {
+
+    /** Inputs up to which duplicates are found by comparing pairs rather than with a set */
+    private static final int PAIRWISE_LIMIT = 8;
+
+    private final SignatureVerifier verifier;
+
+    /** Creates a validator verifying signatures with {@code verifier} */
+    public TxValidator(SignatureVerifier verifier) {
+        this.verifier = verifier;
+    }
+
+    /**
+     * Runs all checks of {@code tx} against {@code pool}, taking the signature verdicts computed
+     * up front by {@link SignatureVerifier#verify} for {@code tx}, if any.
+     *
+     * @return the fee of {@code tx} in units if it is valid, otherwise minus the code of the
+     *         {@link ValidationResult} of the first failed check
+     */
+    public long check(UTXOPool pool, Transaction tx, Boolean[] verdicts) {
+        long fee = checkStructure(pool, tx);
+        if (fee < 0) {
+            return fee;
+        }
+        ValidationResult result = checkSignatures(pool, tx, verdicts);
+        return result == ValidationResult.VALID ? fee : -result.code();
+    }
+
+    /** @return the {@link ValidationResult} of all checks of {@code tx} against {@code pool} */
+    public ValidationResult validate(UTXOPool pool, Transaction tx) {
+        long fee = check(pool, tx, null);
+        return fee >= 0 ? ValidationResult.VALID : ValidationResult.of((byte) -fee);
+    }
+
+    /**
+     * Runs the checks of {@code tx} against {@code pool} that need no signature verification.
+     *
+     * @return the fee of {@code tx} in units if they pass, otherwise minus the code of the {@link
+     *         ValidationResult} of the first failed check
+     */
+    public long checkStructure(UTXOPool pool, Transaction tx) {
+        int numInputs = tx.numInputs();
+        for (int i = 0; i < tx.numOutputs(); ++i) {
+            Transaction.Output out = tx.getOutput(i);
+            if (out.value < 0) {
+                return -ValidationResult.NEGATIVE_OUTPUT.code();
+            }
+            if (!out.isAmount()) {
+                return -ValidationResult.INVALID_AMOUNT.code();
+            }
+        }
+
+        Transaction.Output[] claimed = new Transaction.Output[numInputs];
+        for (int i = 0; i < numInputs; ++i) {
+            UTXO utxo = tx.getInput(i).getUTXO();
+            claimed[i] = utxo == null ? null : pool.getTxOutput(utxo);
+            if (claimed[i] == null) {
+                return -ValidationResult.MISSING_INPUT.code();
+            }
+        }
+
+        if (claimsTwice(tx)) {
+            return -ValidationResult.DOUBLE_CLAIM.code();
+        }
+
+        long inputSum = 0;
+        long outputSum = 0;
+        try {
+            for (int i = 0; i < numInputs; ++i) {
+                inputSum = Math.addExact(inputSum, claimed[i].getUnits());
+            }
+            for (int i = 0; i < tx.numOutputs(); ++i) {
+                outputSum = Math.addExact(outputSum, tx.getOutput(i).getUnits());
+            }
+        } catch (ArithmeticException e) {
+            return -ValidationResult.INSUFFICIENT_INPUTS.code();
+        }
+        if (inputSum < outputSum) {
+            return -ValidationResult.INSUFFICIENT_INPUTS.code();
+        }
+        return inputSum - outputSum;
+    }
+
+    /**
+     * Checks the input signatures of {@code tx}, whose claimed outputs must be in {@code pool}.
+     * Inputs with a verdict in {@code verdicts}, which may be null, are not verified again.
+     */
+    public ValidationResult checkSignatures(UTXOPool pool, Transaction tx, Boolean[] verdicts) {
+        byte[] rawOutputs = null;
+        for (int i = 0; i < tx.numInputs(); ++i) {
+            if (verdicts != null && verdicts[i] != null) {
+                if (!verdicts[i]) {
+                    return ValidationResult.BAD_SIGNATURE;
+                }
+                continue;
+            }
+            Transaction.Input in = tx.getInput(i);
+            if (in.signature == null) {
+                return ValidationResult.BAD_SIGNATURE;
+            }
+            // Every input signs the same encoding of the outputs, so it is only computed once
+            if (rawOutputs == null) {
+                rawOutputs = tx.getRawOutputsToSign();
+            }
+            byte[][] data = new byte[][] { tx.getRawInputToSign(i), rawOutputs };
+            Transaction.Output out = pool.getTxOutput(in.getUTXO());
+            if (!verifier.verifySignature(out.address, data, in.signature)) {
+                return ValidationResult.BAD_SIGNATURE;
+            }
+        }
+        return ValidationResult.VALID;
+    }
+
+    /**
+     * Verifies up front the signatures of the transactions of {@code txs} that are not flagged in
+     * {@code skip}, see {@link SignatureVerifier#verify}. Callers flag the transactions already
+     * known to be invalid, which then cost no signature verification at all.
+     *
+     * @return the verdicts of {@link SignatureVerifier#verify}, null for skipped transactions
+     */
+    public Boolean[][] verifySignatures(UTXOPool pool, Transaction[] txs, boolean[] skip) {
+        int[] survivors = new int[txs.length];
+        int numSurvivors = 0;
+        for (int i = 0; i < txs.length; ++i) {
+            if (!skip[i]) {
+                survivors[numSurvivors++] = i;
+            }
+        }
+        Transaction[] toVerify = new Transaction[numSurvivors];
+        for (int k = 0; k < numSurvivors; ++k) {
+            toVerify[k] = txs[survivors[k]];
+        }
+        Boolean[][] verified = verifier.verify(pool, toVerify);
+        Boolean[][] verdicts = new Boolean[txs.length][];
+        for (int k = 0; k < numSurvivors; ++k) {
+            verdicts[survivors[k]] = verified[k];
+        }
+        return verdicts;
+    }
+
+    /** Same as {@link #check(UTXOPool, Transaction, Boolean[])} for a view, without verdicts */
+    public long check(UTXOPool pool, TransactionView tx) {
+        long fee = checkStructure(pool, tx);
+        if (fee < 0) {
+            return fee;
+        }
+        ValidationResult result = checkSignatures(pool, tx);
+        return result == ValidationResult.VALID ? fee : -result.code();
+    }
+
+    /** Same as {@link #validate(UTXOPool, Transaction)} for a view */
+    public ValidationResult validate(UTXOPool pool, TransactionView tx) {
+        long fee = check(pool, tx);
+        return fee >= 0 ? ValidationResult.VALID : ValidationResult.of((byte) -fee);
+    }
+
+    /** Same as {@link #checkStructure(UTXOPool, Transaction)} for a view */
+    public long checkStructure(UTXOPool pool, TransactionView tx) {
+        int numInputs = tx.numInputs();
+        for (int i = 0; i < tx.numOutputs(); ++i) {
+            double value = tx.getValue(i);
+            if (value < 0) {
+                return -ValidationResult.NEGATIVE_OUTPUT.code();
+            }
+            if (!Amounts.isAmount(value)) {
+                return -ValidationResult.INVALID_AMOUNT.code();
+            }
+        }
+
+        Transaction.Output[] claimed = new Transaction.Output[numInputs];
+        for (int i = 0; i < numInputs; ++i) {
+            UTXO utxo = tx.getUTXO(i);
+            claimed[i] = utxo == null ? null : pool.getTxOutput(utxo);
+            if (claimed[i] == null) {
+                return -ValidationResult.MISSING_INPUT.code();
+            }
+        }
+
+        if (claimsTwice(tx)) {
+            return -ValidationResult.DOUBLE_CLAIM.code();
+        }
+
+        long inputSum = 0;
+        long outputSum = 0;
+        try {
+            for (int i = 0; i < numInputs; ++i) {
+                inputSum = Math.addExact(inputSum, claimed[i].getUnits());
+            }
+            for (int i = 0; i < tx.numOutputs(); ++i) {
+                outputSum = Math.addExact(outputSum, tx.getUnits(i));
+            }
+        } catch (ArithmeticException e) {
+            return -ValidationResult.INSUFFICIENT_INPUTS.code();
+        }
+        if (inputSum < outputSum) {
+            return -ValidationResult.INSUFFICIENT_INPUTS.code();
+        }
+        if (!hasValidAddresses(tx)) {
+            return -ValidationResult.INVALID_ADDRESS.code();
+        }
+        return inputSum - outputSum;
+    }
+
+    /**
+     * @return true if every output address of {@code tx} is a valid encoded key, so that {@link
+     *         TransactionView#toTransaction()} can not fail. Addresses are decoded through the
+     *         {@link AddressRegistry}, where that method finds them again.
+     */
+    private static boolean hasValidAddresses(TransactionView tx) {
+        AddressRegistry registry = AddressRegistry.shared();
+        for (int i = 0; i < tx.numOutputs(); ++i) {
+            ByteBuffer address = tx.getEncodedAddress(i);
+            if (address.hasRemaining()) {
+                try {
+                    registry.canonicalEncoded(address);
+                } catch (IllegalArgumentException e) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Same as {@link #checkSignatures(UTXOPool, Transaction, Boolean[])} for a view, verifying
+     * every input over slices of its buffer
+     */
+    public ValidationResult checkSignatures(UTXOPool pool, TransactionView tx) {
+        for (int i = 0; i < tx.numInputs(); ++i) {
+            if (!tx.hasSignature(i)) {
+                return ValidationResult.BAD_SIGNATURE;
+            }
+            Transaction.Output out = pool.getTxOutput(tx.getUTXO(i));
+            if (!verifier.verifySignature(out.address, tx.getRawDataToSign(i),
+                    tx.getSignature(i))) {
+                return ValidationResult.BAD_SIGNATURE;
+            }
+        }
+        return ValidationResult.VALID;
+    }
+
+    /**
+     * Runs the checks of each view of the epoch {@code txs} that do not depend on the other
+     * transactions of the epoch, against {@code pool}, and no signature check. A view claiming an
+     * output that is not in {@code pool} is only rejected if no view of {@code txs} has the hash
+     * of the claimed transaction, since it may spend an output created in the epoch.
+     *
+     * @return an array {@code codes} where {@code codes[i]} is {@link ValidationResult#VALID} if
+     *         {@code txs[i]} has to be checked together with its epoch, and otherwise the code of
+     *         the check it failed
+     */
+    public byte[] screen(UTXOPool pool, TransactionView[] txs) {
+        byte[] codes = new byte[txs.length];
+        boolean missing = false;
+        for (int i = 0; i < txs.length; ++i) {
+            long fee = checkStructure(pool, txs[i]);
+            codes[i] = fee < 0 ? (byte) -fee : ValidationResult.VALID.code();
+            missing |= fee == -ValidationResult.MISSING_INPUT.code();
+        }
+        if (!missing) {
+            return codes;
+        }
+        // Hashes are only computed when some view may spend outputs of the epoch
+        HashSet<ByteBuffer> produced = new HashSet<ByteBuffer>();
+        for (TransactionView tx : txs) {
+            produced.add(ByteBuffer.wrap(tx.getHash()));
+        }
+        for (int i = 0; i < txs.length; ++i) {
+            if (codes[i] == ValidationResult.MISSING_INPUT.code()
+                    && claimsFrom(pool, txs[i], produced)) {
+                // The structure check stopped before the addresses, which are checked here
+                codes[i] = hasValidAddresses(txs[i]) ? ValidationResult.VALID.code()
+                        : ValidationResult.INVALID_ADDRESS.code();
+            }
+        }
+        return codes;
+    }
+
+    /**
+     * @return true if every input of {@code tx} claims an output of {@code pool} or of a
+     *         transaction whose hash is in {@code produced}
+     */
+    private static boolean claimsFrom(UTXOPool pool, TransactionView tx,
+                                      HashSet<ByteBuffer> produced) {
+        for (int i = 0; i < tx.numInputs(); ++i) {
+            if (!tx.hasPrevTxHash(i)) {
+                return false;
+            }
+            if (!produced.contains(tx.getPrevTxHash(i)) && !pool.contains(tx.getUTXO(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** @return true if two inputs of {@code tx} claim the same output */
+    private static boolean claimsTwice(Transaction tx) {
+        int numInputs = tx.numInputs();
+        if (numInputs <= PAIRWISE_LIMIT) {
+            for (int i = 1; i < numInputs; ++i) {
+                UTXO utxo = tx.getInput(i).getUTXO();
+                for (int j = 0; j < i; ++j) {
+                    if (utxo.equals(tx.getInput(j).getUTXO())) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+        HashSet<UTXO> utxos = new HashSet<UTXO>();
+        for (int i = 0; i < numInputs; ++i) {
+            if (!utxos.add(tx.getInput(i).getUTXO())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Same as {@link #claimsTwice(Transaction)} for a view, comparing the claims of few inputs
+     * in place
+     */
+    private static boolean claimsTwice(TransactionView tx) {
+        int numInputs = tx.numInputs();
+        if (numInputs <= PAIRWISE_LIMIT) {
+            for (int i = 1; i < numInputs; ++i) {
+                for (int j = 0; j < i; ++j) {
+                    if (tx.claimsSame(i, j)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+        HashSet<UTXO> utxos = new HashSet<UTXO>();
+        for (int i = 0; i < numInputs; ++i) {
+            if (!utxos.add(tx.getUTXO(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -2,24 +2,68 @@ import java.util.Arrays;
 
 public class UTXO implements Comparable<UTXO> {
 
-    /** Hash of the transaction from which this UTXO originates */
-    private byte[] txHash;
+    /** Length of a SHA-256 transaction hash, which is stored as four words instead of an array */
+    static final int HASH_LENGTH = 32;
+
+    /** Big-endian words of a {@code HASH_LENGTH} byte transaction hash, zero otherwise */
+    final long h0, h1, h2, h3;
+
+    /**
+     * Hash of the transaction from which this UTXO originates if it is not {@code HASH_LENGTH}
+     * bytes long, null otherwise
+     */
+    private final byte[] txHash;
 
     /** Index of the corresponding output in said transaction */
-    private int index;
+    private final int index;
+
+    /** Precomputed hash code */
+    private final int hash;
 
     /**
      * Creates a new UTXO corresponding to the output with index <index> in the transaction whose
      * hash is {@code txHash}
      */
     public UTXO(byte[] txHash, int index) {
-        this.txHash = Arrays.copyOf(txHash, txHash.length);
+        if (txHash.length == HASH_LENGTH) {
+            this.h0 = word(txHash, 0);
+            this.h1 = word(txHash, 8);
+            this.h2 = word(txHash, 16);
+            this.h3 = word(txHash, 24);
+            this.txHash = null;
+        } else {
+            this.h0 = this.h1 = this.h2 = this.h3 = 0;
+            this.txHash = Arrays.copyOf(txHash, txHash.length);
+        }
+        this.index = index;
+        this.hash = computeHash();
+    }
+
+    /**
+     * Creates a new UTXO corresponding to the output with index <index> in the transaction whose
+     * {@code HASH_LENGTH} byte hash consists of the big-endian words {@code h0} to {@code h3}
+     */
+    UTXO(long h0, long h1, long h2, long h3, int index) {
+        this.h0 = h0;
+        this.h1 = h1;
+        this.h2 = h2;
+        this.h3 = h3;
+        this.txHash = null;
         this.index = index;
+        this.hash = computeHash();
     }
 
     /** @return the transaction hash of this UTXO */
     public byte[] getTxHash() {
-        return txHash;
+        if (txHash != null) {
+            return txHash;
+        }
+        byte[] h = new byte[HASH_LENGTH];
+        putWord(h, 0, h0);
+        putWord(h, 8, h1);
+        putWord(h, 16, h2);
+        putWord(h, 24, h3);
+        return h;
     }
 
     /** @return the index of this UTXO */
@@ -27,6 +71,11 @@ public class UTXO implements Comparable<UTXO> {
         return index;
     }
 
+    /** @return true if the transaction hash is {@code HASH_LENGTH} bytes, stored in {@code h0..h3} */
+    boolean hasWordHash() {
+        return txHash == null;
+    }
+
     /**
      * Compares this UTXO to the one specified by {@code other}, considering them equal if they have
      * {@code txHash} arrays with equal contents and equal {@code index} values
@@ -40,37 +89,41 @@ public class UTXO implements Comparable<UTXO> {
         }
 
         UTXO utxo = (UTXO) other;
-        byte[] hash = utxo.txHash;
-        int in = utxo.index;
-        if (hash.length != txHash.length || index != in)
+        if (hash != utxo.hash || index != utxo.index)
             return false;
-        for (int i = 0; i < hash.length; i++) {
-            if (hash[i] != txHash[i])
-                return false;
-        }
-        return true;
+        if (txHash == null)
+            return utxo.txHash == null
+                    && h0 == utxo.h0 && h1 == utxo.h1 && h2 == utxo.h2 && h3 == utxo.h3;
+        return Arrays.equals(txHash, utxo.txHash);
     }
 
     /**
-     * Simple implementation of a UTXO hashCode that respects equality of UTXOs // (i.e.
-     * utxo1.equals(utxo2) => utxo1.hashCode() == utxo2.hashCode())
+     * Precomputed UTXO hashCode that respects equality of UTXOs (i.e. utxo1.equals(utxo2) =>
+     * utxo1.hashCode() == utxo2.hashCode())
      */
     public int hashCode() {
-        int hash = 1;
-        hash = hash * 17 + index;
-        hash = hash * 31 + Arrays.hashCode(txHash);
         return hash;
     }
 
     /** Compares this UTXO to the one specified by {@code utxo} */
     public int compareTo(UTXO utxo) {
-        byte[] hash = utxo.txHash;
         int in = utxo.index;
         if (in > index)
             return -1;
         else if (in < index)
             return 1;
-        else {
+        else if (txHash == null && utxo.txHash == null) {
+            int c = compareWords(h0, utxo.h0);
+            if (c == 0)
+                c = compareWords(h1, utxo.h1);
+            if (c == 0)
+                c = compareWords(h2, utxo.h2);
+            if (c == 0)
+                c = compareWords(h3, utxo.h3);
+            return c;
+        } else {
+            byte[] hash = utxo.getTxHash();
+            byte[] txHash = getTxHash();
             int len1 = txHash.length;
             int len2 = hash.length;
             if (len2 > len1)
@@ -88,4 +141,44 @@ public class UTXO implements Comparable<UTXO> {
             }
         }
     }
+
+    private int computeHash() {
+        long h;
+        if (txHash == null) {
+            h = h0 ^ Long.rotateLeft(h1, 16) ^ Long.rotateLeft(h2, 32) ^ Long.rotateLeft(h3, 48);
+        } else {
+            h = Arrays.hashCode(txHash);
+        }
+        h ^= index * 0x9E3779B97F4A7C15L;
+        // Finalizer of MurmurHash3, spreads every input bit over the whole word
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    /** Compares two words holding 8 hash bytes each, byte by byte as signed values */
+    private static int compareWords(long a, long b) {
+        long diff = a ^ b;
+        if (diff == 0)
+            return 0;
+        int shift = 56 - (Long.numberOfLeadingZeros(diff) & ~7);
+        return (byte) (a >>> shift) < (byte) (b >>> shift) ? -1 : 1;
+    }
+
+    static long word(byte[] b, int offset) {
+        long w = 0;
+        for (int i = 0; i < 8; i++)
+            w = (w << 8) | (b[offset + i] & 0xff);
+        return w;
+    }
+
+    static void putWord(byte[] b, int offset, long w) {
+        for (int i = 7; i >= 0; i--) {
+            b[offset + i] = (byte) w;
+            w >>>= 8;
+        }
+    }
 }
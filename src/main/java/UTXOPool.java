@@ -1,32 +1,90 @@
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Set;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
 
+/**
+ * The set of unspent transaction outputs. Pools are not thread-safe, unless they are backed by a
+ * {@link ConcurrentUTXOStore}: such a pool may be read and changed by several threads at once,
+ * and its {@link #removeUTXOs} and {@link #spendUTXOs} are atomic. A pool that is not concurrent
+ * and its copies, see {@link #UTXOPool(UTXOPool)}, share state and must be confined to a single
+ * thread together.
+ */
 public class UTXOPool {
 
+    /** Copies, views, copy-on-write hand-overs to snapshots and materialized snapshots */
+    private static final Counter COPIES = Metrics.registry().counter("utxopool.copies");
+    private static final Counter VIEWS = Metrics.registry().counter("utxopool.views");
+    private static final Counter PRESERVED = Metrics.registry().counter("utxopool.preserved");
+    private static final Counter MATERIALIZED =
+            Metrics.registry().counter("utxopool.materialized");
+
     /**
      * The current collection of UTXOs, with each one mapped to its corresponding transaction output
      */
-    private HashMap<UTXO, Transaction.Output> H;
+    private UTXOStore store;
+
+    /** Registered snapshots up to which no cleared reference is expunged on registration */
+    private static final int MIN_EXPUNGE_AT = 16;
+
+    /** Live snapshots sharing {@code store}, which have to be told before it is changed */
+    private ArrayList<WeakReference<OverlayUTXOStore>> snapshots;
+    /** Number of registered snapshots at which the next registration expunges dead ones */
+    private int expungeAt = MIN_EXPUNGE_AT;
 
     /** Creates a new empty UTXOPool */
     public UTXOPool() {
-        H = new HashMap<UTXO, Transaction.Output>();
+        this(new HashMapUTXOStore());
     }
 
-    /** Creates a new UTXOPool that is a copy of {@code uPool} */
+    /**
+     * Creates a new UTXOPool that is a copy of {@code uPool}. The copy is a copy-on-write snapshot
+     * that shares the content of {@code uPool}, so it takes O(1) regardless of the size of {@code
+     * uPool}. Both pools can be changed independently afterwards.
+     *
+     * The copy stays tied to {@code uPool}: each change of {@code uPool} first writes the previous
+     * state of the UTXO into every copy, until a copy diverged far enough to get a store of its
+     * own. A pool and its copies are therefore not independent across threads. They must be used
+     * by one thread at a time, as if they were a single pool, or be copied from a concurrent pool.
+     *
+     * A copy of a concurrent pool is a full copy, which is concurrent as well, since snapshots
+     * rely on being told about every change of {@code uPool} before it happens.
+     */
     public UTXOPool(UTXOPool uPool) {
-        H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+        COPIES.increment();
+        snapshots = new ArrayList<WeakReference<OverlayUTXOStore>>();
+        if (uPool.isConcurrent()) {
+            store = uPool.store.copy();
+        } else if (uPool.store instanceof OverlayUTXOStore) {
+            store = uPool.store.copy();
+        } else {
+            store = new OverlayUTXOStore(uPool, uPool.store);
+        }
+    }
+
+    /**
+     * Creates a new UTXOPool backed by {@code store}. The pool takes ownership of {@code store},
+     * which must not be used directly afterwards.
+     */
+    public UTXOPool(UTXOStore store) {
+        this.store = store;
+        snapshots = new ArrayList<WeakReference<OverlayUTXOStore>>();
     }
 
     /** Adds a mapping from UTXO {@code utxo} to transaction output @code{txOut} to the pool */
     public void addUTXO(UTXO utxo, Transaction.Output txOut) {
-        H.put(utxo, txOut);
+        beforeChange(utxo);
+        store.put(utxo, txOut);
+        afterChange();
     }
 
     /** Removes the UTXO {@code utxo} from the pool */
     public void removeUTXO(UTXO utxo) {
-        H.remove(utxo);
+        beforeChange(utxo);
+        store.remove(utxo);
+        afterChange();
     }
 
     /**
@@ -34,21 +92,139 @@ public class UTXOPool {
      *         not in the pool.
      */
     public Transaction.Output getTxOutput(UTXO ut) {
-        return H.get(ut);
+        return store.get(ut);
     }
 
     /** @return true if UTXO {@code utxo} is in the pool and false otherwise */
     public boolean contains(UTXO utxo) {
-        return H.containsKey(utxo);
+        return store.contains(utxo);
     }
 
     /** Returns an {@code ArrayList} of all UTXOs in the pool */
     public ArrayList<UTXO> getAllUTXO() {
-        Set<UTXO> setUTXO = H.keySet();
-        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>();
-        for (UTXO ut : setUTXO) {
-            allUTXO.add(ut);
+        return store.keys();
+    }
+
+    /** @return the number of UTXOs in the pool */
+    public int size() {
+        return store.size();
+    }
+
+    /**
+     * Removes all of {@code utxos} if each of them is in the pool and listed once, and does nothing
+     * otherwise. The removal is atomic if the pool is concurrent.
+     *
+     * @return true if the UTXOs were removed
+     */
+    public boolean removeUTXOs(Collection<UTXO> utxos) {
+        return spendUTXOs(utxos, null);
+    }
+
+    /**
+     * Removes all of {@code inputs} and adds all mappings of {@code outputs}, if each of {@code
+     * inputs} is in the pool and listed once, and does nothing otherwise. The change is atomic if
+     * the pool is concurrent.
+     *
+     * @param outputs the mappings to add, or null to only remove {@code inputs}
+     * @return true if the pool was changed
+     */
+    public boolean spendUTXOs(Collection<UTXO> inputs, Map<UTXO, Transaction.Output> outputs) {
+        if (isConcurrent()) {
+            return ((ConcurrentUTXOStore) store).spend(inputs, outputs);
+        }
+        for (UTXO utxo : inputs) {
+            if (!store.contains(utxo)) {
+                return false;
+            }
+        }
+        if (new HashSet<UTXO>(inputs).size() != inputs.size()) {
+            return false;
+        }
+        for (UTXO utxo : inputs) {
+            removeUTXO(utxo);
+        }
+        if (outputs != null) {
+            for (Map.Entry<UTXO, Transaction.Output> entry : outputs.entrySet()) {
+                addUTXO(entry.getKey(), entry.getValue());
+            }
+        }
+        return true;
+    }
+
+    /** @return true if the pool may be used by several threads at once */
+    boolean isConcurrent() {
+        return store instanceof ConcurrentUTXOStore;
+    }
+
+    /**
+     * @return a pool that starts with the content of this one and records its own changes without
+     *         affecting this pool. Unlike a copy, the view is not told about changes to this pool,
+     *         so this pool must not change while the view is in use. Any number of views may be
+     *         read and changed concurrently, each by a single thread, as long as this pool does
+     *         not change.
+     */
+    UTXOPool view() {
+        VIEWS.increment();
+        return new UTXOPool(new OverlayUTXOStore(null, store));
+    }
+
+    /**
+     * Registers {@code snapshot} as sharing the store of this pool. Snapshots that were garbage
+     * collected or detached are otherwise only dropped when the pool changes, so a pool copied
+     * over and over without changing expunges them whenever the registered snapshots doubled
+     * since the last time, which keeps registering O(1) amortized.
+     */
+    void register(OverlayUTXOStore snapshot) {
+        if (snapshots.size() >= expungeAt) {
+            expungeSnapshots();
+            expungeAt = Math.max(MIN_EXPUNGE_AT, 2 * snapshots.size());
+        }
+        snapshots.add(new WeakReference<OverlayUTXOStore>(snapshot));
+    }
+
+    /** @return the number of registered snapshots, including some that may no longer be live */
+    int numSnapshots() {
+        return snapshots.size();
+    }
+
+    /** Drops the snapshots that were garbage collected or detached, in one pass */
+    private void expungeSnapshots() {
+        int live = 0;
+        for (int i = 0; i < snapshots.size(); ++i) {
+            WeakReference<OverlayUTXOStore> reference = snapshots.get(i);
+            OverlayUTXOStore snapshot = reference.get();
+            if (snapshot != null && !snapshot.isDetached()) {
+                snapshots.set(live++, reference);
+            }
+        }
+        snapshots.subList(live, snapshots.size()).clear();
+    }
+
+    /** Hands the current state of {@code utxo} over to every snapshot still sharing the store */
+    private void beforeChange(UTXO utxo) {
+        if (snapshots.isEmpty()) {
+            return;
+        }
+        Iterator<WeakReference<OverlayUTXOStore>> it = snapshots.iterator();
+        while (it.hasNext()) {
+            OverlayUTXOStore snapshot = it.next().get();
+            if (snapshot == null || snapshot.isDetached()) {
+                it.remove();
+            } else {
+                snapshot.preserve(utxo);
+                PRESERVED.increment();
+            }
+        }
+    }
+
+    /** Turns this pool's snapshot into a store of its own once it diverged far enough */
+    private void afterChange() {
+        if (store instanceof OverlayUTXOStore) {
+            OverlayUTXOStore snapshot = (OverlayUTXOStore) store;
+            if (snapshot.shouldMaterialize()) {
+                store = snapshot.materialize();
+                MATERIALIZED.increment();
+            }
         }
-        return allUTXO;
     }
 }
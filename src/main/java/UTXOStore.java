@@ -0,0 +1,29 @@
+import java.util.ArrayList;
+
+/**
+ * Storage of the mapping from UTXOs to transaction outputs behind a {@link UTXOPool}. Unless
+ * stated otherwise by an implementation, stores are not thread-safe.
+ */
+public interface UTXOStore {
+
+    /** Adds a mapping from UTXO {@code utxo} to transaction output {@code txOut} */
+    void put(UTXO utxo, Transaction.Output txOut);
+
+    /** Removes the mapping of UTXO {@code utxo}, if any */
+    void remove(UTXO utxo);
+
+    /** @return the transaction output mapped to {@code utxo}, or null if there is none */
+    Transaction.Output get(UTXO utxo);
+
+    /** @return true if {@code utxo} is mapped to a transaction output */
+    boolean contains(UTXO utxo);
+
+    /** @return all UTXOs of the store, in no particular order */
+    ArrayList<UTXO> keys();
+
+    /** @return the number of UTXOs in the store */
+    int size();
+
+    /** @return an independent store with the same mappings */
+    UTXOStore copy();
+}
@@ -0,0 +1,47 @@
+/**
+ * Outcome of checking a transaction, see {@link TxValidator}. Each result has a stable one-byte
+ * code for compact batch results.
+ */
+public enum ValidationResult {
+    /** the transaction is valid */
+    VALID(0),
+    /** an output claimed by an input is not in the pool */
+    MISSING_INPUT(1),
+    /** an input signature is missing or does not verify */
+    BAD_SIGNATURE(2),
+    /** the same output is claimed by more than one input */
+    DOUBLE_CLAIM(3),
+    /** an output value is negative */
+    NEGATIVE_OUTPUT(4),
+    /** the output values exceed the input values, or a sum is out of range */
+    INSUFFICIENT_INPUTS(5),
+    /** an output address read from the wire is not a valid encoded key */
+    INVALID_ADDRESS(6),
+    /** an output value is not a whole number of base units or is out of range */
+    INVALID_AMOUNT(7);
+
+    private static final ValidationResult[] BY_CODE = new ValidationResult[values().length];
+    static {
+        for (ValidationResult result : values()) {
+            BY_CODE[result.code] = result;
+        }
+    }
+
+    private final byte code;
+
+    ValidationResult(int code) {
+        this.code = (byte) code;
+    }
+
+    public byte code() {
+        return code;
+    }
+
+    /** @return the result of code {@code code} */
+    public static ValidationResult of(byte code) {
+        if (code < 0 || code >= BY_CODE.length) {
+            throw new IllegalArgumentException("Unknown validation code " + code);
+        }
+        return BY_CODE[code];
+    }
+}
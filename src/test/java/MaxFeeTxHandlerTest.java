@@ -2,6 +2,7 @@ import org.junit.Test;
 import org.junit.BeforeClass;
 import org.junit.Assert;
 
+import java.nio.ByteBuffer;
 import java.security.KeyPair;
 import java.security.SecureRandom;
 import java.security.PrivateKey;
@@ -422,6 +423,154 @@ public class MaxFeeTxHandlerTest {
     }
 
 
+    @Test public void testHandleTxs_Views() {
+        UTXOPool pool = new UTXOPool();
+
+        Transaction transaction0 = new Transaction();
+        transaction0.addInput(null, 0);
+        transaction0.addOutput(100.0, publicKeys[0]);
+        transaction0.addOutput(100.0, publicKeys[0]);
+        transaction0.finalize();
+        pool.addUTXO(new UTXO(transaction0.getHash(), 0), transaction0.getOutput(0));
+        pool.addUTXO(new UTXO(transaction0.getHash(), 1), transaction0.getOutput(1));
+
+        MaxFeeTxHandler txHandler = new MaxFeeTxHandler(pool);
+
+        // t1 and t3 conflict, t3 pays the higher fee, and t4 is rejected without being decoded
+        Transaction t1 = new Transaction();
+        t1.addInput(transaction0.getHash(), 0);
+        t1.addOutput(92.0, publicKeys[1]);
+        signInput(t1.getInput(0), t1.getRawDataToSign(0), privateKeys[0]);
+
+        Transaction t2 = new Transaction();
+        t2.addInput(transaction0.getHash(), 1);
+        t2.addOutput(95.0, publicKeys[1]);
+        signInput(t2.getInput(0), t2.getRawDataToSign(0), privateKeys[0]);
+
+        Transaction t3 = new Transaction();
+        t3.addInput(transaction0.getHash(), 0);
+        t3.addOutput(86.0, publicKeys[1]);
+        signInput(t3.getInput(0), t3.getRawDataToSign(0), privateKeys[0]);
+
+        Transaction t4 = new Transaction();
+        t4.addInput(transaction0.getHash(), 1);
+        t4.addOutput(-1.0, publicKeys[1]);
+        signInput(t4.getInput(0), t4.getRawDataToSign(0), privateKeys[0]);
+
+        Transaction[] txs = new Transaction[] { t1, t2, t3, t4 };
+        ByteBuffer buf = ByteBuffer.allocate(4 * 1024);
+        for (Transaction tx : txs) {
+            tx.writeWire(buf);
+        }
+        buf.flip();
+        TransactionView[] views = new TransactionView[txs.length];
+        for (int i = 0; i < txs.length; ++i) {
+            views[i] = TransactionView.read(buf);
+        }
+        Assert.assertTrue(txHandler.isValidTx(views[0]));
+        Assert.assertFalse(txHandler.isValidTx(views[3]));
+
+        Transaction[] accepted = txHandler.handleTxs(views);
+        Assert.assertEquals(2, accepted.length);
+        Assert.assertArrayEquals(views[2].getHash(), accepted[0].getHash());
+        Assert.assertArrayEquals(views[1].getHash(), accepted[1].getHash());
+    }
+
+    @Test public void testHandleTxs_CheapParentRichChild() {
+        UTXOPool pool = new UTXOPool();
+
+        Transaction transaction0 = new Transaction();
+        transaction0.addInput(null, 0);
+        transaction0.addOutput(100.0, publicKeys[0]);
+        transaction0.finalize();
+        pool.addUTXO(new UTXO(transaction0.getHash(), 0), transaction0.getOutput(0));
+
+        MaxFeeTxHandler txHandler = new MaxFeeTxHandler(pool);
+
+        // parent (fee 1) and competitor (fee 10) conflict, but child (fee 30) needs parent
+        Transaction parent = new Transaction();
+        parent.addInput(transaction0.getHash(), 0);
+        parent.addOutput(99.0, publicKeys[1]);
+        signInput(parent.getInput(0), parent.getRawDataToSign(0), privateKeys[0]);
+        parent.finalize();
+
+        Transaction competitor = new Transaction();
+        competitor.addInput(transaction0.getHash(), 0);
+        competitor.addOutput(90.0, publicKeys[1]);
+        signInput(competitor.getInput(0), competitor.getRawDataToSign(0), privateKeys[0]);
+
+        Transaction child = new Transaction();
+        child.addInput(parent.getHash(), 0);
+        child.addOutput(69.0, publicKeys[0]);
+        signInput(child.getInput(0), child.getRawDataToSign(0), privateKeys[1]);
+
+        Transaction[] txs = new Transaction[] { child, competitor, parent };
+        Transaction[] etxs = new Transaction[] { parent, child };
+
+        Assert.assertArrayEquals(etxs, txHandler.handleTxs(txs));
+    }
+
+    @Test public void testFeeSelectors() {
+        // a is dense but blocks b, which pays more in total; c is independent
+        long[] fees = new long[] { 10, 50, 5 };
+        int[] sizes = new int[] { 1, 100, 10 };
+        int[][] parents = new int[][] { {}, {}, {} };
+        int[][] claims = new int[][] { { 0 }, { 0, 1 }, { 2 } };
+        FeeSelectionProblem problem = new FeeSelectionProblem(fees, sizes, parents, claims);
+        Assert.assertArrayEquals(new int[] { 1, 0, 2 }, problem.byDecreasingFee());
+        Assert.assertArrayEquals(new int[] { 0, 1, 2 }, problem.byDecreasingFeeRate());
+
+        boolean[] heuristic = new AncestorPackageFeeSelector().select(problem);
+        Assert.assertTrue(problem.isValid(heuristic));
+        Assert.assertEquals(15, problem.totalFee(heuristic));
+
+        boolean[] exact = new BranchAndBoundFeeSelector().select(problem);
+        Assert.assertTrue(problem.isValid(exact));
+        Assert.assertEquals(55, problem.totalFee(exact));
+
+        // Without any budget the heuristic's selection is kept
+        boolean[] rushed = new BranchAndBoundFeeSelector(new AncestorPackageFeeSelector(), 24, 0)
+                .select(problem);
+        Assert.assertTrue(problem.isValid(rushed));
+
+        Assert.assertEquals(2, problem.components().length);
+    }
+
+    @Test(timeout = 5000) public void testFeeSelectorsDeepChain() {
+        // Each candidate spends the output of the previous one and pays more than it
+        int n = 20000;
+        long[] fees = new long[n];
+        int[] sizes = new int[n];
+        int[][] parents = new int[n][];
+        int[][] claims = new int[n][];
+        for (int i = 0; i < n; ++i) {
+            fees[i] = i;
+            sizes[i] = 1;
+            parents[i] = i == 0 ? new int[0] : new int[] { i - 1 };
+            claims[i] = new int[] { i };
+        }
+        FeeSelectionProblem problem = new FeeSelectionProblem(fees, sizes, parents, claims);
+        long total = (long) n * (n - 1) / 2;
+
+        // Packages are capped, so the chain is selected a few packages at a time
+        boolean[] heuristic = new AncestorPackageFeeSelector().select(problem);
+        Assert.assertTrue(problem.isValid(heuristic));
+        Assert.assertEquals(total, problem.totalFee(heuristic));
+
+        boolean[] exact = new BranchAndBoundFeeSelector().select(problem);
+        Assert.assertTrue(problem.isValid(exact));
+        Assert.assertEquals(total, problem.totalFee(exact));
+
+        // A candidate behind more ancestors than the cap is selected once they have been
+        long[] tailFees = new long[] { 0, 0, 0, 100 };
+        int[][] tailParents = new int[][] { {}, { 0 }, { 1 }, { 2 } };
+        FeeSelectionProblem tail = new FeeSelectionProblem(tailFees, new int[] { 1, 1, 1, 1 },
+                tailParents, new int[][] { { 0 }, { 1 }, { 2 }, { 3 } });
+        boolean[] capped = new AncestorPackageFeeSelector(2).select(tail);
+        Assert.assertTrue(tail.isValid(capped));
+        Assert.assertEquals(100, tail.totalFee(capped));
+    }
+
     private void signInput(Transaction.Input input, byte[] rawData, PrivateKey privKey) {
         Signature sig = null;
         byte[] signatureBytes = null;
@@ -0,0 +1,171 @@
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Assert;
+
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+
+public class MempoolTest {
+    private static final int NUM_KEYS = 2;
+
+    private static PublicKey[] publicKeys;
+    private static PrivateKey[] privateKeys;
+
+    private UTXOPool pool;
+    private Transaction parent;
+    private Transaction child;
+    private Transaction competitor;
+
+    @BeforeClass public static void beforeClass() throws NoSuchAlgorithmException {
+        publicKeys = new PublicKey[NUM_KEYS];
+        privateKeys = new PrivateKey[NUM_KEYS];
+
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(512);
+
+        for (int i = 0; i < NUM_KEYS; ++i) {
+            KeyPair pair = keyGen.generateKeyPair();
+            publicKeys[i] = pair.getPublic();
+            privateKeys[i] = pair.getPrivate();
+        }
+    }
+
+    /**
+     * One UTXO in the pool, spent by both parent (fee 1) and competitor (fee 10), and child (fee
+     * 30) spending the output of parent
+     */
+    @Before public void before() {
+        pool = new UTXOPool();
+        Transaction transaction0 = new Transaction();
+        transaction0.addInput(null, 0);
+        transaction0.addOutput(100.0, publicKeys[0]);
+        transaction0.finalize();
+        pool.addUTXO(new UTXO(transaction0.getHash(), 0), transaction0.getOutput(0));
+
+        parent = new Transaction();
+        parent.addInput(transaction0.getHash(), 0);
+        parent.addOutput(99.0, publicKeys[1]);
+        signInput(parent.getInput(0), parent.getRawDataToSign(0), privateKeys[0]);
+        parent.finalize();
+
+        competitor = new Transaction();
+        competitor.addInput(transaction0.getHash(), 0);
+        competitor.addOutput(90.0, publicKeys[1]);
+        signInput(competitor.getInput(0), competitor.getRawDataToSign(0), privateKeys[0]);
+        competitor.finalize();
+
+        child = new Transaction();
+        child.addInput(parent.getHash(), 0);
+        child.addOutput(69.0, publicKeys[0]);
+        signInput(child.getInput(0), child.getRawDataToSign(0), privateKeys[1]);
+        child.finalize();
+    }
+
+    @Test public void testAdd() {
+        Mempool mempool = new Mempool(pool);
+
+        // The child is an orphan until its parent is pending
+        Assert.assertFalse(mempool.add(child));
+        Assert.assertTrue(mempool.add(parent));
+        Assert.assertTrue(mempool.add(child));
+        Assert.assertTrue(mempool.add(competitor));
+        Assert.assertFalse(mempool.add(parent));
+        Assert.assertEquals(3, mempool.size());
+        Assert.assertTrue(parent.isFrozen());
+
+        Transaction badSignature = new Transaction();
+        badSignature.addInput(parent.getHash(), 0);
+        badSignature.addOutput(1.0, publicKeys[0]);
+        signInput(badSignature.getInput(0), badSignature.getRawDataToSign(0), privateKeys[0]);
+        Assert.assertFalse(mempool.add(badSignature));
+    }
+
+    @Test public void testValidate() {
+        Mempool mempool = new Mempool(pool);
+        Assert.assertEquals(ValidationResult.MISSING_INPUT, mempool.validate(child));
+        mempool.add(parent);
+        Assert.assertEquals(ValidationResult.VALID, mempool.validate(child));
+        Assert.assertEquals(1, mempool.size());
+
+        // Outputs of pending transactions are checked like those of the pool
+        Transaction greedy = new Transaction();
+        greedy.addInput(parent.getHash(), 0);
+        greedy.addOutput(100.0, publicKeys[0]);
+        signInput(greedy.getInput(0), greedy.getRawDataToSign(0), privateKeys[1]);
+        Assert.assertEquals(ValidationResult.INSUFFICIENT_INPUTS, mempool.validate(greedy));
+        Assert.assertFalse(mempool.add(greedy));
+
+        Transaction twice = new Transaction();
+        twice.addInput(parent.getHash(), 0);
+        twice.addInput(parent.getHash(), 0);
+        twice.addOutput(1.0, publicKeys[0]);
+        Assert.assertEquals(ValidationResult.DOUBLE_CLAIM, mempool.validate(twice));
+    }
+
+    @Test(expected = IllegalStateException.class) public void testAcceptOutOfSync() {
+        Mempool mempool = new Mempool(pool);
+        mempool.removeAccepted(new Transaction[] { parent });
+        // The output of transaction0 is spent, so the mempool can not follow a competitor
+        mempool.removeAccepted(new Transaction[] { competitor });
+    }
+
+    @Test public void testAssembleAndAccept() {
+        Mempool mempool = new Mempool(pool);
+        mempool.add(competitor);
+        mempool.add(parent);
+        mempool.add(child);
+
+        // The child pulls its parent in, which leaves no room for the competitor
+        Transaction[] epoch = mempool.assemble(10);
+        Assert.assertArrayEquals(new Transaction[] { parent, child }, epoch);
+
+        // A package larger than the epoch is skipped
+        Assert.assertArrayEquals(new Transaction[] { competitor }, mempool.assemble(1));
+
+        TxHandler txHandler = new TxHandler(pool);
+        Transaction[] accepted = txHandler.handleTxs(epoch);
+        Assert.assertArrayEquals(epoch, accepted);
+        mempool.removeAccepted(accepted);
+        Assert.assertEquals(0, mempool.size());
+        Assert.assertFalse(mempool.contains(competitor.getHash()));
+
+        // The mempool follows the pool of the handler
+        Transaction next = new Transaction();
+        next.addInput(child.getHash(), 0);
+        next.addOutput(60.0, publicKeys[1]);
+        signInput(next.getInput(0), next.getRawDataToSign(0), privateKeys[0]);
+        Assert.assertTrue(mempool.add(next));
+        Assert.assertArrayEquals(new Transaction[] { next },
+                txHandler.handleTxs(mempool.assemble(10)));
+    }
+
+    @Test public void testConflictEvictsDescendants() {
+        Mempool mempool = new Mempool(pool);
+        mempool.add(parent);
+        mempool.add(child);
+        mempool.add(competitor);
+
+        mempool.removeAccepted(new Transaction[] { competitor });
+        Assert.assertEquals(0, mempool.size());
+        Assert.assertFalse(mempool.contains(parent.getHash()));
+        Assert.assertFalse(mempool.contains(child.getHash()));
+    }
+
+    private void signInput(Transaction.Input input, byte[] rawData, PrivateKey privKey) {
+        try {
+            Signature sig = Signature.getInstance("SHA256withRSA");
+            sig.initSign(privKey);
+            sig.update(rawData);
+            input.addSignature(sig.sign());
+        } catch (NoSuchAlgorithmException | InvalidKeyException | SignatureException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,266 @@
+import org.junit.Test;
+import org.junit.BeforeClass;
+import org.junit.Assert;
+import org.junit.Assume;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+public class MetricsTest {
+    private static PublicKey publicKey;
+    private static PrivateKey privateKey;
+
+    @BeforeClass public static void beforeClass() throws NoSuchAlgorithmException {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(512);
+        KeyPair pair = keyGen.generateKeyPair();
+        publicKey = pair.getPublic();
+        privateKey = pair.getPrivate();
+    }
+
+    @Test public void testLatencyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(0, histogram.percentile(0.5));
+
+        Random random = new Random(1);
+        long[] values = new long[10000];
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = (long) Math.exp(random.nextDouble() * 30);
+            histogram.recordNanos(values[i]);
+        }
+        Arrays.sort(values);
+        Assert.assertEquals(values.length, histogram.count());
+        Assert.assertEquals(values[values.length - 1], histogram.max());
+        for (double p : new double[] { 0.01, 0.5, 0.9, 0.99, 0.999 }) {
+            long exact = values[(int) Math.ceil(p * values.length) - 1];
+            long estimate = histogram.percentile(p);
+            Assert.assertTrue(estimate >= exact);
+            Assert.assertTrue(estimate <= exact + exact / 16 + 1);
+        }
+
+        // Buckets cover every duration, each one ending right before the next one starts
+        for (long nanos : new long[] { 0, 1, 31, 32, 33, 1000, 123456789, Long.MAX_VALUE }) {
+            int b = LatencyHistogram.bucket(nanos);
+            Assert.assertTrue(nanos <= LatencyHistogram.highest(b));
+            Assert.assertTrue(b == 0 || nanos > LatencyHistogram.highest(b - 1));
+        }
+    }
+
+    @Test public void testRegistry() throws JMException {
+        SimpleMetricsRegistry registry = new SimpleMetricsRegistry();
+        Counter counter = registry.counter("test.counter");
+        Assert.assertSame(counter, registry.counter("test.counter"));
+        counter.add(3);
+        counter.increment();
+        Assert.assertEquals(Long.valueOf(4), registry.counts().get("test.counter"));
+        Assert.assertSame(registry.latency("test.latency"), registry.latency("test.latency"));
+
+        registry.gauge("test.gauge", constant(1));
+        registry.gauge("test.gauge", constant(2));
+        Assert.assertEquals(2, registry.gaugeValue("test.gauge"));
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        JmxMetricsRegistry jmx = new JmxMetricsRegistry(server);
+        jmx.counter("metricstest.counter").add(5);
+        jmx.latency("metricstest.latency").recordNanos(2000000);
+        jmx.gauge("metricstest.gauge", constant(7));
+        Assert.assertEquals(5L, server.getAttribute(
+                JmxMetricsRegistry.objectName("Counter", "metricstest.counter"), "Count"));
+        Assert.assertEquals(1L, server.getAttribute(
+                JmxMetricsRegistry.objectName("Latency", "metricstest.latency"), "Count"));
+        Assert.assertEquals(7L, server.getAttribute(
+                JmxMetricsRegistry.objectName("Gauge", "metricstest.gauge"), "Value"));
+
+        Assert.assertEquals(0, Metrics.NOOP.counter("test.counter").sum());
+        Assert.assertEquals(0, Metrics.NOOP.latency("test.latency").start());
+    }
+
+    @Test public void testHandlerMetrics() throws SignatureException, InvalidKeyException,
+            NoSuchAlgorithmException {
+        Assume.assumeTrue(Metrics.registry() instanceof SimpleMetricsRegistry);
+        MetricsRegistry registry = Metrics.registry();
+        Counter accepted = registry.counter("txhandler.txs.accepted");
+        Counter badSignature = registry.counter("txhandler.txs.rejected.bad_signature");
+        Counter negative = registry.counter("txhandler.txs.rejected.negative_output");
+        LatencyRecorder epoch = registry.latency("txhandler.latency.epoch");
+        LatencyRecorder commit = registry.latency("txhandler.latency.commit");
+        long acceptedBefore = accepted.sum();
+        long badSignatureBefore = badSignature.sum();
+        long negativeBefore = negative.sum();
+        long epochsBefore = epoch.count();
+        long commitsBefore = commit.count();
+
+        Transaction transaction0 = new Transaction();
+        transaction0.addInput(null, 0);
+        transaction0.addOutput(10.0, publicKey);
+        transaction0.addOutput(10.0, publicKey);
+        transaction0.finalize();
+        UTXOPool pool = new UTXOPool();
+        pool.addUTXO(new UTXO(transaction0.getHash(), 0), transaction0.getOutput(0));
+        pool.addUTXO(new UTXO(transaction0.getHash(), 1), transaction0.getOutput(1));
+
+        Transaction valid = new Transaction();
+        valid.addInput(transaction0.getHash(), 0);
+        valid.addOutput(5.0, publicKey);
+        valid.addSignature(sign(valid.getRawDataToSign(0)), 0);
+
+        Transaction unsigned = new Transaction();
+        unsigned.addInput(transaction0.getHash(), 1);
+        unsigned.addOutput(5.0, publicKey);
+
+        Transaction negativeOutput = new Transaction();
+        negativeOutput.addInput(transaction0.getHash(), 1);
+        negativeOutput.addOutput(-5.0, publicKey);
+        negativeOutput.addSignature(sign(negativeOutput.getRawDataToSign(0)), 0);
+
+        TxHandler handler = new TxHandler(pool, null, null);
+        handler.handleTxs(new Transaction[] { valid, unsigned, negativeOutput });
+
+        Assert.assertEquals(acceptedBefore + 1, accepted.sum());
+        Assert.assertEquals(badSignatureBefore + 1, badSignature.sum());
+        Assert.assertEquals(negativeBefore + 1, negative.sum());
+        Assert.assertEquals(epochsBefore + 1, epoch.count());
+        Assert.assertEquals(commitsBefore + 1, commit.count());
+    }
+
+    @Test public void testPoolSizeGauge() throws JMException, InterruptedException {
+        Assume.assumeTrue(Metrics.isEnabled());
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        HandlerMetrics metrics = new HandlerMetrics("metricstest.handler",
+                new JmxMetricsRegistry(server));
+
+        Transaction transaction0 = new Transaction();
+        transaction0.addInput(null, 0);
+        transaction0.addOutput(10.0, publicKey);
+        transaction0.addOutput(10.0, publicKey);
+        transaction0.finalize();
+        UTXOPool pool = new UTXOPool();
+        pool.addUTXO(new UTXO(transaction0.getHash(), 0), transaction0.getOutput(0));
+
+        // Each handler has its own gauge, following the transactions it commits
+        Object first = new Object();
+        Object second = new Object();
+        HandlerMetrics.PoolSize firstSize = metrics.followPool(first, pool);
+        HandlerMetrics.PoolSize secondSize = metrics.followPool(second, new UTXOPool());
+        Assert.assertNotEquals(firstSize.name, secondSize.name);
+        metrics.committed(transaction0, firstSize);
+        Assert.assertEquals(2L, server.getAttribute(
+                JmxMetricsRegistry.objectName("Gauge", firstSize.name), "Value"));
+        Assert.assertEquals(0L, server.getAttribute(
+                JmxMetricsRegistry.objectName("Gauge", secondSize.name), "Value"));
+
+        // The gauge of a collected handler is removed when a later one is created
+        first = null;
+        ObjectName firstName = JmxMetricsRegistry.objectName("Gauge", firstSize.name);
+        for (int i = 0; i < 100 && server.isRegistered(firstName); ++i) {
+            System.gc();
+            Thread.sleep(10);
+            metrics.followPool(new Object(), pool);
+        }
+        Assert.assertNull(firstSize.get());
+        Assert.assertFalse(server.isRegistered(firstName));
+        Assert.assertTrue(server.isRegistered(
+                JmxMetricsRegistry.objectName("Gauge", secondSize.name)));
+        Assert.assertSame(second, secondSize.get());
+    }
+
+    @Test public void testFlightRecorderEvents() throws IOException, SignatureException,
+            InvalidKeyException, NoSuchAlgorithmException {
+        Transaction transaction0 = new Transaction();
+        transaction0.addInput(null, 0);
+        transaction0.addOutput(10.0, publicKey);
+        transaction0.finalize();
+        UTXOPool pool = new UTXOPool();
+        pool.addUTXO(new UTXO(transaction0.getHash(), 0), transaction0.getOutput(0));
+
+        Transaction valid = new Transaction();
+        valid.addInput(transaction0.getHash(), 0);
+        valid.addOutput(5.0, publicKey);
+        valid.addSignature(sign(valid.getRawDataToSign(0)), 0);
+
+        Transaction missing = new Transaction();
+        missing.addInput(valid.getHash(), 1);
+        missing.addOutput(5.0, publicKey);
+
+        Path file = Files.createTempFile("scrooge", ".jfr");
+        Recording recording = new Recording();
+        try {
+            recording.enable("scroogecoin.Epoch");
+            recording.enable("scroogecoin.TxValidation");
+            recording.enable("scroogecoin.TxCommit");
+            recording.start();
+            new TxHandler(pool, null, null).handleTxs(new Transaction[] { valid, missing });
+            recording.stop();
+            recording.dump(file);
+
+            List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+            RecordedEvent epoch = find(events, "scroogecoin.Epoch");
+            Assert.assertEquals("TxHandler", epoch.getString("handler"));
+            Assert.assertEquals(2, epoch.getInt("proposed"));
+            Assert.assertEquals(1, epoch.getInt("accepted"));
+            RecordedEvent commit = find(events, "scroogecoin.TxCommit");
+            Assert.assertEquals(epoch.getLong("epoch"), commit.getLong("epoch"));
+            Assert.assertEquals(TxValidationEvent.hex(valid.getHash()), commit.getString("txHash"));
+            int validations = 0;
+            for (RecordedEvent event : events) {
+                if (event.getEventType().getName().equals("scroogecoin.TxValidation")) {
+                    validations++;
+                    Assert.assertEquals(epoch.getLong("epoch"), event.getLong("epoch"));
+                    Assert.assertEquals(event.getString("txHash").equals(commit.getString("txHash"))
+                            ? "VALID" : "MISSING_INPUT", event.getString("result"));
+                }
+            }
+            Assert.assertEquals(2, validations);
+        } finally {
+            recording.close();
+            Files.delete(file);
+        }
+    }
+
+    private static RecordedEvent find(List<RecordedEvent> events, String name) {
+        for (RecordedEvent event : events) {
+            if (event.getEventType().getName().equals(name)) {
+                return event;
+            }
+        }
+        throw new AssertionError("No " + name + " event");
+    }
+
+    private static byte[] sign(byte[] data) throws NoSuchAlgorithmException, InvalidKeyException,
+            SignatureException {
+        Signature sig = Signature.getInstance("SHA256withRSA");
+        sig.initSign(privateKey);
+        sig.update(data);
+        return sig.sign();
+    }
+
+    private static Gauge constant(final long value) {
+        return new Gauge() {
+            @Override
+            public long value() {
+                return value;
+            }
+        };
+    }
+}
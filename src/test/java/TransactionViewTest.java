@@ -0,0 +1,175 @@
+import org.junit.Test;
+import org.junit.BeforeClass;
+import org.junit.Assert;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.Arrays;
+
+public class TransactionViewTest {
+    private static PublicKey[] publicKeys;
+
+    @BeforeClass public static void beforeClass() throws NoSuchAlgorithmException {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(512);
+        publicKeys = new PublicKey[2];
+        for (int i = 0; i < publicKeys.length; ++i) {
+            KeyPair pair = keyGen.generateKeyPair();
+            publicKeys[i] = pair.getPublic();
+        }
+    }
+
+    @Test public void testRoundTrip() {
+        Transaction transaction0 = new Transaction();
+        transaction0.addInput(null, 0);
+        transaction0.addOutput(10.0, publicKeys[0]);
+        transaction0.finalize();
+
+        Transaction tx = new Transaction();
+        tx.addInput(transaction0.getHash(), 0);
+        tx.addInput(new byte[] { 1, 2, 3 }, 7);
+        tx.addInput(null, 3);
+        tx.addSignature(new byte[] { 9, 8, 7, 6 }, 0);
+        tx.addOutput(2.5, publicKeys[0]);
+        tx.addOutput(-1.0, publicKeys[1]);
+        tx.finalize();
+
+        // The record starts after other data, in a little-endian buffer, and is followed by more
+        ByteBuffer buf = ByteBuffer.allocate(tx.wireSize() + 16);
+        buf.putInt(42);
+        tx.writeWire(buf);
+        buf.putInt(43);
+        buf.flip();
+        buf.getInt();
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        TransactionView view = TransactionView.read(buf);
+        Assert.assertEquals(4 + tx.wireSize(), buf.position());
+        Assert.assertEquals(tx.wireSize(), view.wireSize());
+
+        Assert.assertEquals(3, view.numInputs());
+        Assert.assertEquals(2, view.numOutputs());
+        Assert.assertEquals(new UTXO(transaction0.getHash(), 0), view.getUTXO(0));
+        Assert.assertEquals(new UTXO(new byte[] { 1, 2, 3 }, 7), view.getUTXO(1));
+        Assert.assertNull(view.getUTXO(2));
+        Assert.assertEquals(3, view.getOutputIndex(2));
+        Assert.assertTrue(view.hasSignature(0));
+        Assert.assertFalse(view.hasSignature(1));
+        Assert.assertEquals(ByteBuffer.wrap(new byte[] { 9, 8, 7, 6 }), view.getSignature(0));
+        Assert.assertEquals(2.5, view.getValue(0), 0);
+        Assert.assertEquals(-100000000L, view.getUnits(1));
+        Assert.assertEquals(ByteBuffer.wrap(publicKeys[1].getEncoded()), view.getEncodedAddress(1));
+
+        Assert.assertEquals(ByteBuffer.wrap(tx.getRawTx()), view.getRawTx());
+        Assert.assertArrayEquals(tx.getHash(), view.getHash());
+        for (int i = 0; i < tx.numInputs(); ++i) {
+            ByteBuffer[] parts = view.getRawDataToSign(i);
+            ByteBuffer data = ByteBuffer.allocate(tx.rawDataToSignSize(i));
+            for (ByteBuffer part : parts) {
+                data.put(part);
+            }
+            Assert.assertArrayEquals(tx.getRawDataToSign(i), data.array());
+        }
+
+        Transaction copy = view.toTransaction();
+        Assert.assertArrayEquals(tx.getHash(), copy.getHash());
+        Assert.assertNull(copy.getInput(2).prevTxHash);
+        Assert.assertNull(copy.getInput(1).signature);
+        Assert.assertEquals(publicKeys[1], copy.getOutput(1).address);
+
+        // Slices and the buffer have positions of their own
+        Assert.assertEquals(4, view.getSignature(0).remaining());
+        Assert.assertEquals(43, buf.order(ByteOrder.BIG_ENDIAN).getInt());
+    }
+
+    @Test public void testClaimsSame() {
+        byte[] hash = new byte[32];
+        Arrays.fill(hash, (byte) 5);
+        byte[] other = hash.clone();
+        other[31] = 6;
+
+        Transaction tx = new Transaction();
+        tx.addInput(hash, 0);
+        tx.addInput(hash, 1);
+        tx.addInput(other, 0);
+        tx.addInput(hash, 0);
+        tx.addInput(null, 0);
+        tx.addInput(null, 0);
+        tx.addOutput(1.0, publicKeys[0]);
+        TransactionView view = read(tx);
+
+        Assert.assertTrue(view.claimsSame(0, 3));
+        Assert.assertFalse(view.claimsSame(0, 1));
+        Assert.assertFalse(view.claimsSame(0, 2));
+        Assert.assertFalse(view.claimsSame(4, 5));
+    }
+
+    @Test public void testMalformed() {
+        Transaction tx = new Transaction();
+        tx.addInput(new byte[32], 0);
+        tx.addSignature(new byte[] { 1 }, 0);
+        tx.addOutput(1.0, publicKeys[0]);
+        ByteBuffer buf = ByteBuffer.allocate(tx.wireSize());
+        tx.writeWire(buf);
+        byte[] record = buf.array();
+
+        // Truncated record
+        assertMalformed(Arrays.copyOf(record, record.length - 1));
+        assertMalformed(Arrays.copyOf(record, 6));
+
+        // Field lengths that do not add up to the length of the record
+        byte[] longer = record.clone();
+        longer[TransactionView.HEADER_SIZE + 3] = 2;
+        assertMalformed(longer);
+
+        // Negative record length
+        byte[] negative = record.clone();
+        negative[0] = (byte) 0x80;
+        assertMalformed(negative);
+
+        // Field lengths whose int sum would wrap around to exactly the end of the record
+        int numInputs = TransactionView.MAX_U16;
+        int extra = 16;
+        int table = TransactionView.HEADER_SIZE + numInputs * TransactionView.INPUT_LENGTHS_SIZE;
+        long lengths = (1L << 32) + extra - (long) numInputs * (Integer.SIZE / 8);
+        ByteBuffer wrapping = ByteBuffer.allocate(table + extra);
+        wrapping.putInt(table + extra - Integer.SIZE / 8);
+        wrapping.putShort((short) numInputs);
+        wrapping.putShort((short) 0);
+        for (int i = 0; i < numInputs; ++i) {
+            long pair = lengths / numInputs + (i < lengths % numInputs ? 1 : 0);
+            int hashLength = (int) Math.min(pair, TransactionView.MAX_U16);
+            wrapping.putShort((short) hashLength);
+            wrapping.putShort((short) (pair - hashLength));
+        }
+        assertMalformed(wrapping.array());
+
+        // A malformed record does not move the position
+        ByteBuffer truncated = ByteBuffer.wrap(Arrays.copyOf(record, record.length - 1));
+        try {
+            TransactionView.read(truncated);
+            Assert.fail("Malformed record was read");
+        } catch (IllegalArgumentException e) {
+            Assert.assertEquals(0, truncated.position());
+        }
+    }
+
+    private static TransactionView read(Transaction tx) {
+        ByteBuffer buf = ByteBuffer.allocate(tx.wireSize());
+        tx.writeWire(buf);
+        buf.flip();
+        return TransactionView.read(buf);
+    }
+
+    private static void assertMalformed(byte[] record) {
+        try {
+            TransactionView.read(ByteBuffer.wrap(record));
+            Assert.fail("Malformed record was read");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
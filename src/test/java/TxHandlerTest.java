@@ -2,6 +2,7 @@ import org.junit.Test;
 import org.junit.BeforeClass;
 import org.junit.Assert;
 
+import java.nio.ByteBuffer;
 import java.security.KeyPair;
 import java.security.SecureRandom;
 import java.security.PrivateKey;
@@ -13,6 +14,13 @@ import java.security.Security;
 import java.security.Signature;
 import java.security.InvalidKeyException;
 import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
@@ -422,6 +430,530 @@ public class TxHandlerTest {
     }
 
 
+    @Test public void testHandleTxs_ParallelVerification() {
+        // Initialize pool with two UTXOs that belong to address0 / scrooge {@code publicKeys[0]}
+        UTXOPool pool = new UTXOPool();
+
+        Transaction transaction0 = new Transaction();
+        transaction0.addInput(null, 0);
+        transaction0.addOutput(100.0, publicKeys[0]);
+        transaction0.addOutput(100.0, publicKeys[0]);
+        transaction0.finalize();
+
+        pool.addUTXO(new UTXO(transaction0.getHash(), 0), transaction0.getOutput(0));
+        pool.addUTXO(new UTXO(transaction0.getHash(), 1), transaction0.getOutput(1));
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        TxHandler txHandler = new TxHandler(pool, executor);
+
+        // t1 is signed by scrooge, t2 is signed by address1 and has to be rejected
+        Transaction t1 = new Transaction();
+        t1.addInput(transaction0.getHash(), 0);
+        t1.addOutput(90.0, publicKeys[1]);
+        signInput(t1.getInput(0), t1.getRawDataToSign(0), privateKeys[0]);
+
+        Transaction t2 = new Transaction();
+        t2.addInput(transaction0.getHash(), 1);
+        t2.addOutput(90.0, publicKeys[1]);
+        signInput(t2.getInput(0), t2.getRawDataToSign(0), privateKeys[1]);
+
+        // t3 spends the output of t1 which only enters the pool during the epoch
+        t1.finalize();
+        Transaction t3 = new Transaction();
+        t3.addInput(t1.getHash(), 0);
+        t3.addOutput(80.0, publicKeys[0]);
+        signInput(t3.getInput(0), t3.getRawDataToSign(0), privateKeys[1]);
+
+        Transaction[] txs = new Transaction[] { t1, t2, t3 };
+        Transaction[] etxs = new Transaction[] { t1, t3 };
+
+        try {
+            Assert.assertArrayEquals(etxs, txHandler.handleTxs(txs));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test public void testIsValidTx_SignatureCache() {
+        UTXOPool pool = new UTXOPool();
+
+        Transaction transaction0 = new Transaction();
+        transaction0.addInput(null, 0);
+        transaction0.addOutput(100.0, publicKeys[0]);
+        transaction0.finalize();
+        pool.addUTXO(new UTXO(transaction0.getHash(), 0), transaction0.getOutput(0));
+
+        SignatureCache cache = new SignatureCache(1024);
+        TxHandler txHandler = new TxHandler(pool, null, cache);
+
+        Transaction transaction = new Transaction();
+        transaction.addInput(transaction0.getHash(), 0);
+        transaction.addOutput(1.0, publicKeys[1]);
+        signInput(transaction.getInput(0), transaction.getRawDataToSign(0), privateKeys[0]);
+
+        // The first check verifies the signature, the second one is answered by the cache
+        Assert.assertEquals(true, txHandler.isValidTx(transaction));
+        Assert.assertEquals(true, txHandler.isValidTx(transaction));
+        Assert.assertEquals(1, cache.misses());
+        Assert.assertEquals(1, cache.hits());
+        Assert.assertEquals(1, cache.size());
+
+        // Invalid signatures are never remembered
+        signInput(transaction.getInput(0), transaction.getRawDataToSign(0), privateKeys[1]);
+        Assert.assertEquals(false, txHandler.isValidTx(transaction));
+        Assert.assertEquals(false, txHandler.isValidTx(transaction));
+        Assert.assertEquals(3, cache.misses());
+        Assert.assertEquals(1, cache.size());
+    }
+
+    @Test public void testIsValidTx_OutputWithoutAddress() {
+        UTXOPool pool = new UTXOPool();
+
+        Transaction transaction0 = new Transaction();
+        transaction0.addInput(null, 0);
+        transaction0.addOutput(100.0, publicKeys[0]);
+        transaction0.finalize();
+        pool.addUTXO(new UTXO(transaction0.getHash(), 0), new Transaction.Output(100.0, null));
+
+        Transaction transaction = new Transaction();
+        transaction.addInput(transaction0.getHash(), 0);
+        transaction.addOutput(1.0, publicKeys[1]);
+        signInput(transaction.getInput(0), transaction.getRawDataToSign(0), privateKeys[0]);
+        Transaction[] txs = new Transaction[] { transaction };
+
+        // Nobody can sign for an output without an address, and the shared cache is not consulted
+        long misses = SignatureCache.shared().misses();
+        Assert.assertEquals(false, new TxHandler(pool).isValidTx(transaction));
+        Assert.assertEquals(0, new TxHandler(pool).handleTxs(txs).length);
+        Assert.assertEquals(false, new MaxFeeTxHandler(pool).isValidTx(transaction));
+        Assert.assertEquals(0, new MaxFeeTxHandler(pool).handleTxs(txs).length);
+        Assert.assertEquals(misses, SignatureCache.shared().misses());
+    }
+
+    @Test public void testHandleTxs_FreezesAcceptedTransactions() {
+        UTXOPool pool = new UTXOPool();
+
+        Transaction transaction0 = new Transaction();
+        transaction0.addInput(null, 0);
+        transaction0.addOutput(100.0, publicKeys[0]);
+        transaction0.finalize();
+        pool.addUTXO(new UTXO(transaction0.getHash(), 0), transaction0.getOutput(0));
+
+        TxHandler txHandler = new TxHandler(pool);
+
+        Transaction transaction = new Transaction();
+        transaction.addInput(transaction0.getHash(), 0);
+        transaction.addOutput(100.0, publicKeys[1]);
+        transaction.finalize();
+        byte[] unsignedHash = transaction.getHash();
+
+        // Signing a finalized transaction changes its hash
+        signInput(transaction.getInput(0), transaction.getRawDataToSign(0), privateKeys[0]);
+        Assert.assertFalse(Arrays.equals(unsignedHash, transaction.getHash()));
+
+        Transaction[] txs = new Transaction[] { transaction };
+        Assert.assertArrayEquals(txs, txHandler.handleTxs(txs));
+        Assert.assertTrue(transaction.isFrozen());
+
+        try {
+            transaction.addOutput(1.0, publicKeys[0]);
+            Assert.fail("accepted transactions can not be changed");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test public void testHandleTxs_ChildBeforeParent() {
+        UTXOPool pool = new UTXOPool();
+
+        Transaction transaction0 = new Transaction();
+        transaction0.addInput(null, 0);
+        transaction0.addOutput(100.0, publicKeys[0]);
+        transaction0.finalize();
+        pool.addUTXO(new UTXO(transaction0.getHash(), 0), transaction0.getOutput(0));
+
+        TxHandler txHandler = new TxHandler(pool);
+
+        // A chain parent -> child -> grandchild proposed in reverse order
+        Transaction parent = new Transaction();
+        parent.addInput(transaction0.getHash(), 0);
+        parent.addOutput(90.0, publicKeys[1]);
+        signInput(parent.getInput(0), parent.getRawDataToSign(0), privateKeys[0]);
+        parent.finalize();
+
+        Transaction child = new Transaction();
+        child.addInput(parent.getHash(), 0);
+        child.addOutput(80.0, publicKeys[0]);
+        signInput(child.getInput(0), child.getRawDataToSign(0), privateKeys[1]);
+        child.finalize();
+
+        Transaction grandchild = new Transaction();
+        grandchild.addInput(child.getHash(), 0);
+        grandchild.addOutput(70.0, publicKeys[1]);
+        signInput(grandchild.getInput(0), grandchild.getRawDataToSign(0), privateKeys[0]);
+        grandchild.finalize();
+
+        // Spends an output the grandchild does not have
+        Transaction orphan = new Transaction();
+        orphan.addInput(grandchild.getHash(), 5);
+        orphan.addOutput(1.0, publicKeys[1]);
+        signInput(orphan.getInput(0), orphan.getRawDataToSign(0), privateKeys[1]);
+
+        Transaction[] txs = new Transaction[] { orphan, grandchild, child, parent };
+        Transaction[] etxs = new Transaction[] { parent, child, grandchild };
+
+        Assert.assertArrayEquals(etxs, txHandler.handleTxs(txs));
+    }
+
+    @Test public void testHandleTxs_ParallelGroupsMatchSequential() {
+        UTXOPool pool = new UTXOPool();
+
+        Transaction transaction0 = new Transaction();
+        transaction0.addInput(null, 0);
+        for (int i = 0; i < 8; ++i) {
+            transaction0.addOutput(100.0, publicKeys[0]);
+        }
+        transaction0.finalize();
+        for (int i = 0; i < 8; ++i) {
+            pool.addUTXO(new UTXO(transaction0.getHash(), i), transaction0.getOutput(i));
+        }
+
+        // Chains of spends, some of them competing for the same output, proposed shuffled
+        Random random = new Random(5);
+        ArrayList<Transaction> proposed = new ArrayList<Transaction>();
+        for (int chain = 0; chain < 12; ++chain) {
+            byte[] prevHash = transaction0.getHash();
+            int prevIndex = chain % 8;
+            int owner = 0;
+            for (int depth = 0; depth < 3; ++depth) {
+                Transaction tx = new Transaction();
+                tx.addInput(prevHash, prevIndex);
+                int next = random.nextInt(NUM_KEYS);
+                tx.addOutput(90.0 - depth * 10 - chain, publicKeys[next]);
+                signInput(tx.getInput(0), tx.getRawDataToSign(0), privateKeys[owner]);
+                tx.finalize();
+                proposed.add(tx);
+                prevHash = tx.getHash();
+                prevIndex = 0;
+                owner = next;
+            }
+        }
+        Collections.shuffle(proposed, random);
+        Transaction[] txs = proposed.toArray(new Transaction[0]);
+
+        // The same epoch against a pool that groups change directly
+        UTXOPool concurrentPool = new UTXOPool(new ConcurrentUTXOStore());
+        for (UTXO utxo : pool.getAllUTXO()) {
+            concurrentPool.addUTXO(utxo, pool.getTxOutput(utxo));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Transaction[] expected = new TxHandler(pool).handleTxs(txs);
+            Assert.assertEquals(8 * 3, expected.length);
+            Assert.assertArrayEquals(expected, new TxHandler(pool, executor).handleTxs(txs));
+            Assert.assertArrayEquals(expected,
+                    new TxHandler(concurrentPool, executor).handleTxs(txs));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test public void testIsValidTx_ExactAmounts() {
+        UTXOPool pool = new UTXOPool();
+
+        Transaction transaction0 = new Transaction();
+        transaction0.addInput(null, 0);
+        transaction0.addOutput(0.3, publicKeys[0]);
+        transaction0.finalize();
+        pool.addUTXO(new UTXO(transaction0.getHash(), 0), transaction0.getOutput(0));
+
+        TxHandler txHandler = new TxHandler(pool);
+
+        // 0.1 + 0.2 exceeds 0.3 in double arithmetic, but not in units
+        Transaction transaction = new Transaction();
+        transaction.addInput(transaction0.getHash(), 0);
+        transaction.addOutput(0.1, publicKeys[1]);
+        transaction.addOutput(0.2, publicKeys[1]);
+        signInput(transaction.getInput(0), transaction.getRawDataToSign(0), privateKeys[0]);
+        Assert.assertEquals(true, txHandler.isValidTx(transaction));
+
+        // Sums that overflow are rejected instead of wrapping around
+        Transaction overflow = new Transaction();
+        overflow.addInput(transaction0.getHash(), 0);
+        overflow.addOutput(Amounts.toCoins(Long.MAX_VALUE / 2 + 1), publicKeys[1]);
+        overflow.addOutput(Amounts.toCoins(Long.MAX_VALUE / 2 + 1), publicKeys[1]);
+        signInput(overflow.getInput(0), overflow.getRawDataToSign(0), privateKeys[0]);
+        Assert.assertEquals(false, txHandler.isValidTx(overflow));
+
+        Assert.assertEquals(30000000L, transaction0.getOutput(0).getUnits());
+        Assert.assertEquals(0.3, Transaction.Output.ofUnits(30000000L, publicKeys[0]).value, 0.0);
+    }
+
+    @Test public void testIsValidTx_FractionOfUnit() {
+        UTXOPool pool = new UTXOPool();
+
+        Transaction transaction0 = new Transaction();
+        transaction0.addInput(null, 0);
+        transaction0.addOutput(1.0, publicKeys[0]);
+        transaction0.finalize();
+        pool.addUTXO(new UTXO(transaction0.getHash(), 0), transaction0.getOutput(0));
+
+        TxHandler txHandler = new TxHandler(pool);
+
+        // An output of a fraction of a unit can be built, but is rejected rather than rounded down
+        Transaction transaction = new Transaction();
+        transaction.addInput(transaction0.getHash(), 0);
+        transaction.addOutput(0.5, publicKeys[1]);
+        transaction.addOutput(4e-9, publicKeys[1]);
+        signInput(transaction.getInput(0), transaction.getRawDataToSign(0), privateKeys[0]);
+        Assert.assertEquals(false, transaction.getOutput(1).isAmount());
+        Assert.assertEquals(false, txHandler.isValidTx(transaction));
+        Assert.assertArrayEquals(new byte[] { ValidationResult.INVALID_AMOUNT.code() },
+                txHandler.validateTxs(new Transaction[] { transaction }));
+
+        // Nor does it pass as a view
+        TransactionView[] views = toViews(new Transaction[] { transaction });
+        Assert.assertEquals(false, txHandler.isValidTx(views[0]));
+        Assert.assertArrayEquals(new byte[] { ValidationResult.INVALID_AMOUNT.code() },
+                txHandler.validateTxs(views));
+    }
+
+    @Test public void testValidateTxs() {
+        UTXOPool pool = new UTXOPool();
+
+        Transaction transaction0 = new Transaction();
+        transaction0.addInput(null, 0);
+        transaction0.addOutput(10.0, publicKeys[0]);
+        transaction0.addOutput(10.0, publicKeys[0]);
+        transaction0.finalize();
+        pool.addUTXO(new UTXO(transaction0.getHash(), 0), transaction0.getOutput(0));
+        pool.addUTXO(new UTXO(transaction0.getHash(), 1), transaction0.getOutput(1));
+
+        TxHandler txHandler = new TxHandler(pool);
+
+        Transaction valid = new Transaction();
+        valid.addInput(transaction0.getHash(), 0);
+        valid.addOutput(5.0, publicKeys[1]);
+        signInput(valid.getInput(0), valid.getRawDataToSign(0), privateKeys[0]);
+
+        Transaction missing = new Transaction();
+        missing.addInput(transaction0.getHash(), 2);
+        missing.addOutput(5.0, publicKeys[1]);
+        signInput(missing.getInput(0), missing.getRawDataToSign(0), privateKeys[0]);
+
+        Transaction badSignature = new Transaction();
+        badSignature.addInput(transaction0.getHash(), 0);
+        badSignature.addOutput(5.0, publicKeys[1]);
+        signInput(badSignature.getInput(0), badSignature.getRawDataToSign(0), privateKeys[1]);
+
+        Transaction doubleClaim = new Transaction();
+        doubleClaim.addInput(transaction0.getHash(), 1);
+        doubleClaim.addInput(transaction0.getHash(), 1);
+        doubleClaim.addOutput(15.0, publicKeys[1]);
+        signInput(doubleClaim.getInput(0), doubleClaim.getRawDataToSign(0), privateKeys[0]);
+        signInput(doubleClaim.getInput(1), doubleClaim.getRawDataToSign(1), privateKeys[0]);
+
+        Transaction negative = new Transaction();
+        negative.addInput(transaction0.getHash(), 0);
+        negative.addOutput(-1.0, publicKeys[1]);
+        signInput(negative.getInput(0), negative.getRawDataToSign(0), privateKeys[0]);
+
+        Transaction insufficient = new Transaction();
+        insufficient.addInput(transaction0.getHash(), 1);
+        insufficient.addOutput(11.0, publicKeys[1]);
+        signInput(insufficient.getInput(0), insufficient.getRawDataToSign(0), privateKeys[0]);
+
+        // A structural failure is reported even though the signature is also wrong
+        Transaction both = new Transaction();
+        both.addInput(transaction0.getHash(), 1);
+        both.addOutput(11.0, publicKeys[1]);
+        signInput(both.getInput(0), both.getRawDataToSign(0), privateKeys[1]);
+
+        Transaction unsigned = new Transaction();
+        unsigned.addInput(transaction0.getHash(), 1);
+        unsigned.addOutput(1.0, publicKeys[1]);
+
+        Transaction[] txs = new Transaction[] {
+            valid, missing, badSignature, doubleClaim, negative, insufficient, both, unsigned
+        };
+        ValidationResult[] expected = new ValidationResult[] {
+            ValidationResult.VALID, ValidationResult.MISSING_INPUT, ValidationResult.BAD_SIGNATURE,
+            ValidationResult.DOUBLE_CLAIM, ValidationResult.NEGATIVE_OUTPUT,
+            ValidationResult.INSUFFICIENT_INPUTS, ValidationResult.INSUFFICIENT_INPUTS,
+            ValidationResult.BAD_SIGNATURE
+        };
+        byte[] codes = txHandler.validateTxs(txs);
+        Assert.assertEquals(txs.length, codes.length);
+        for (int i = 0; i < txs.length; ++i) {
+            Assert.assertEquals(expected[i], ValidationResult.of(codes[i]));
+            Assert.assertEquals(expected[i] == ValidationResult.VALID, txHandler.isValidTx(txs[i]));
+        }
+
+        // Validating does not change the pool
+        Assert.assertArrayEquals(codes, txHandler.validateTxs(txs));
+
+        // The same transactions read from the wire are checked in place with the same results
+        TransactionView[] views = toViews(txs);
+        Assert.assertArrayEquals(codes, txHandler.validateTxs(views));
+        for (int i = 0; i < views.length; ++i) {
+            Assert.assertEquals(expected[i] == ValidationResult.VALID, txHandler.isValidTx(views[i]));
+        }
+    }
+
+    @Test public void testHandleTxs_Views() {
+        UTXOPool pool = new UTXOPool();
+
+        Transaction transaction0 = new Transaction();
+        transaction0.addInput(null, 0);
+        transaction0.addOutput(10.0, publicKeys[0]);
+        transaction0.addOutput(10.0, publicKeys[0]);
+        transaction0.finalize();
+        pool.addUTXO(new UTXO(transaction0.getHash(), 0), transaction0.getOutput(0));
+        pool.addUTXO(new UTXO(transaction0.getHash(), 1), transaction0.getOutput(1));
+
+        Transaction parent = new Transaction();
+        parent.addInput(transaction0.getHash(), 0);
+        parent.addOutput(8.0, publicKeys[1]);
+        signInput(parent.getInput(0), parent.getRawDataToSign(0), privateKeys[0]);
+        parent.finalize();
+
+        Transaction child = new Transaction();
+        child.addInput(parent.getHash(), 0);
+        child.addOutput(7.0, publicKeys[0]);
+        signInput(child.getInput(0), child.getRawDataToSign(0), privateKeys[1]);
+
+        Transaction orphan = new Transaction();
+        orphan.addInput(child.getHash(), 5);
+        orphan.addOutput(1.0, publicKeys[0]);
+        signInput(orphan.getInput(0), orphan.getRawDataToSign(0), privateKeys[0]);
+
+        Transaction negative = new Transaction();
+        negative.addInput(transaction0.getHash(), 1);
+        negative.addOutput(-1.0, publicKeys[1]);
+        signInput(negative.getInput(0), negative.getRawDataToSign(0), privateKeys[0]);
+
+        Transaction badSignature = new Transaction();
+        badSignature.addInput(transaction0.getHash(), 1);
+        badSignature.addOutput(1.0, publicKeys[1]);
+        signInput(badSignature.getInput(0), badSignature.getRawDataToSign(0), privateKeys[1]);
+
+        Transaction[] txs = new Transaction[] { child, orphan, negative, parent, badSignature };
+        Transaction[] expected = new TxHandler(pool, null, null).handleTxs(txs);
+        TxHandler txHandler = new TxHandler(pool, null, null);
+        Transaction[] accepted = txHandler.handleTxs(toViews(txs));
+
+        Assert.assertEquals(2, expected.length);
+        Assert.assertEquals(expected.length, accepted.length);
+        for (int i = 0; i < expected.length; ++i) {
+            Assert.assertArrayEquals(expected[i].getHash(), accepted[i].getHash());
+        }
+        Assert.assertTrue(txHandler.getUTXOPool().contains(new UTXO(child.getHash(), 0)));
+        Assert.assertFalse(txHandler.getUTXOPool().contains(new UTXO(transaction0.getHash(), 0)));
+    }
+
+    @Test public void testHandleTxs_ViewWithInvalidAddress() {
+        UTXOPool pool = new UTXOPool();
+
+        Transaction transaction0 = new Transaction();
+        transaction0.addInput(null, 0);
+        transaction0.addOutput(10.0, publicKeys[0]);
+        transaction0.addOutput(10.0, publicKeys[0]);
+        transaction0.finalize();
+        pool.addUTXO(new UTXO(transaction0.getHash(), 0), transaction0.getOutput(0));
+        pool.addUTXO(new UTXO(transaction0.getHash(), 1), transaction0.getOutput(1));
+
+        Transaction valid = new Transaction();
+        valid.addInput(transaction0.getHash(), 0);
+        valid.addOutput(5.0, publicKeys[1]);
+        signInput(valid.getInput(0), valid.getRawDataToSign(0), privateKeys[0]);
+        valid.finalize();
+
+        Transaction corrupted = new Transaction();
+        corrupted.addInput(transaction0.getHash(), 1);
+        corrupted.addOutput(5.0, publicKeys[1]);
+        signInput(corrupted.getInput(0), corrupted.getRawDataToSign(0), privateKeys[0]);
+
+        // The address is no longer a key, and the record is signed again over the corrupted bytes
+        TransactionView[] views = toViews(new Transaction[] { corrupted, valid });
+        ByteBuffer address = views[0].getEncodedAddress(0);
+        address.put(address.position(), (byte) 0);
+        ByteBuffer[] parts = views[0].getRawDataToSign(0);
+        ByteBuffer data = ByteBuffer.allocate(parts[0].remaining() + parts[1].remaining());
+        data.put(parts[0]).put(parts[1]);
+        Transaction scratch = new Transaction();
+        scratch.addInput(null, 0);
+        signInput(scratch.getInput(0), data.array(), privateKeys[0]);
+        ByteBuffer signature = views[0].getSignature(0);
+        signature.duplicate().put(scratch.getInput(0).signature);
+        Assert.assertEquals(ValidationResult.VALID,
+                new TxValidator(new SignatureVerifier(null, null)).checkSignatures(pool, views[0]));
+
+        TxHandler txHandler = new TxHandler(pool, null, null);
+        Assert.assertEquals(false, txHandler.isValidTx(views[0]));
+        Assert.assertArrayEquals(new byte[] { ValidationResult.INVALID_ADDRESS.code(),
+                ValidationResult.VALID.code() }, txHandler.validateTxs(views));
+
+        // The bad record is rejected on its own, without aborting the epoch
+        Transaction[] accepted = txHandler.handleTxs(views);
+        Assert.assertEquals(1, accepted.length);
+        Assert.assertArrayEquals(valid.getHash(), accepted[0].getHash());
+        accepted = new MaxFeeTxHandler(pool, null, null).handleTxs(views);
+        Assert.assertEquals(1, accepted.length);
+        Assert.assertArrayEquals(valid.getHash(), accepted[0].getHash());
+    }
+
+    /** @return views of {@code txs} written one after the other to a direct buffer */
+    private static TransactionView[] toViews(Transaction[] txs) {
+        int size = 0;
+        for (Transaction tx : txs) {
+            size += tx.wireSize();
+        }
+        ByteBuffer buf = ByteBuffer.allocateDirect(size);
+        for (Transaction tx : txs) {
+            tx.writeWire(buf);
+        }
+        buf.flip();
+        TransactionView[] views = new TransactionView[txs.length];
+        for (int i = 0; i < txs.length; ++i) {
+            views[i] = TransactionView.read(buf);
+        }
+        Assert.assertFalse(buf.hasRemaining());
+        return views;
+    }
+
+    @Test public void testIsValidTx_HashCodeCollision() {
+        Transaction transaction0 = new Transaction();
+        transaction0.addInput(null, 0);
+        transaction0.addOutput(1.0, publicKeys[0]);
+        transaction0.finalize();
+
+        // Two distinct outputs of the same transaction whose UTXOs have equal hash codes
+        HashMap<Integer, Integer> indexes = new HashMap<Integer, Integer>();
+        int first = -1;
+        int second = -1;
+        for (int index = 0; first < 0; ++index) {
+            Integer other = indexes.put(new UTXO(transaction0.getHash(), index).hashCode(), index);
+            if (other != null) {
+                first = other;
+                second = index;
+            }
+        }
+        UTXOPool pool = new UTXOPool();
+        pool.addUTXO(new UTXO(transaction0.getHash(), first), transaction0.getOutput(0));
+        pool.addUTXO(new UTXO(transaction0.getHash(), second), transaction0.getOutput(0));
+
+        Transaction transaction = new Transaction();
+        transaction.addInput(transaction0.getHash(), first);
+        transaction.addInput(transaction0.getHash(), second);
+        transaction.addOutput(2.0, publicKeys[1]);
+        signInput(transaction.getInput(0), transaction.getRawDataToSign(0), privateKeys[0]);
+        signInput(transaction.getInput(1), transaction.getRawDataToSign(1), privateKeys[0]);
+
+        Assert.assertEquals(true, new TxHandler(pool).isValidTx(transaction));
+        Assert.assertEquals(true, new MaxFeeTxHandler(pool).isValidTx(transaction));
+    }
+
     private void signInput(Transaction.Input input, byte[] rawData, PrivateKey privKey) {
         Signature sig = null;
         byte[] signatureBytes = null;
@@ -0,0 +1,468 @@
+import org.junit.Test;
+import org.junit.BeforeClass;
+import org.junit.Assert;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class UTXOPoolTest {
+    private static final int NUM_KEYS = 3;
+
+    private static PublicKey[] publicKeys;
+
+    @BeforeClass public static void beforeClass() throws NoSuchAlgorithmException {
+        publicKeys = new PublicKey[NUM_KEYS];
+
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(512);
+
+        for (int i = 0; i < NUM_KEYS; ++i) {
+            KeyPair pair = keyGen.generateKeyPair();
+            publicKeys[i] = pair.getPublic();
+        }
+    }
+
+    @Test public void testOpenAddressingStore() {
+        assertSameAsHashMap(new UTXOPool(new OpenAddressingUTXOStore(4)), true);
+    }
+
+    @Test public void testOpenAddressingStoreCopy() {
+        assertCopyIsIndependent(new UTXOPool(new OpenAddressingUTXOStore()));
+    }
+
+    @Test public void testMappedStore() throws IOException {
+        File file = File.createTempFile("utxo", ".store");
+        try (MappedUTXOStore store = MappedUTXOStore.create(file, 5000)) {
+            assertSameAsHashMap(new UTXOPool(store), false);
+        } finally {
+            delete(file);
+        }
+    }
+
+    @Test public void testMappedStoreCopy() throws IOException {
+        File file = File.createTempFile("utxo", ".store");
+        try (MappedUTXOStore store = MappedUTXOStore.create(file, 100)) {
+            assertCopyIsIndependent(new UTXOPool(store));
+        } finally {
+            delete(file);
+        }
+    }
+
+    @Test public void testMappedStoreSnapshotNotMaterialized() throws IOException {
+        File file = File.createTempFile("utxo", ".store");
+        try (MappedUTXOStore store = MappedUTXOStore.create(file, 100)) {
+            UTXOPool pool = new UTXOPool(store);
+            OverlayUTXOStore snapshot = new OverlayUTXOStore(pool, store);
+            Random random = new Random(9);
+            for (int i = 0; i < 2000; ++i) {
+                snapshot.put(new UTXO(randomHash(random), i),
+                        new Transaction.Output(i, publicKeys[0]));
+            }
+            Assert.assertFalse(snapshot.shouldMaterialize());
+            Assert.assertEquals(2000, snapshot.size());
+        } finally {
+            delete(file);
+        }
+    }
+
+    @Test public void testMappedStoreReopen() throws IOException {
+        File file = File.createTempFile("utxo", ".store");
+        try {
+            Random random = new Random(1);
+            UTXO utxo = randomUTXO(random, false);
+            try (MappedUTXOStore store = MappedUTXOStore.create(file, 100)) {
+                store.put(utxo, new Transaction.Output(12.5, publicKeys[1]));
+                store.put(randomUTXO(random, false), new Transaction.Output(1.0, publicKeys[2]));
+            }
+
+            try (MappedUTXOStore store = MappedUTXOStore.open(file)) {
+                Assert.assertEquals(2, store.size());
+                Transaction.Output out = store.get(utxo);
+                Assert.assertEquals(12.5, out.value, 0.0);
+                Assert.assertEquals(publicKeys[1], out.address);
+            }
+        } finally {
+            delete(file);
+        }
+    }
+
+    @Test public void testMappedStoreReopenAfterPartialWrite() throws IOException {
+        File file = File.createTempFile("utxo", ".store");
+        File addresses = new File(file.getPath() + ".addresses");
+        try {
+            Random random = new Random(2);
+            UTXO utxo = randomUTXO(random, false);
+            UTXO unowned = randomUTXO(random, false);
+            try (MappedUTXOStore store = MappedUTXOStore.create(file, 100)) {
+                store.put(utxo, new Transaction.Output(3.0, publicKeys[1]));
+                store.put(unowned, new Transaction.Output(4.0, null));
+            }
+            long length = addresses.length();
+
+            // A crash while appending an address leaves part of its record
+            try (FileOutputStream out = new FileOutputStream(addresses, true)) {
+                out.write(new byte[] { 0, 0, 0, 3, 'R', 'S' });
+            }
+
+            try (MappedUTXOStore store = MappedUTXOStore.open(file)) {
+                Assert.assertEquals(length, addresses.length());
+                Assert.assertEquals(publicKeys[1], store.get(utxo).address);
+                Assert.assertNull(store.get(unowned).address);
+                UTXO next = randomUTXO(random, false);
+                store.put(next, new Transaction.Output(5.0, publicKeys[2]));
+            }
+
+            try (MappedUTXOStore store = MappedUTXOStore.open(file)) {
+                Assert.assertEquals(3, store.size());
+                Assert.assertEquals(publicKeys[1], store.get(utxo).address);
+            }
+        } finally {
+            delete(file);
+        }
+    }
+
+    @Test public void testStoresKeepValuesThatAreNotAmounts() throws IOException {
+        // The value of an output is public and can be replaced by one that is not an amount
+        Transaction.Output fraction = new Transaction.Output(1.0, publicKeys[0]);
+        fraction.value = 4e-9;
+        Transaction.Output notANumber = new Transaction.Output(Double.NaN, publicKeys[1]);
+        Random random = new Random(3);
+        UTXO first = randomUTXO(random, false);
+        UTXO second = randomUTXO(random, false);
+
+        File file = File.createTempFile("utxo", ".store");
+        try {
+            try (MappedUTXOStore mapped = MappedUTXOStore.create(file, 100)) {
+                UTXOStore[] stores = new UTXOStore[] { new HashMapUTXOStore(),
+                        new OpenAddressingUTXOStore(), new ConcurrentUTXOStore(), mapped };
+                for (UTXOStore store : stores) {
+                    UTXOPool pool = new UTXOPool(store);
+                    pool.addUTXO(first, fraction);
+                    pool.addUTXO(second, notANumber);
+                    Assert.assertEquals(4e-9, pool.getTxOutput(first).value, 0.0);
+                    Assert.assertFalse(pool.getTxOutput(first).isAmount());
+                    Assert.assertTrue(Double.isNaN(pool.getTxOutput(second).value));
+                    Assert.assertEquals(publicKeys[1], pool.getTxOutput(second).address);
+
+                    // Putting an amount again stores it in units
+                    pool.addUTXO(first, new Transaction.Output(2.0, publicKeys[0]));
+                    Assert.assertEquals(200000000L, pool.getTxOutput(first).getUnits());
+                }
+            }
+
+            try (MappedUTXOStore mapped = MappedUTXOStore.open(file)) {
+                Assert.assertTrue(Double.isNaN(mapped.get(second).value));
+                Assert.assertEquals(2.0, mapped.get(first).value, 0.0);
+            }
+        } finally {
+            delete(file);
+        }
+    }
+
+    @Test public void testConcurrentStore() {
+        assertSameAsHashMap(new UTXOPool(new ConcurrentUTXOStore()), true);
+    }
+
+    @Test public void testConcurrentStoreCopy() {
+        assertCopyIsIndependent(new UTXOPool(new ConcurrentUTXOStore()));
+    }
+
+    @Test public void testConcurrentSpend() throws InterruptedException {
+        final UTXOPool pool = new UTXOPool(new ConcurrentUTXOStore());
+        Random random = new Random(11);
+        final ArrayList<UTXO> utxos = new ArrayList<UTXO>();
+        for (int i = 0; i < 1000; ++i) {
+            UTXO utxo = new UTXO(randomHash(random), 0);
+            pool.addUTXO(utxo, new Transaction.Output(1.0, publicKeys[i % NUM_KEYS]));
+            utxos.add(utxo);
+        }
+
+        // Every thread tries to spend every pair of neighbouring UTXOs, so pairs compete
+        final int threads = 4;
+        final AtomicInteger spent = new AtomicInteger();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; ++t) {
+            final int seed = t;
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    for (int i = 0; i + 1 < utxos.size(); ++i) {
+                        UTXO output = new UTXO(randomHash(random), 0);
+                        HashMap<UTXO, Transaction.Output> outputs =
+                                new HashMap<UTXO, Transaction.Output>();
+                        outputs.put(output, new Transaction.Output(2.0, publicKeys[0]));
+                        if (pool.spendUTXOs(Arrays.asList(utxos.get(i), utxos.get(i + 1)),
+                                outputs)) {
+                            spent.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        // Each successful spend removed two UTXOs and added one, and no UTXO was spent twice
+        Assert.assertEquals(1000 - spent.get(), pool.size());
+        int remaining = 0;
+        for (UTXO utxo : utxos) {
+            if (pool.contains(utxo)) {
+                remaining++;
+            }
+        }
+        Assert.assertEquals(1000 - 2 * spent.get(), remaining);
+
+        UTXO missing = new UTXO(randomHash(random), 0);
+        Assert.assertFalse(pool.removeUTXOs(Arrays.asList(missing)));
+        UTXO present = pool.getAllUTXO().get(0);
+        Assert.assertFalse(pool.removeUTXOs(Arrays.asList(present, present)));
+        Assert.assertTrue(pool.removeUTXOs(Arrays.asList(present)));
+        Assert.assertFalse(pool.contains(present));
+    }
+
+    @Test public void testAddressRegistry() throws GeneralSecurityException {
+        // An equal key decoded into a distinct object
+        PublicKey copy = KeyFactory.getInstance("RSA")
+                .generatePublic(new X509EncodedKeySpec(publicKeys[0].getEncoded()));
+        Assert.assertNotSame(publicKeys[0], copy);
+
+        Transaction.Output out1 = new Transaction.Output(1.0, publicKeys[0]);
+        Transaction.Output out2 = new Transaction.Output(2.0, copy);
+        Assert.assertSame(out1.address, out2.address);
+        Assert.assertEquals(out1.getAddressId(), out2.getAddressId());
+        Assert.assertSame(out1.getEncodedAddress(), out2.getEncodedAddress());
+        Assert.assertArrayEquals(publicKeys[0].getEncoded(), out1.getEncodedAddress());
+
+        // Replacing the address of an output moves it to the id of the new address
+        out2.address = publicKeys[1];
+        Assert.assertEquals(AddressRegistry.shared().intern(publicKeys[1]), out2.getAddressId());
+        Assert.assertArrayEquals(publicKeys[1].getEncoded(), out2.getEncodedAddress());
+
+        // Stores hand out the registered keys
+        UTXOPool pool = new UTXOPool(new OpenAddressingUTXOStore());
+        UTXO utxo = randomUTXO(new Random(5));
+        pool.addUTXO(utxo, new Transaction.Output(3.0, copy));
+        Assert.assertSame(out1.address, pool.getTxOutput(utxo).address);
+        Assert.assertEquals(out1.getAddressId(), pool.getTxOutput(utxo).getAddressId());
+    }
+
+    @Test public void testAddressRegistryBound() {
+        AddressRegistry registry = new AddressRegistry(2);
+        int id0 = registry.intern(publicKeys[0]);
+        int id1 = registry.intern(publicKeys[1]);
+        Assert.assertEquals(2, registry.size());
+
+        // Once full, known addresses keep their ids and new ones are not registered
+        Assert.assertEquals(AddressRegistry.UNREGISTERED, registry.intern(publicKeys[2]));
+        Assert.assertEquals(id0, registry.intern(publicKeys[0]));
+        Assert.assertEquals(id1, registry.intern(publicKeys[1]));
+        Assert.assertSame(publicKeys[2], registry.canonical(publicKeys[2]));
+        Assert.assertEquals(publicKeys[2],
+                registry.canonicalEncoded(ByteBuffer.wrap(publicKeys[2].getEncoded())));
+        Assert.assertSame(publicKeys[1],
+                registry.canonicalEncoded(ByteBuffer.wrap(publicKeys[1].getEncoded())));
+        Assert.assertEquals(2, registry.size());
+    }
+
+    @Test public void testSnapshots() {
+        Random random = new Random(3);
+        UTXOPool owner = new UTXOPool();
+        UTXOPool expectedOwner = new UTXOPool(new HashMapUTXOStore());
+        for (int i = 0; i < 500; ++i) {
+            UTXO utxo = randomUTXO(random);
+            Transaction.Output out = new Transaction.Output(i, publicKeys[i % NUM_KEYS]);
+            owner.addUTXO(utxo, out);
+            expectedOwner.addUTXO(utxo, out);
+        }
+
+        UTXOPool snapshot = new UTXOPool(owner);
+        UTXOPool expectedSnapshot = copyOf(expectedOwner);
+        UTXOPool[] pools = new UTXOPool[] { owner, snapshot, null };
+        UTXOPool[] expected = new UTXOPool[] { expectedOwner, expectedSnapshot, null };
+
+        // Change all pools in turn, long enough for the snapshots to be materialized
+        for (int step = 0; step < 12000; ++step) {
+            if (step == 100) {
+                pools[2] = new UTXOPool(snapshot);
+                expected[2] = copyOf(expectedSnapshot);
+            }
+            int p = pools[2] == null ? random.nextInt(2) : random.nextInt(3);
+            ArrayList<UTXO> utxos = expected[p].getAllUTXO();
+            if (utxos.isEmpty() || random.nextBoolean()) {
+                UTXO utxo = randomUTXO(random);
+                Transaction.Output out = new Transaction.Output(step, publicKeys[step % NUM_KEYS]);
+                pools[p].addUTXO(utxo, out);
+                expected[p].addUTXO(utxo, out);
+            } else {
+                UTXO utxo = utxos.get(random.nextInt(utxos.size()));
+                pools[p].removeUTXO(utxo);
+                expected[p].removeUTXO(utxo);
+            }
+        }
+
+        for (int p = 0; p < pools.length; ++p) {
+            ArrayList<UTXO> expectedUTXOs = expected[p].getAllUTXO();
+            ArrayList<UTXO> actualUTXOs = pools[p].getAllUTXO();
+            Collections.sort(expectedUTXOs);
+            Collections.sort(actualUTXOs);
+            Assert.assertEquals(expectedUTXOs, actualUTXOs);
+            Assert.assertEquals(expected[p].size(), pools[p].size());
+            for (UTXO utxo : expectedUTXOs) {
+                assertSameOutput(expected[p].getTxOutput(utxo), pools[p].getTxOutput(utxo));
+            }
+        }
+    }
+
+    @Test public void testSnapshotsOfUnchangedPool() {
+        UTXOPool owner = new UTXOPool();
+        owner.addUTXO(randomUTXO(new Random(4)), new Transaction.Output(1.0, publicKeys[0]));
+        UTXOPool kept = new UTXOPool(owner);
+
+        // Copies that are dropped before the pool changes do not pile up
+        for (int i = 0; i < 20000; ++i) {
+            new UTXOPool(owner);
+            if (i % 1000 == 0) {
+                System.gc();
+            }
+        }
+        Assert.assertTrue(owner.numSnapshots() < 5000);
+
+        // The copies still alive keep being told about changes
+        owner.removeUTXO(owner.getAllUTXO().get(0));
+        Assert.assertEquals(0, owner.size());
+        Assert.assertEquals(1, kept.size());
+    }
+
+    /**
+     * Applies the same random additions and removals to {@code pool} and to a pool backed by a
+     * {@code HashMap}, checking after each step that both agree. Only if {@code shortHashes}
+     * some UTXOs have transaction hashes shorter than 32 bytes.
+     */
+    static void assertSameAsHashMap(UTXOPool pool, boolean shortHashes) {
+        UTXOPool expected = new UTXOPool();
+        Random random = new Random(42);
+        ArrayList<UTXO> utxos = new ArrayList<UTXO>();
+
+        for (int step = 0; step < 5000; ++step) {
+            if (utxos.isEmpty() || random.nextInt(3) > 0) {
+                UTXO utxo = randomUTXO(random, shortHashes);
+                Transaction.Output out = new Transaction.Output(random.nextInt(1000),
+                        publicKeys[random.nextInt(NUM_KEYS)]);
+                pool.addUTXO(utxo, out);
+                expected.addUTXO(utxo, out);
+                utxos.add(utxo);
+            } else {
+                UTXO utxo = utxos.remove(random.nextInt(utxos.size()));
+                pool.removeUTXO(utxo);
+                expected.removeUTXO(utxo);
+            }
+
+            UTXO probe = random.nextBoolean() && !utxos.isEmpty()
+                    ? utxos.get(random.nextInt(utxos.size())) : randomUTXO(random, true);
+            Assert.assertEquals(expected.contains(probe), pool.contains(probe));
+            assertSameOutput(expected.getTxOutput(probe), pool.getTxOutput(probe));
+            Assert.assertEquals(expected.size(), pool.size());
+        }
+
+        ArrayList<UTXO> expectedUTXOs = expected.getAllUTXO();
+        ArrayList<UTXO> actualUTXOs = pool.getAllUTXO();
+        Collections.sort(expectedUTXOs);
+        Collections.sort(actualUTXOs);
+        Assert.assertEquals(expectedUTXOs, actualUTXOs);
+        for (UTXO utxo : expectedUTXOs) {
+            assertSameOutput(expected.getTxOutput(utxo), pool.getTxOutput(utxo));
+        }
+    }
+
+    /** Checks that changing a copy of {@code pool} does not change {@code pool} and vice versa */
+    static void assertCopyIsIndependent(UTXOPool pool) {
+        Random random = new Random(7);
+        UTXO kept = randomUTXO(random);
+        UTXO removed = randomUTXO(random);
+        pool.addUTXO(kept, new Transaction.Output(1.0, publicKeys[0]));
+        pool.addUTXO(removed, new Transaction.Output(2.0, publicKeys[1]));
+
+        UTXOPool copy = new UTXOPool(pool);
+        UTXO added = randomUTXO(random);
+        copy.removeUTXO(removed);
+        copy.addUTXO(added, new Transaction.Output(3.0, publicKeys[2]));
+
+        Assert.assertTrue(pool.contains(removed));
+        Assert.assertFalse(pool.contains(added));
+        Assert.assertFalse(copy.contains(removed));
+        Assert.assertTrue(copy.contains(added));
+        Assert.assertTrue(copy.contains(kept));
+
+        UTXO addedToOriginal = randomUTXO(random);
+        pool.addUTXO(addedToOriginal, new Transaction.Output(4.0, publicKeys[0]));
+        Assert.assertFalse(copy.contains(addedToOriginal));
+        Assert.assertEquals(3, pool.size());
+        Assert.assertEquals(2, copy.size());
+    }
+
+    static UTXO randomUTXO(Random random) {
+        return randomUTXO(random, false);
+    }
+
+    /**
+     * @return a UTXO of a random 32 byte hash, or now and then of a shorter one if {@code
+     *         shortHashes}
+     */
+    static UTXO randomUTXO(Random random, boolean shortHashes) {
+        byte[] hash = new byte[shortHashes && random.nextInt(20) == 0 ? 17 : 32];
+        random.nextBytes(hash);
+        // Reuse the same hash now and then, so that keys are replaced and share a hash
+        if (random.nextInt(4) == 0) {
+            Arrays.fill(hash, (byte) 0);
+        }
+        return new UTXO(hash, random.nextInt(4));
+    }
+
+    private static byte[] randomHash(Random random) {
+        byte[] hash = new byte[32];
+        random.nextBytes(hash);
+        return hash;
+    }
+
+    /** @return a pool with its own {@code HashMap} holding the content of {@code pool} */
+    private static UTXOPool copyOf(UTXOPool pool) {
+        UTXOPool copy = new UTXOPool(new HashMapUTXOStore());
+        for (UTXO utxo : pool.getAllUTXO()) {
+            copy.addUTXO(utxo, pool.getTxOutput(utxo));
+        }
+        return copy;
+    }
+
+    private static void delete(File file) {
+        file.delete();
+        new File(file.getPath() + ".addresses").delete();
+    }
+
+    private static void assertSameOutput(Transaction.Output expected, Transaction.Output actual) {
+        if (expected == null) {
+            Assert.assertNull(actual);
+            return;
+        }
+        Assert.assertNotNull(actual);
+        Assert.assertEquals(expected.value, actual.value, 0.0);
+        Assert.assertEquals(expected.address, actual.address);
+    }
+}